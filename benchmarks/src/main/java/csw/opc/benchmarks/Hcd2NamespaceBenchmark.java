@@ -0,0 +1,188 @@
+package csw.opc.benchmarks;
+
+import csw.opc.server.Hcd2Namespace;
+import csw.opc.server.Hcd2NamespaceConfig;
+import csw.opc.server.KeyStoreLoader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.DiagnosticsContext;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.AccessContext;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeManager.ReadContext;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeManager.WriteContext;
+import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.application.DefaultCertificateManager;
+import org.eclipse.milo.opcua.stack.core.application.DefaultCertificateValidator;
+import org.eclipse.milo.opcua.stack.core.serialization.binary.BinaryEncoder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the Hcd2Namespace read, write and browse service paths in-process, without a network
+ * stack, so that the cost of the namespace itself can be measured, with string or numeric NodeIds.
+ *
+ * Run with: sbt "benchmarks/jmh:run -prof gc Hcd2NamespaceBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Hcd2NamespaceBenchmark {
+
+    private static final AccessContext NO_SESSION = Optional::empty;
+
+    @Param({"1", "100", "10000"})
+    private int batchSize;
+
+    @Param({"ScalarTypes", "ArrayTypes", "Dynamic"})
+    private String folder;
+
+    // Compares the default string NodeIds with the numeric ones
+    @Param({"false", "true"})
+    private boolean numericNodeIds;
+
+    private OpcUaServer server;
+    private Hcd2Namespace namespace;
+
+    private List<NodeId> nodeIds;
+    private List<ReadValueId> readValueIds;
+    private List<WriteValue> writeValues;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyStoreLoader loader = new KeyStoreLoader().load();
+
+        File securityTempDir = new File(System.getProperty("java.io.tmpdir"), "security");
+
+        OpcUaServerConfig serverConfig = OpcUaServerConfig.builder()
+            .setApplicationUri("urn:csw:opc:benchmarks")
+            .setApplicationName(LocalizedText.english("Hcd2Namespace benchmark"))
+            .setCertificateManager(new DefaultCertificateManager(
+                loader.getServerKeyPair(),
+                loader.getServerCertificate()))
+            .setCertificateValidator(new DefaultCertificateValidator(securityTempDir))
+            .build();
+
+        // The server is never started: the namespace is called directly, as the service sets would
+        server = new OpcUaServer(serverConfig);
+
+        namespace = server.getNamespaceManager().registerAndAdd(
+            Hcd2Namespace.NAMESPACE_URI,
+            idx -> new Hcd2Namespace(server, idx,
+                Hcd2NamespaceConfig.builder().setNumericNodeIds(numericNodeIds).build()));
+
+        NodeId folderNodeId = namespace.getNodeId("HelloWorld/" + folder).get();
+
+        List<NodeId> variables = new ArrayList<>();
+        for (Reference reference : namespace.browse(NO_SESSION, folderNodeId).get()) {
+            if (reference.isForward() && reference.getReferenceTypeId().equals(Identifiers.Organizes)) {
+                reference.getTargetNodeId().local().ifPresent(variables::add);
+            }
+        }
+
+        nodeIds = new ArrayList<>(batchSize);
+        readValueIds = new ArrayList<>(batchSize);
+        writeValues = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            NodeId nodeId = variables.get(i % variables.size());
+            UaVariableNode node = (UaVariableNode) server.getNodeMap().get(nodeId);
+
+            nodeIds.add(nodeId);
+
+            readValueIds.add(new ReadValueId(
+                nodeId, AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE));
+
+            // Write back the initial value (without status or timestamps, like Hcd2OpcUaClient does)
+            writeValues.add(new WriteValue(
+                nodeId, AttributeId.Value.uid(), null, new DataValue(node.getValue().getValue(), null, null)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.getScheduledExecutorService().shutdownNow();
+        server.getExecutorService().shutdownNow();
+    }
+
+    @Benchmark
+    public List<DataValue> read() {
+        CompletableFuture<List<DataValue>> future = new CompletableFuture<>();
+
+        ReadContext context = new ReadContext(server, null, future, new DiagnosticsContext<>());
+
+        namespace.read(context, 0.0, TimestampsToReturn.Both, readValueIds);
+
+        return future.join();
+    }
+
+    @Benchmark
+    public List<StatusCode> write() {
+        CompletableFuture<List<StatusCode>> future = new CompletableFuture<>();
+
+        WriteContext context = new WriteContext(server, null, future, new DiagnosticsContext<>());
+
+        namespace.write(context, writeValues);
+
+        return future.join();
+    }
+
+    @Benchmark
+    public void browse(Blackhole bh) {
+        for (NodeId nodeId : nodeIds) {
+            bh.consume(namespace.browse(NO_SESSION, nodeId).join());
+        }
+    }
+
+    /**
+     * Encodes the ReadValueIds of a Read request, as the client stack does.
+     * Returns the encoded size, which shows the message size difference between the NodeId schemes.
+     */
+    @Benchmark
+    public int encodeRead() {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            BinaryEncoder encoder = new BinaryEncoder().setBuffer(buffer);
+            for (ReadValueId readValueId : readValueIds) {
+                ReadValueId.encode(readValueId, encoder);
+            }
+            return buffer.readableBytes();
+        } finally {
+            buffer.release();
+        }
+    }
+
+}
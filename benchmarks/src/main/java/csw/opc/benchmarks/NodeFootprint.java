@@ -0,0 +1,118 @@
+package csw.opc.benchmarks;
+
+import csw.opc.server.Hcd2Namespace;
+import csw.opc.server.Hcd2NamespaceConfig;
+import csw.opc.server.KeyStoreLoader;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
+import org.eclipse.milo.opcua.stack.core.application.DefaultCertificateManager;
+import org.eclipse.milo.opcua.stack.core.application.DefaultCertificateValidator;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * Measures the heap used per model variable by Hcd2Namespace when the variables are built as nodes,
+ * kept as lazy descriptors (before any client touches them) or kept in a CompactNodeStore.
+ * <p>
+ * Namespaces with generated models of N and 2N variables (half Int32, half Double) are created one after
+ * the other, and the heap in use is measured after full collections. The difference between the growth
+ * of the two, divided by N, is the cost of a variable, without the fixed cost of a server and namespace.
+ * (Namespaces can't be disposed of, since the simulation tick of Milo's shared executor keeps them.)
+ * Run with a fixed heap for stable numbers, for example:
+ * <pre>
+ * sbt "benchmarks/runMain csw.opc.benchmarks.NodeFootprint 200000"
+ * java -Xms2g -Xmx2g -cp ... csw.opc.benchmarks.NodeFootprint 200000 numeric
+ * </pre>
+ */
+public class NodeFootprint {
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        boolean numeric = args.length > 1 && args[1].equals("numeric");
+
+        File model1 = model(count);
+        File model2 = model(2 * count);
+
+        System.out.printf("%d variables, %s NodeIds%n", count, numeric ? "numeric" : "string");
+
+        measure("nodes", count, model1, model2, b -> b.setNumericNodeIds(numeric));
+        measure("lazy", count, model1, model2, b -> b.setNumericNodeIds(numeric).setLazyModelNodes(true));
+        measure("compact", count, model1, model2, b -> b.setNumericNodeIds(numeric).setCompactModelNodes(true));
+
+        System.exit(0);
+    }
+
+    private static File model(int count) throws Exception {
+        File model = File.createTempFile("footprint", ".conf");
+        model.deleteOnExit();
+        try (Writer writer = new FileWriter(model)) {
+            writer.write("folders = [{name = Tags, generated = [\n"
+                + "  {prefix = Int, count = " + (count / 2) + ", type = Int32}\n"
+                + "  {prefix = Double, count = " + (count - count / 2) + ", type = Double, value = 1.5}\n"
+                + "]}]\n");
+        }
+        return model;
+    }
+
+    private static void measure(String name, int count, File model1, File model2,
+                                UnaryOperator<Hcd2NamespaceConfig.Builder> config) throws Exception {
+        long used0 = usedAfterGc();
+        Hcd2Namespace namespace1 = newNamespace(config.apply(Hcd2NamespaceConfig.builder())
+            .setModelFile(Optional.of(model1)).build());
+        long used1 = usedAfterGc();
+        Hcd2Namespace namespace2 = newNamespace(config.apply(Hcd2NamespaceConfig.builder())
+            .setModelFile(Optional.of(model2)).build());
+        long used2 = usedAfterGc();
+
+        // keeps the namespaces reachable until after the measurement
+        if (namespace1.getNamespaceIndex() == null || namespace2.getNamespaceIndex() == null) {
+            throw new IllegalStateException();
+        }
+
+        long perVariable = ((used2 - used1) - (used1 - used0)) / count;
+        System.out.printf("%-8s %,14d bytes for %d variables  %6d bytes/variable%n",
+            name, used2 - used1, 2 * count, perVariable);
+    }
+
+    private static Hcd2Namespace newNamespace(Hcd2NamespaceConfig config) throws Exception {
+        OpcUaServer server = newServer();
+        return server.getNamespaceManager().registerAndAdd(
+            Hcd2Namespace.NAMESPACE_URI,
+            idx -> new Hcd2Namespace(server, idx, config));
+    }
+
+    // The server is never started, as in Hcd2NamespaceBenchmark
+    private static OpcUaServer newServer() throws Exception {
+        KeyStoreLoader loader = new KeyStoreLoader().load();
+
+        File securityTempDir = new File(System.getProperty("java.io.tmpdir"), "security");
+
+        return new OpcUaServer(OpcUaServerConfig.builder()
+            .setApplicationUri("urn:csw:opc:benchmarks")
+            .setApplicationName(LocalizedText.english("Hcd2Namespace footprint"))
+            .setCertificateManager(new DefaultCertificateManager(
+                loader.getServerKeyPair(),
+                loader.getServerCertificate()))
+            .setCertificateValidator(new DefaultCertificateValidator(securityTempDir))
+            .build());
+    }
+
+    private static long usedAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
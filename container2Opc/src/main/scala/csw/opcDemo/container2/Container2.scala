@@ -1,11 +1,16 @@
 package csw.opcDemo.container2
 
+import com.typesafe.config.ConfigFactory
+import csw.opcDemo.hcd2.{Hcd2OpcUaClientPool, Hcd2Worker}
 import csw.services.apps.containerCmd.ContainerCmd
 
 /**
  * Creates container2 based on resources/container2.conf
  */
 object Container2 extends App {
+  // Start connecting to the OPC UA server while the container starts: the HCDs share the client
+  Hcd2OpcUaClientPool.warmUp(Hcd2Worker.clientConfig(ConfigFactory.load()))
+
   // This defines the names that can be used with the --start option and the config files used ("" is the default entry)
   val m = Map(
     "" -> "container2.conf" // default value
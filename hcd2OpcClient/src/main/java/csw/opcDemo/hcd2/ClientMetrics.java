@@ -0,0 +1,420 @@
+package csw.opcDemo.hcd2;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the link between an Hcd2OpcUaClient and its server: write round-trip times, connect and
+ * reconnect durations, the lag of notifications behind their source and server timestamps, and the
+ * notification rate and interval of each monitored item.
+ * <p>
+ * Recording only increments LongAdders and records in HdrHistogram Recorders. Every interval a
+ * background task turns the histograms of the interval into a Snapshot, which HCDs can query with
+ * Hcd2OpcUaClient.getMetrics().getSnapshot(). Lags are computed against this host's clock, so they
+ * include any clock offset between the hosts (negative lags are counted as 0).
+ */
+public class ClientMetrics {
+
+    // Write round-trip times are recorded in microseconds, lags and intervals in milliseconds,
+    // with higher values counted as the maximum
+    private static final long MAX_WRITE_RTT_US = TimeUnit.SECONDS.toMicros(60);
+    private static final long MAX_LAG_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_ITEM_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Only this many monitored items are tracked individually
+    private static final int MAX_ITEMS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int intervalSeconds;
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final Recorder writeRtt = new Recorder(1, MAX_WRITE_RTT_US, 2);
+
+    private final LongAdder notifications = new LongAdder();
+    private final Recorder sourceLag = new Recorder(1, MAX_LAG_MS, 2);
+    private final Recorder serverLag = new Recorder(1, MAX_LAG_MS, 2);
+    private final Map<NodeId, ItemMetrics> items = new ConcurrentHashMap<>();
+
+    // Connection state (guarded by this)
+    private long connectMillis = -1;
+    private long inactiveSince = -1;
+    private int reconnects = 0;
+    private long lastReconnectMillis = -1;
+    private long maxReconnectMillis = -1;
+
+    // Used by the snapshot task only
+    private Histogram writeRttInterval;
+    private Histogram sourceLagInterval;
+    private Histogram serverLagInterval;
+    private long lastNotifications;
+
+    private volatile Snapshot snapshot = new Snapshot(this, 0, Collections.emptyList());
+    private ScheduledFuture<?> snapshotTask;
+
+    private static final class ItemMetrics {
+        final LongAdder notifications = new LongAdder();
+        final Recorder interval = new Recorder(1, MAX_ITEM_INTERVAL_MS, 1);
+        volatile long lastMillis;
+        long lastNotifications;
+        Histogram intervalHistogram;
+    }
+
+    /**
+     * @param intervalSeconds the period of the snapshots (rates and percentiles are per interval)
+     */
+    public ClientMetrics(int intervalSeconds) {
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+    }
+
+    /**
+     * Starts taking snapshots on the given executor
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (snapshotTask != null) return;
+        snapshotTask = executor.scheduleAtFixedRate(this::takeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+            snapshotTask = null;
+        }
+    }
+
+    /**
+     * Records a write request that was sent at startNanos (System.nanoTime()) and has been answered
+     */
+    public void recordWrite(long startNanos, boolean ok) {
+        writes.increment();
+        if (!ok) writeErrors.increment();
+        writeRtt.recordValue(Math.min(MAX_WRITE_RTT_US, Math.max(0, (System.nanoTime() - startNanos) / 1000)));
+    }
+
+    /**
+     * Records the time the initial connect took
+     */
+    public synchronized void recordConnect(long millis) {
+        connectMillis = millis;
+    }
+
+    /**
+     * Called when the session with the server was lost
+     */
+    public synchronized void sessionInactive() {
+        if (inactiveSince < 0) inactiveSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Called when a session with the server is active, which ends a reconnect if the session was lost
+     */
+    public synchronized void sessionActive() {
+        if (inactiveSince < 0) return;
+        lastReconnectMillis = System.currentTimeMillis() - inactiveSince;
+        maxReconnectMillis = Math.max(maxReconnectMillis, lastReconnectMillis);
+        reconnects++;
+        inactiveSince = -1;
+        logger.info("Reconnected after {} ms", lastReconnectMillis);
+    }
+
+    /**
+     * Records a notification of a value change of a monitored item
+     */
+    public void recordNotification(NodeId nodeId, DataValue value) {
+        long now = System.currentTimeMillis();
+        notifications.increment();
+        recordLag(sourceLag, now, value.getSourceTime());
+        recordLag(serverLag, now, value.getServerTime());
+
+        ItemMetrics item = items.get(nodeId);
+        if (item == null) {
+            if (items.size() >= MAX_ITEMS) return;
+            item = items.computeIfAbsent(nodeId, id -> new ItemMetrics());
+        }
+        item.notifications.increment();
+        long last = item.lastMillis;
+        item.lastMillis = now;
+        if (last != 0) item.interval.recordValue(Math.min(MAX_ITEM_INTERVAL_MS, Math.max(0, now - last)));
+    }
+
+    private static void recordLag(Recorder recorder, long now, DateTime time) {
+        if (time == null || time.getUtcTime() == 0) return;
+        recorder.recordValue(Math.min(MAX_LAG_MS, Math.max(0, now - time.getJavaTime())));
+    }
+
+    /**
+     * The statistics of the last interval
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // Called by the snapshot task only
+    private void takeSnapshot() {
+        try {
+            writeRttInterval = writeRtt.getIntervalHistogram(writeRttInterval);
+            sourceLagInterval = sourceLag.getIntervalHistogram(sourceLagInterval);
+            serverLagInterval = serverLag.getIntervalHistogram(serverLagInterval);
+
+            List<ItemStatistics> itemStatistics = new ArrayList<>(items.size());
+            items.forEach((nodeId, item) -> {
+                long total = item.notifications.sum();
+                item.intervalHistogram = item.interval.getIntervalHistogram(item.intervalHistogram);
+                itemStatistics.add(new ItemStatistics(nodeId, total,
+                    (double) (total - item.lastNotifications) / intervalSeconds,
+                    percentile(item.intervalHistogram, 50), max(item.intervalHistogram)));
+                item.lastNotifications = total;
+            });
+            itemStatistics.sort(Comparator.comparingDouble(ItemStatistics::getNotificationsPerSecond).reversed());
+
+            snapshot = new Snapshot(this, System.currentTimeMillis(), itemStatistics);
+            lastNotifications = snapshot.getNotifications();
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.error("Taking a client metrics snapshot failed", t);
+        }
+    }
+
+    private static double percentile(Histogram h, double percentile) {
+        return h == null || h.getTotalCount() == 0 ? 0 : h.getValueAtPercentile(percentile);
+    }
+
+    private static double max(Histogram h) {
+        return h == null || h.getTotalCount() == 0 ? 0 : h.getMaxValue();
+    }
+
+    /**
+     * The statistics of one interval (latencies of the interval, counts since the client was created)
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final long writes;
+        private final long writeErrors;
+        private final double writeRttP50;
+        private final double writeRttP99;
+        private final double writeRttMax;
+        private final long connectMillis;
+        private final int reconnects;
+        private final long lastReconnectMillis;
+        private final long maxReconnectMillis;
+        private final boolean connected;
+        private final long notifications;
+        private final double notificationsPerSecond;
+        private final double sourceLagP50;
+        private final double sourceLagP99;
+        private final double sourceLagMax;
+        private final double serverLagP50;
+        private final double serverLagP99;
+        private final double serverLagMax;
+        private final List<ItemStatistics> items;
+
+        // Called by the snapshot task (or the constructor, with time 0) only
+        private Snapshot(ClientMetrics m, long time, List<ItemStatistics> items) {
+            this.time = time;
+            this.writes = m.writes.sum();
+            this.writeErrors = m.writeErrors.sum();
+            this.writeRttP50 = percentile(m.writeRttInterval, 50);
+            this.writeRttP99 = percentile(m.writeRttInterval, 99);
+            this.writeRttMax = max(m.writeRttInterval);
+            synchronized (m) {
+                this.connectMillis = m.connectMillis;
+                this.reconnects = m.reconnects;
+                this.lastReconnectMillis = m.lastReconnectMillis;
+                this.maxReconnectMillis = m.maxReconnectMillis;
+                this.connected = m.inactiveSince < 0;
+            }
+            this.notifications = m.notifications.sum();
+            this.notificationsPerSecond = time == 0 ? 0 : (double) (notifications - m.lastNotifications) / m.intervalSeconds;
+            this.sourceLagP50 = percentile(m.sourceLagInterval, 50);
+            this.sourceLagP99 = percentile(m.sourceLagInterval, 99);
+            this.sourceLagMax = max(m.sourceLagInterval);
+            this.serverLagP50 = percentile(m.serverLagInterval, 50);
+            this.serverLagP99 = percentile(m.serverLagInterval, 99);
+            this.serverLagMax = max(m.serverLagInterval);
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        /**
+         * The time the snapshot was taken (ms since the epoch, 0 before the first snapshot)
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getWrites() {
+            return writes;
+        }
+
+        /**
+         * Write requests that failed or returned a bad status code
+         */
+        public long getWriteErrors() {
+            return writeErrors;
+        }
+
+        /**
+         * Median write round-trip time in the interval (microseconds)
+         */
+        public double getWriteRttP50() {
+            return writeRttP50;
+        }
+
+        public double getWriteRttP99() {
+            return writeRttP99;
+        }
+
+        public double getWriteRttMax() {
+            return writeRttMax;
+        }
+
+        /**
+         * The time the initial connect took (ms, -1 if not connected yet)
+         */
+        public long getConnectMillis() {
+            return connectMillis;
+        }
+
+        /**
+         * The number of times the session was lost and became active again
+         */
+        public int getReconnects() {
+            return reconnects;
+        }
+
+        /**
+         * The time the session was down in the last reconnect (ms, -1 if none)
+         */
+        public long getLastReconnectMillis() {
+            return lastReconnectMillis;
+        }
+
+        public long getMaxReconnectMillis() {
+            return maxReconnectMillis;
+        }
+
+        /**
+         * False while the session with the server is lost
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public long getNotifications() {
+            return notifications;
+        }
+
+        public double getNotificationsPerSecond() {
+            return notificationsPerSecond;
+        }
+
+        /**
+         * Median time from a value's source timestamp to the receipt of its notification in the interval (ms)
+         */
+        public double getSourceLagP50() {
+            return sourceLagP50;
+        }
+
+        public double getSourceLagP99() {
+            return sourceLagP99;
+        }
+
+        public double getSourceLagMax() {
+            return sourceLagMax;
+        }
+
+        /**
+         * Median time from a value's server timestamp to the receipt of its notification in the interval (ms)
+         */
+        public double getServerLagP50() {
+            return serverLagP50;
+        }
+
+        public double getServerLagP99() {
+            return serverLagP99;
+        }
+
+        public double getServerLagMax() {
+            return serverLagMax;
+        }
+
+        /**
+         * The monitored items, busiest first
+         */
+        public List<ItemStatistics> getItems() {
+            return items;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("writes=%d (errors=%d) rtt p50/p99/max=%.0f/%.0f/%.0fus, connect=%dms, " +
+                    "reconnects=%d (last=%dms), notifications=%d (%.1f/s) lag p50/p99/max source=%.0f/%.0f/%.0fms " +
+                    "server=%.0f/%.0f/%.0fms",
+                writes, writeErrors, writeRttP50, writeRttP99, writeRttMax, connectMillis,
+                reconnects, lastReconnectMillis, notifications, notificationsPerSecond,
+                sourceLagP50, sourceLagP99, sourceLagMax, serverLagP50, serverLagP99, serverLagMax);
+        }
+    }
+
+    /**
+     * The notification count and rate of a monitored item, and the intervals between its notifications (ms)
+     */
+    public static final class ItemStatistics {
+        private final NodeId nodeId;
+        private final long notifications;
+        private final double notificationsPerSecond;
+        private final double intervalP50;
+        private final double intervalMax;
+
+        ItemStatistics(NodeId nodeId, long notifications, double notificationsPerSecond,
+                       double intervalP50, double intervalMax) {
+            this.nodeId = nodeId;
+            this.notifications = notifications;
+            this.notificationsPerSecond = notificationsPerSecond;
+            this.intervalP50 = intervalP50;
+            this.intervalMax = intervalMax;
+        }
+
+        public NodeId getNodeId() {
+            return nodeId;
+        }
+
+        public long getNotifications() {
+            return notifications;
+        }
+
+        public double getNotificationsPerSecond() {
+            return notificationsPerSecond;
+        }
+
+        public double getIntervalP50() {
+            return intervalP50;
+        }
+
+        public double getIntervalMax() {
+            return intervalMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d (%.1f/s) interval p50/max=%.0f/%.0fms",
+                nodeId.toParseableString(), notifications, notificationsPerSecond, intervalP50, intervalMax);
+        }
+    }
+}
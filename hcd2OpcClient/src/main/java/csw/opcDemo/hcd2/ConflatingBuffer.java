@@ -0,0 +1,65 @@
+package csw.opcDemo.hcd2;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps only the latest value per key until the consumer takes them, so that a burst of notifications
+ * becomes a single update. Used to pass monitored item values from Milo's notification threads to an actor:
+ * the signal (for example sending the actor a message) runs once when the first value arrives after drain(),
+ * so there is at most one pending message per buffer however many values arrive.
+ */
+public class ConflatingBuffer<K, V> {
+
+    private final Runnable signal;
+
+    // Guarded by this
+    private final Map<K, V> latest = new LinkedHashMap<>();
+    private long received;
+    private long conflated;
+
+    /**
+     * @param signal called (on the producer's thread) when a value arrives in an empty buffer
+     */
+    public ConflatingBuffer(Runnable signal) {
+        this.signal = signal;
+    }
+
+    /**
+     * Sets the latest value of a key, replacing a value not taken yet
+     */
+    public void put(K key, V value) {
+        boolean wasEmpty;
+        synchronized (this) {
+            wasEmpty = latest.isEmpty();
+            if (latest.put(key, value) != null) conflated++;
+            received++;
+        }
+        if (wasEmpty) signal.run();
+    }
+
+    /**
+     * Returns the latest values (in the order their keys first arrived) and empties the buffer
+     */
+    public synchronized Map<K, V> drain() {
+        if (latest.isEmpty()) return Collections.emptyMap();
+        Map<K, V> values = new LinkedHashMap<>(latest);
+        latest.clear();
+        return values;
+    }
+
+    /**
+     * The number of values put so far
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * The number of values replaced by a newer one before they were taken
+     */
+    public synchronized long getConflated() {
+        return conflated;
+    }
+}
@@ -1,71 +1,218 @@
 package csw.opcDemo.hcd2;
 
 import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.SessionActivityListener;
+import org.eclipse.milo.opcua.sdk.client.api.UaSession;
 import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
 import org.eclipse.milo.opcua.sdk.client.api.identity.AnonymousProvider;
 import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
-import org.eclipse.milo.opcua.stack.client.UaTcpStackClient;
 import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.Stack;
 import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
 import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
-import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
 import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
 import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
 import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
-import com.google.common.collect.ImmutableList;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import com.google.common.collect.Lists;
+import csw.opc.client.EndpointCache;
+import csw.opc.client.MonitoringOptions;
+import csw.opc.client.SharedSubscriptions;
 import csw.opc.server.Hcd2Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
-import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * Provides client access to HCD's OPC UA server
  */
 public class Hcd2OpcUaClient {
-    private static final int NAMESPACE = 2;
+    // Publishing interval of the subscription and sampling interval of the monitored items (ms)
+    private static final double PUBLISHING_INTERVAL = 1000.0;
+    private static final double SAMPLING_INTERVAL = 1000.0;
+    private static final MonitoringOptions DEFAULT_MONITORING_OPTIONS =
+            MonitoringOptions.builder().setSamplingInterval(SAMPLING_INTERVAL).build();
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final KeyStoreLoader loader = new KeyStoreLoader();
-    private final AtomicLong clientHandles = new AtomicLong(1L);
+    // Used when the server does not publish a MaxNodesPerWrite operation limit
+    private static final int DEFAULT_MAX_NODES_PER_WRITE = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(Hcd2OpcUaClient.class);
+
+    private final Hcd2OpcUaClientConfig config;
     private final OpcUaClient client;
+    private final SharedSubscriptions subscriptions;
+    private final int maxNodesPerWrite;
+    private final int maxWritesInFlight;
+    private final NodeIdCache nodeIds;
+    private final ClientMetrics metrics;
+
+    // State for pipelined writes (guarded by writeLock)
+    private final Object writeLock = new Object();
+    private final Map<NodeId, CompletableFuture<StatusCode>> lastWrites = new HashMap<>();
+    private final Queue<Runnable> waitingWrites = new ArrayDeque<>();
+    private int writesInFlight = 0;
+    // Window slots freed by completed writes, not yet handed to a waiting write, and whether a thread is handing them
+    private int freedSlots = 0;
+    private boolean handingOff = false;
 
     public Hcd2OpcUaClient() throws Exception {
-        client = createClient();
-        // synchronous connect
-        client.connect().get();
+        this(Hcd2OpcUaClientConfig.builder().build());
     }
 
-    private OpcUaClient createClient() throws Exception {
-        SecurityPolicy securityPolicy = SecurityPolicy.None;
+    /**
+     * @param maxWritesInFlight the maximum number of writes from setValueAsync() sent to the server
+     *                          and not yet answered; further writes are queued until one completes
+     */
+    public Hcd2OpcUaClient(int maxWritesInFlight) throws Exception {
+        this(Hcd2OpcUaClientConfig.builder().setMaxWritesInFlight(maxWritesInFlight).build());
+    }
+
+    /**
+     * Connects to the server and resolves the NodeIds of the configured variables
+     * (see NodeIdCache), blocking the caller. See connect(Hcd2OpcUaClientConfig).
+     */
+    public Hcd2OpcUaClient(Hcd2OpcUaClientConfig config) throws Exception {
+        this(config, System.nanoTime());
+    }
 
-        EndpointDescription[] endpoints = UaTcpStackClient.getEndpoints("opc.tcp://localhost:12686/example").get();
+    private Hcd2OpcUaClient(Hcd2OpcUaClientConfig config, long connectStart) throws Exception {
+        this(config, await(connectClient(config)), connectStart);
+    }
+
+    // Sets up a connected client (disconnects it if that fails)
+    private Hcd2OpcUaClient(Hcd2OpcUaClientConfig config, OpcUaClient client, long connectStart) throws Exception {
+        this.config = config;
+        this.maxWritesInFlight = config.getMaxWritesInFlight();
+        this.client = client;
+        metrics = new ClientMetrics(config.getMetricsIntervalSeconds());
+        subscriptions = new SharedSubscriptions(client, metrics::recordNotification);
+        metrics.recordConnect(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+        try {
+            nodeIds = NodeIdCache.resolve(client, Hcd2Namespace.NAMESPACE_URI, Hcd2Namespace.NAMESPACE_PREFIX,
+                    config.getVariables(), config.getNodeIdCacheFile());
+        } catch (Exception ex) {
+            client.disconnect();
+            throw ex;
+        }
+        maxNodesPerWrite = readMaxNodesPerWrite();
+        client.addSessionActivityListener(new SessionActivityListener() {
+            @Override
+            public void onSessionActive(UaSession session) {
+                metrics.sessionActive();
+            }
+
+            @Override
+            public void onSessionInactive(UaSession session) {
+                metrics.sessionInactive();
+            }
+        });
+        metrics.start(Stack.sharedScheduledExecutor());
+    }
+
+    /**
+     * Connects to the server and resolves the NodeIds of the configured variables without blocking the caller.
+     * If any step fails, the returned future fails and the client is disconnected, so nothing needs to be
+     * cleaned up.
+     */
+    public static CompletableFuture<Hcd2OpcUaClient> connect(Hcd2OpcUaClientConfig config) {
+        long connectStart = System.nanoTime();
+        // resolving the NodeIds takes a few requests, which are not made on the stack's threads
+        return connectClient(config).thenApplyAsync(client -> {
+            try {
+                return new Hcd2OpcUaClient(config, client, connectStart);
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    // Opens a session with the cached endpoint, if there is one (see EndpointCache). If that fails, the server
+    // is asked for its endpoints again, and the connection is retried only if the endpoint has changed.
+    private static CompletableFuture<OpcUaClient> connectClient(Hcd2OpcUaClientConfig config) {
+        String endpointUrl = config.getEndpointUrl();
+        SecurityPolicy securityPolicy = config.getSecurityPolicy();
+        Optional<File> cacheFile = config.getEndpointCacheFile();
+
+        Optional<EndpointDescription> cached = EndpointCache.get(endpointUrl, securityPolicy, cacheFile);
+        if (!cached.isPresent()) {
+            return EndpointCache.discover(endpointUrl, securityPolicy, cacheFile).thenCompose(endpoint -> connectClient(endpoint));
+        }
+
+        return connectClient(cached.get()).handle((client, ex) -> {
+            if (ex == null) return CompletableFuture.completedFuture(client);
+
+            return EndpointCache.discover(endpointUrl, securityPolicy, cacheFile).handle((endpoint, ex2) -> {
+                if (endpoint == null || EndpointCache.sameEndpoint(endpoint, cached.get())) {
+                    // the server is down, or the endpoint was not the problem
+                    throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                }
+                logger.info("Endpoint of {} has changed, connecting again", endpointUrl);
+                return connectClient(endpoint);
+            }).thenCompose(f -> f);
+        }).thenCompose(f -> f);
+    }
+
+    // Opens a session with the given endpoint, disconnecting the client if the session can't be opened
+    private static CompletableFuture<OpcUaClient> connectClient(EndpointDescription endpoint) {
+        OpcUaClient client;
+        try {
+            client = createClient(endpoint);
+        } catch (Exception ex) {
+            CompletableFuture<OpcUaClient> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return client.connect().handle((c, ex) -> {
+            if (ex != null) {
+                // otherwise the stack keeps its channel and threads (and keeps trying to reconnect)
+                client.disconnect();
+                throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+            }
+            return client;
+        });
+    }
 
-        EndpointDescription endpoint = Arrays.stream(endpoints)
-          .filter(e -> e.getSecurityPolicyUri().equals(securityPolicy.getSecurityPolicyUri()))
-          .findFirst().orElseThrow(() -> new Exception("no desired endpoints returned"));
+    // Waits for a future, throwing the cause of a failure
+    private static <T> T await(CompletableFuture<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        }
+    }
 
-        logger.info("Using endpoint: {} [{}]", endpoint.getEndpointUrl(), securityPolicy);
+    private static OpcUaClient createClient(EndpointDescription endpoint) throws Exception {
+        logger.info("Using endpoint: {} [{}]", endpoint.getEndpointUrl(), endpoint.getSecurityPolicyUri());
 
+        KeyStoreLoader loader = new KeyStoreLoader();
         loader.load();
 
-        OpcUaClientConfig config = OpcUaClientConfig.builder()
+        OpcUaClientConfig clientConfig = OpcUaClientConfig.builder()
           .setApplicationName(LocalizedText.english("eclipse milo opc-ua client"))
           .setApplicationUri("urn:eclipse:milo:examples:client")
           .setCertificate(loader.getClientCertificate())
@@ -75,61 +222,326 @@ public class Hcd2OpcUaClient {
           .setRequestTimeout(uint(5000))
           .build();
 
-        return new OpcUaClient(config);
+        return new OpcUaClient(clientConfig);
 
     }
 
-    public void subscribe(String name, Consumer<DataValue> valueConsumer) throws Exception {
+    // Reads the server's MaxNodesPerWrite operation limit (0 or missing means no limit)
+    private int readMaxNodesPerWrite() {
+        try {
+            DataValue value = client.readValue(0.0, TimestampsToReturn.Neither,
+                    Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerWrite).get();
+            Object limit = value.getValue().getValue();
+            if (limit instanceof UInteger && ((UInteger) limit).longValue() > 0) {
+                return (int) Math.min(((UInteger) limit).longValue(), Integer.MAX_VALUE);
+            }
+        } catch (Exception ex) {
+            logger.warn("Could not read MaxNodesPerWrite from server: {}", ex.getMessage());
+        }
+        return DEFAULT_MAX_NODES_PER_WRITE;
+    }
 
-        // create a subscription and a monitored item
-        UaSubscription subscription = client.getSubscriptionManager().createSubscription(1000.0).get();
+    public Hcd2OpcUaClientConfig getConfig() {
+        return config;
+    }
 
-        NodeId nodeId = new NodeId(NAMESPACE, Hcd2Namespace.NAMESPACE_PREFIX + name);
+    /**
+     * Write round-trip times, reconnects and notification lag of this client
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
 
-        ReadValueId readValueId = new ReadValueId(nodeId,
-                AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+    /**
+     * Adds a listener that is told when the session with the server is lost and when it is active again
+     * (the client reconnects by itself, and restores its subscriptions)
+     */
+    public void addSessionActivityListener(SessionActivityListener listener) {
+        client.addSessionActivityListener(listener);
+    }
 
-        // client handle must be unique per item
-        UInteger clientHandle = uint(clientHandles.getAndIncrement());
+    public void removeSessionActivityListener(SessionActivityListener listener) {
+        client.removeSessionActivityListener(listener);
+    }
 
-        MonitoringParameters parameters = new MonitoringParameters(
-                clientHandle,
-                1000.0,     // sampling interval
-                null,       // filter, null means use default
-                uint(10),   // queue size
-                true);      // discard oldest
+    /**
+     * Closes the session with the server
+     */
+    public CompletableFuture<Void> disconnect() {
+        metrics.stop();
+        return client.disconnect().thenAccept(c -> logger.info("Disconnected from {}", config.getEndpointUrl()));
+    }
 
-        MonitoredItemCreateRequest request = new MonitoredItemCreateRequest(
-                readValueId, MonitoringMode.Reporting, parameters);
+    private NodeId nodeId(String name) {
+        return nodeIds.get(name);
+    }
+
+    public void subscribe(String name, Consumer<DataValue> valueConsumer) throws Exception {
+        subscribe(Collections.singletonMap(name, valueConsumer));
+    }
+
+    /**
+     * Subscribes to a variable with the given sampling interval, queue and data change filter,
+     * for example a deadband, so that noise on an analog value is not reported
+     */
+    public void subscribe(String name, MonitoringOptions options, Consumer<DataValue> valueConsumer) throws Exception {
+        subscribe(Collections.singletonMap(name, valueConsumer), options);
+    }
 
-        List<UaMonitoredItem> items = subscription
-                .createMonitoredItems(TimestampsToReturn.Both, newArrayList(request)).get();
+    /**
+     * Subscribes to several variables at once. All items share one subscription and are
+     * created with a single request.
+     *
+     * @param valueConsumers maps variable names to the consumers of their value changes
+     */
+    public void subscribe(Map<String, Consumer<DataValue>> valueConsumers) throws Exception {
+        subscribe(valueConsumers, DEFAULT_MONITORING_OPTIONS);
+    }
 
-        // do something with the value updates
-        UaMonitoredItem item = items.get(0);
-        item.setValueConsumer(valueConsumer);
+    /**
+     * Subscribes to several variables at once, with the same monitoring options.
+     * All items share one subscription and are created with a single request.
+     *
+     * @param valueConsumers maps variable names to the consumers of their value changes
+     * @param options        the sampling interval, queue and data change filter of the items
+     */
+    public void subscribe(Map<String, Consumer<DataValue>> valueConsumers, MonitoringOptions options) throws Exception {
+        await(subscribeAsync(valueConsumers, options));
+    }
+
+    /**
+     * Subscribes to several variables at once with the default monitoring options, without blocking the caller
+     *
+     * @return a future holding the created monitored items (for unsubscribeAsync)
+     */
+    public CompletableFuture<List<UaMonitoredItem>> subscribeAsync(Map<String, Consumer<DataValue>> valueConsumers) {
+        return subscribeAsync(valueConsumers, DEFAULT_MONITORING_OPTIONS);
+    }
+
+    /**
+     * Subscribes to several variables at once, with the same monitoring options, without blocking the caller
+     *
+     * @return a future holding the created monitored items (for unsubscribeAsync)
+     */
+    public CompletableFuture<List<UaMonitoredItem>> subscribeAsync(Map<String, Consumer<DataValue>> valueConsumers,
+                                                                   MonitoringOptions options) {
+        Map<NodeId, Consumer<DataValue>> items = new LinkedHashMap<>();
+        valueConsumers.forEach((name, valueConsumer) -> items.put(nodeId(name), valueConsumer));
+
+        return subscriptions.subscribe(items, PUBLISHING_INTERVAL, options);
+    }
+
+    /**
+     * Deletes monitored items returned by subscribeAsync. Since the client may be shared, a user that
+     * gives it up should delete its items first, so that their consumers are no longer called.
+     *
+     * @return a future that completes when the server deleted the items
+     */
+    public CompletableFuture<Void> unsubscribeAsync(List<UaMonitoredItem> items) {
+        return subscriptions.unsubscribe(items);
     }
 
     // XXX just set the value
     public void setValue(String name, Object value) throws Exception {
-        Variant v = new Variant(value);
+        // block for the result
+        setValueAsync(name, value).get();
+    }
 
+    /**
+     * Sets the value of a variable without blocking the caller.
+     * Writes to the same variable are sent one after the other, in call order, while writes to
+     * different variables may be in flight at the same time (up to maxWritesInFlight).
+     *
+     * @return a future holding the status code returned by the server
+     */
+    public CompletableFuture<StatusCode> setValueAsync(String name, Object value) {
         // don't write status or timestamps
-        DataValue dv = new DataValue(v, null, null);
+        return setValueAsync(new WriteValue(nodeId(name), AttributeId.Value.uid(), null,
+                new DataValue(new Variant(value), null, null)));
+    }
 
-        List<NodeId> nodeIds = ImmutableList.of(new NodeId(NAMESPACE, Hcd2Namespace.NAMESPACE_PREFIX + name));
+    /**
+     * Returns a handle for writing the given variable, with its NodeId and data type resolved once
+     * (see VariableHandle).
+     *
+     * @param name the variable name
+     * @param type the Java type of the values that will be written
+     * @throws IllegalArgumentException if the variable's built-in data type is not backed by the given type
+     */
+    public <T> VariableHandle<T> variable(String name, Class<T> type) throws Exception {
+        return await(variableAsync(name, type));
+    }
+
+    /**
+     * Returns a handle for writing the given variable (see variable(String, Class)) without blocking the caller
+     */
+    public <T> CompletableFuture<VariableHandle<T>> variableAsync(String name, Class<T> type) {
+        NodeId nodeId = nodeId(name);
+
+        return client.read(0.0, TimestampsToReturn.Neither,
+                Collections.singletonList(nodeId), Collections.singletonList(AttributeId.DataType.uid())).thenApply(values -> {
+            DataValue value = values.get(0);
 
-        // write asynchronously....
-        CompletableFuture<List<StatusCode>> f = client.writeValues(nodeIds, ImmutableList.of(dv));
+            if (!value.getStatusCode().isGood()) {
+                throw new CompletionException(new Exception(
+                        "Could not read the data type of nodeId=" + nodeId + " (" + value.getStatusCode() + ")"));
+            }
 
-        // ...but block for the results so we write in order
-        List<StatusCode> statusCodes = f.get();
-        StatusCode status = statusCodes.get(0);
+            NodeId dataType = (NodeId) value.getValue().getValue();
+            Class<?> backingClass = BuiltinDataType.getBackingClass(dataType);
 
-        if (status.isGood()) {
-            logger.info("Wrote '{}' to nodeId={}", v, nodeIds.get(0));
-        } else {
-            logger.error("Write '{}' failed for nodeId={}", v, nodeIds.get(0));
+            if (backingClass != null && !backingClass.equals(type)) {
+                throw new IllegalArgumentException(
+                        "nodeId=" + nodeId + " holds " + backingClass.getSimpleName() + " values, not " + type.getSimpleName());
+            }
+
+            return new VariableHandle<>(this, nodeId, dataType, type);
+        });
+    }
+
+    // Pipelined write of a single value (see setValueAsync(String, Object))
+    CompletableFuture<StatusCode> setValueAsync(WriteValue writeValue) {
+        NodeId nodeId = writeValue.getNodeId();
+
+        CompletableFuture<StatusCode> f;
+        synchronized (writeLock) {
+            // start after the previous write to this node completed, whatever its outcome
+            CompletableFuture<StatusCode> previous = lastWrites.get(nodeId);
+            if (previous == null) {
+                f = sendWrite(writeValue);
+            } else {
+                f = previous.handle((status, ex) -> null).thenCompose(x -> sendWrite(writeValue));
+            }
+            lastWrites.put(nodeId, f);
+        }
+
+        CompletableFuture<StatusCode> result = f;
+        return result.whenComplete((status, ex) -> {
+            synchronized (writeLock) {
+                lastWrites.remove(nodeId, result);
+            }
+
+            if (status != null && status.isGood()) {
+                logger.info("Wrote '{}' to nodeId={}", writeValue.getValue().getValue(), nodeId);
+            } else {
+                logger.error("Write '{}' failed for nodeId={} ({})",
+                        writeValue.getValue().getValue(), nodeId, ex != null ? ex.getMessage() : status);
+            }
+        });
+    }
+
+    // Sends a single write once there is room in the in-flight window
+    private CompletableFuture<StatusCode> sendWrite(WriteValue writeValue) {
+        CompletableFuture<StatusCode> f = new CompletableFuture<>();
+
+        Runnable send = () -> {
+            long start = System.nanoTime();
+            client.write(Collections.singletonList(writeValue)).whenComplete((response, ex) -> {
+                metrics.recordWrite(start, ex == null && response.getResults()[0].isGood());
+                writeCompleted();
+                if (ex != null) {
+                    f.completeExceptionally(ex);
+                } else {
+                    f.complete(response.getResults()[0]);
+                }
+            });
+        };
+
+        boolean sendNow;
+        synchronized (writeLock) {
+            sendNow = writesInFlight < maxWritesInFlight;
+            if (sendNow) {
+                writesInFlight++;
+            } else {
+                waitingWrites.add(send);
+            }
         }
+        if (sendNow) send.run();
+
+        return f;
+    }
+
+    // Hands the freed window slot to the next waiting write, if any.
+    // When the session is down, writes fail on the calling thread, so a waiting write started here completes
+    // (and frees its slot) before run() returns. The slots are handed in a loop by one thread at a time,
+    // instead of recursing once per waiting write.
+    private void writeCompleted() {
+        synchronized (writeLock) {
+            freedSlots++;
+            if (handingOff) return;
+            handingOff = true;
+        }
+        while (true) {
+            Runnable next;
+            synchronized (writeLock) {
+                if (freedSlots == 0) {
+                    handingOff = false;
+                    return;
+                }
+                freedSlots--;
+                next = waitingWrites.poll();
+                if (next == null) writesInFlight--;
+            }
+            if (next != null) next.run();
+        }
+    }
+
+    /**
+     * Sets several variables with a single write request (split only if the server's
+     * MaxNodesPerWrite limit requires it) and waits for the results.
+     *
+     * @param values maps variable names to the values to write
+     * @return the status code for each variable name, in the iteration order of values
+     */
+    public Map<String, StatusCode> setValues(Map<String, Object> values) throws Exception {
+        List<String> names = new ArrayList<>(values.keySet());
+        List<WriteValue> writeValues = new ArrayList<>(names.size());
+
+        for (String name : names) {
+            // don't write status or timestamps
+            DataValue dv = new DataValue(new Variant(values.get(name)), null, null);
+            writeValues.add(new WriteValue(nodeId(name), AttributeId.Value.uid(), null, dv));
+        }
+
+        List<StatusCode> statusCodes = writeBatch(writeValues).get();
+
+        Map<String, StatusCode> results = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            StatusCode status = statusCodes.get(i);
+            results.put(names.get(i), status);
+
+            if (!status.isGood()) {
+                logger.error("Write '{}' failed for nodeId={} ({})",
+                        values.get(names.get(i)), writeValues.get(i).getNodeId(), status);
+            }
+        }
+        logger.info("Wrote {} values in {} request(s)", names.size(), requestCount(names.size()));
+
+        return results;
+    }
+
+    /**
+     * Sends the given writes in as few Write requests as the server's operation limits allow.
+     * The requests are sent one after the other, so the writes are applied in list order.
+     *
+     * @return a future holding one status code per write value, in the same order
+     */
+    public CompletableFuture<List<StatusCode>> writeBatch(List<WriteValue> writeValues) {
+        List<StatusCode> results = new ArrayList<>(writeValues.size());
+        CompletableFuture<Void> f = CompletableFuture.completedFuture(null);
+
+        for (List<WriteValue> chunk : Lists.partition(writeValues, maxNodesPerWrite)) {
+            f = f.thenCompose(v -> {
+                long start = System.nanoTime();
+                return client.write(chunk).whenComplete((response, ex) -> metrics.recordWrite(start,
+                        ex == null && Arrays.stream(response.getResults()).allMatch(StatusCode::isGood)));
+            }).thenAccept(response -> results.addAll(Arrays.asList(response.getResults())));
+        }
+
+        return f.thenApply(v -> results);
+    }
+
+    private int requestCount(int size) {
+        return (size + maxNodesPerWrite - 1) / maxNodesPerWrite;
     }
 }
@@ -0,0 +1,155 @@
+package csw.opcDemo.hcd2;
+
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Settings for Hcd2OpcUaClient. Use builder() to create one.
+ */
+public class Hcd2OpcUaClientConfig {
+
+    // The demo OPC UA server (see Hcd2OpcServer)
+    public static final String DEFAULT_ENDPOINT_URL = "opc.tcp://localhost:12686/example";
+
+    // Default number of pipelined writes that may be waiting for a response at once
+    public static final int DEFAULT_MAX_WRITES_IN_FLIGHT = 16;
+
+    // Default period of the client metrics snapshots (s)
+    public static final int DEFAULT_METRICS_INTERVAL_SECONDS = 10;
+
+    // The variables used by the HCDs
+    public static final List<String> DEFAULT_VARIABLES = Collections.unmodifiableList(
+            Arrays.asList("filter", "filterPos", "disperser", "disperserPos"));
+
+    private final String endpointUrl;
+    private final SecurityPolicy securityPolicy;
+    private final int maxWritesInFlight;
+    private final List<String> variables;
+    private final Optional<File> nodeIdCacheFile;
+    private final Optional<File> endpointCacheFile;
+    private final int metricsIntervalSeconds;
+
+    private Hcd2OpcUaClientConfig(Builder builder) {
+        this.endpointUrl = builder.endpointUrl;
+        this.securityPolicy = builder.securityPolicy;
+        this.maxWritesInFlight = builder.maxWritesInFlight;
+        this.variables = Collections.unmodifiableList(new ArrayList<>(builder.variables));
+        this.nodeIdCacheFile = builder.nodeIdCacheFile;
+        this.endpointCacheFile = builder.endpointCacheFile;
+        this.metricsIntervalSeconds = builder.metricsIntervalSeconds;
+    }
+
+    /**
+     * The URL of the OPC UA server's endpoint
+     */
+    public String getEndpointUrl() {
+        return endpointUrl;
+    }
+
+    /**
+     * The security policy of the endpoint to use
+     */
+    public SecurityPolicy getSecurityPolicy() {
+        return securityPolicy;
+    }
+
+    /**
+     * The maximum number of writes from setValueAsync() sent to the server and not yet answered;
+     * further writes are queued until one completes
+     */
+    public int getMaxWritesInFlight() {
+        return maxWritesInFlight;
+    }
+
+    /**
+     * The names of the variables whose NodeIds are resolved when the client connects
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * File where the resolved NodeIds are kept between runs, if any (see NodeIdCache)
+     */
+    public Optional<File> getNodeIdCacheFile() {
+        return nodeIdCacheFile;
+    }
+
+    /**
+     * File where the endpoint selected for the URL and security policy is kept between runs, if any
+     * (see EndpointCache; it is always cached in memory)
+     */
+    public Optional<File> getEndpointCacheFile() {
+        return endpointCacheFile;
+    }
+
+    /**
+     * The period of the client metrics snapshots (see ClientMetrics)
+     */
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String endpointUrl = DEFAULT_ENDPOINT_URL;
+        private SecurityPolicy securityPolicy = SecurityPolicy.None;
+        private int maxWritesInFlight = DEFAULT_MAX_WRITES_IN_FLIGHT;
+        private List<String> variables = DEFAULT_VARIABLES;
+        private Optional<File> nodeIdCacheFile = Optional.empty();
+        private Optional<File> endpointCacheFile = Optional.empty();
+        private int metricsIntervalSeconds = DEFAULT_METRICS_INTERVAL_SECONDS;
+
+        public Builder setEndpointUrl(String endpointUrl) {
+            this.endpointUrl = endpointUrl;
+            return this;
+        }
+
+        public Builder setSecurityPolicy(SecurityPolicy securityPolicy) {
+            this.securityPolicy = securityPolicy;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if maxWritesInFlight is less than 1
+         */
+        public Builder setMaxWritesInFlight(int maxWritesInFlight) {
+            if (maxWritesInFlight < 1) throw new IllegalArgumentException("maxWritesInFlight must be at least 1");
+            this.maxWritesInFlight = maxWritesInFlight;
+            return this;
+        }
+
+        public Builder setVariables(List<String> variables) {
+            this.variables = variables;
+            return this;
+        }
+
+        public Builder setNodeIdCacheFile(Optional<File> nodeIdCacheFile) {
+            this.nodeIdCacheFile = nodeIdCacheFile;
+            return this;
+        }
+
+        public Builder setEndpointCacheFile(Optional<File> endpointCacheFile) {
+            this.endpointCacheFile = endpointCacheFile;
+            return this;
+        }
+
+        public Builder setMetricsIntervalSeconds(int metricsIntervalSeconds) {
+            this.metricsIntervalSeconds = metricsIntervalSeconds;
+            return this;
+        }
+
+        public Hcd2OpcUaClientConfig build() {
+            return new Hcd2OpcUaClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package csw.opcDemo.hcd2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A JVM wide pool of connected Hcd2OpcUaClients, so that all HCDs in a container share one
+ * session per OPC UA server endpoint and security policy.
+ * Clients are reference counted and disconnected when the last HCD releases them.
+ */
+public class Hcd2OpcUaClientPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(Hcd2OpcUaClientPool.class);
+
+    private static class Entry {
+        final CompletableFuture<Hcd2OpcUaClient> client;
+        int refCount = 0;
+
+        Entry(CompletableFuture<Hcd2OpcUaClient> client) {
+            this.client = client;
+        }
+    }
+
+    // Clients by endpoint URL and security policy (guarded by the map)
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    private Hcd2OpcUaClientPool() {
+    }
+
+    /**
+     * Returns the shared client for the configured endpoint and security policy, connecting it if needed.
+     * Each successful acquire must be matched by a call to release(). If the connection fails, the
+     * returned future fails and nothing needs to be released.
+     *
+     * @param config the other settings are only used if a new client is created
+     */
+    public static CompletableFuture<Hcd2OpcUaClient> acquire(Hcd2OpcUaClientConfig config) {
+        synchronized (entries) {
+            Entry entry = entry(config);
+            entry.refCount++;
+            return entry.client;
+        }
+    }
+
+    /**
+     * Releases a client returned by acquire(). The client is disconnected when no one else uses it.
+     */
+    public static void release(Hcd2OpcUaClient client) {
+        String key = key(client.getConfig());
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.client.getNow(null) != client) return;
+            if (--entry.refCount > 0) return;
+            entries.remove(key);
+        }
+        logger.info("Last user released the client for {}", key);
+        client.disconnect();
+    }
+
+    /**
+     * Starts connecting a shared client in the background, so that it is ready when the HCDs acquire it.
+     * Calls for different endpoints connect in parallel.
+     */
+    public static CompletableFuture<Hcd2OpcUaClient> warmUp(Hcd2OpcUaClientConfig config) {
+        synchronized (entries) {
+            return entry(config).client;
+        }
+    }
+
+    // Must be called with the entries lock held
+    private static Entry entry(Hcd2OpcUaClientConfig config) {
+        String key = key(config);
+        Entry entry = entries.get(key);
+        if (entry != null) return entry;
+
+        logger.info("Connecting shared client for {}", key);
+        Entry newEntry = new Entry(Hcd2OpcUaClient.connect(config));
+        entries.put(key, newEntry);
+
+        // forget failed connections (the client was already disposed of) so that the next acquire tries again
+        newEntry.client.whenComplete((client, ex) -> {
+            if (ex != null) {
+                logger.warn("Failed to connect shared client for {}: {}", key, ex.getMessage());
+                synchronized (entries) {
+                    entries.remove(key, newEntry);
+                }
+            }
+        });
+
+        return newEntry;
+    }
+
+    private static String key(Hcd2OpcUaClientConfig config) {
+        return config.getEndpointUrl() + " [" + config.getSecurityPolicy() + "]";
+    }
+}
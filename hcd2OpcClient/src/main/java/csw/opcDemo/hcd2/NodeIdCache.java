@@ -0,0 +1,228 @@
+package csw.opcDemo.hcd2;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowsePath;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowsePathResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowsePathTarget;
+import org.eclipse.milo.opcua.stack.core.types.structured.RelativePath;
+import org.eclipse.milo.opcua.stack.core.types.structured.RelativePathElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Resolves variable names to NodeIds when a client connects, so that nothing depends on the
+ * server's namespace table or on the format of its string NodeIds:
+ * the namespace index is looked up by URI in the server's NamespaceArray, and the browse paths of
+ * the variables are translated with a single TranslateBrowsePathsToNodeIds request.
+ * <p>
+ * The translated NodeIds can be kept in a properties file (without the namespace index, which may
+ * change between server restarts), so that a reconnecting client only needs to read the NamespaceArray and
+ * the browse names of the cached nodes. The NodeIds of a server may change when it restarts (for example
+ * numeric NodeIds with a different model file), so cached NodeIds whose node is missing or has another
+ * browse name are translated again.
+ */
+public class NodeIdCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeIdCache.class);
+
+    // Property holding the namespace URI in the cache file
+    private static final String NAMESPACE_URI_KEY = "namespaceUri";
+
+    private final int namespaceIndex;
+    private final String pathPrefix;
+    private final Map<String, NodeId> nodeIds;
+
+    private NodeIdCache(int namespaceIndex, String pathPrefix, Map<String, NodeId> nodeIds) {
+        this.namespaceIndex = namespaceIndex;
+        this.pathPrefix = pathPrefix;
+        this.nodeIds = nodeIds;
+    }
+
+    /**
+     * Resolves the NodeIds of the given variables on a connected client.
+     *
+     * @param client       a connected client
+     * @param namespaceUri the URI of the namespace holding the variables
+     * @param pathPrefix   the browse path from the Objects folder to the variables, as browse names
+     *                     separated by '/' and ending with '/' (for example "HelloWorld/ScalarTypes/")
+     * @param names        the browse names of the variables to resolve
+     * @param cacheFile    file where the translated NodeIds are kept between runs, if any
+     * @throws Exception if the namespace URI is not in the server's NamespaceArray
+     */
+    public static NodeIdCache resolve(OpcUaClient client, String namespaceUri, String pathPrefix,
+                                      List<String> names, Optional<File> cacheFile) throws Exception {
+        int namespaceIndex = namespaceIndex(client, namespaceUri);
+
+        Map<String, NodeId> nodeIds = new HashMap<>();
+        cacheFile.ifPresent(file -> load(file, namespaceUri, namespaceIndex, nodeIds));
+        boolean stale = !nodeIds.isEmpty() && !verify(client, namespaceIndex, pathPrefix, nodeIds);
+
+        List<String> missing = new ArrayList<>();
+        for (String name : names) {
+            if (!nodeIds.containsKey(name)) missing.add(name);
+        }
+
+        if (!missing.isEmpty()) {
+            translate(client, namespaceIndex, pathPrefix, missing, nodeIds);
+        }
+        if (!missing.isEmpty() || stale) {
+            cacheFile.ifPresent(file -> save(file, namespaceUri, nodeIds));
+        }
+
+        logger.info("Resolved {} NodeIds in namespace {} ({}), {} from the cache file",
+                nodeIds.size(), namespaceIndex, namespaceUri, names.size() - missing.size());
+
+        return new NodeIdCache(namespaceIndex, pathPrefix, nodeIds);
+    }
+
+    /**
+     * Returns the index of the given namespace URI in the server's NamespaceArray
+     *
+     * @throws Exception if the server does not have the namespace
+     */
+    public static int namespaceIndex(OpcUaClient client, String namespaceUri) throws Exception {
+        DataValue value = client.readValue(0.0, TimestampsToReturn.Neither, Identifiers.Server_NamespaceArray).get();
+        String[] namespaces = (String[]) value.getValue().getValue();
+
+        int index = namespaces == null ? -1 : Arrays.asList(namespaces).indexOf(namespaceUri);
+        if (index < 0) {
+            throw new Exception("Namespace " + namespaceUri + " not found on server (has "
+                    + Arrays.toString(namespaces) + ")");
+        }
+        return index;
+    }
+
+    public int getNamespaceIndex() {
+        return namespaceIndex;
+    }
+
+    /**
+     * Returns the NodeId of the given variable. Variables that were not resolved on connect get the
+     * server's default string NodeId (the browse path) in the resolved namespace, which is wrong if the
+     * server uses numeric NodeIds.
+     */
+    public NodeId get(String name) {
+        NodeId nodeId = nodeIds.get(name);
+        return nodeId != null ? nodeId : new NodeId(namespaceIndex, pathPrefix + name);
+    }
+
+    // Translates the browse paths of the given variables with one request and adds the results to nodeIds
+    private static void translate(OpcUaClient client, int namespaceIndex, String pathPrefix,
+                                  List<String> names, Map<String, NodeId> nodeIds) throws Exception {
+        List<BrowsePath> browsePaths = new ArrayList<>(names.size());
+        for (String name : names) {
+            browsePaths.add(new BrowsePath(Identifiers.ObjectsFolder, relativePath(namespaceIndex, pathPrefix + name)));
+        }
+
+        BrowsePathResult[] results = client.translateBrowsePaths(browsePaths).get().getResults();
+
+        for (int i = 0; i < names.size(); i++) {
+            BrowsePathResult result = results[i];
+            BrowsePathTarget[] targets = result.getTargets();
+
+            Optional<NodeId> nodeId = result.getStatusCode().isGood() && targets != null && targets.length > 0
+                    ? targets[0].getTargetId().local()
+                    : Optional.empty();
+
+            if (nodeId.isPresent()) {
+                nodeIds.put(names.get(i), nodeId.get());
+            } else {
+                logger.warn("Could not translate browse path {}{} ({})", pathPrefix, names.get(i), result.getStatusCode());
+            }
+        }
+    }
+
+    // Reads the browse names of the cached nodes with one request, and removes the nodes that don't exist or
+    // have another browse name than their variable. Returns false if any were removed.
+    private static boolean verify(OpcUaClient client, int namespaceIndex, String pathPrefix,
+                                  Map<String, NodeId> nodeIds) throws Exception {
+        List<String> names = new ArrayList<>(nodeIds.keySet());
+        List<NodeId> cached = new ArrayList<>(names.size());
+        for (String name : names) cached.add(nodeIds.get(name));
+
+        List<DataValue> values = client.read(0.0, TimestampsToReturn.Neither, cached,
+                Collections.nCopies(cached.size(), AttributeId.BrowseName.uid())).get();
+
+        boolean valid = true;
+        for (int i = 0; i < names.size(); i++) {
+            String path = pathPrefix + names.get(i);
+            QualifiedName expected = new QualifiedName(namespaceIndex, path.substring(path.lastIndexOf('/') + 1));
+            DataValue value = values.get(i);
+            Object found = value.getStatusCode().isGood() ? value.getValue().getValue() : value.getStatusCode();
+            if (!expected.equals(found)) {
+                logger.warn("Cached NodeId {} of {} is no longer valid ({}), translating its browse path again",
+                        cached.get(i), path, found);
+                nodeIds.remove(names.get(i));
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    // Follows hierarchical references from browse name to browse name, all in the given namespace
+    private static RelativePath relativePath(int namespaceIndex, String path) {
+        String[] browseNames = path.split("/");
+        RelativePathElement[] elements = new RelativePathElement[browseNames.length];
+        for (int i = 0; i < browseNames.length; i++) {
+            elements[i] = new RelativePathElement(Identifiers.HierarchicalReferences, false, true,
+                    new QualifiedName(namespaceIndex, browseNames[i]));
+        }
+        return new RelativePath(elements);
+    }
+
+    // Adds the NodeIds kept in the file to nodeIds, if they were saved for the same namespace
+    private static void load(File file, String namespaceUri, int namespaceIndex, Map<String, NodeId> nodeIds) {
+        if (!file.exists()) return;
+
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        } catch (IOException ex) {
+            logger.warn("Could not read NodeId cache file {}: {}", file, ex.getMessage());
+            return;
+        }
+
+        if (!namespaceUri.equals(properties.getProperty(NAMESPACE_URI_KEY))) return;
+
+        for (String name : properties.stringPropertyNames()) {
+            if (name.equals(NAMESPACE_URI_KEY)) continue;
+            NodeId nodeId = NodeId.parseSafe("ns=" + namespaceIndex + ";" + properties.getProperty(name)).orElse(null);
+            if (nodeId != null) nodeIds.put(name, nodeId);
+        }
+    }
+
+    // Saves the NodeIds without their namespace index
+    private static void save(File file, String namespaceUri, Map<String, NodeId> nodeIds) {
+        Properties properties = new Properties();
+        properties.setProperty(NAMESPACE_URI_KEY, namespaceUri);
+        nodeIds.forEach((name, nodeId) ->
+                properties.setProperty(name, nodeId.toParseableString().replaceFirst("^ns=\\d+;", "")));
+
+        try (Writer writer = new FileWriter(file)) {
+            properties.store(writer, "NodeIds resolved by " + NodeIdCache.class.getName());
+        } catch (IOException ex) {
+            logger.warn("Could not write NodeId cache file {}: {}", file, ex.getMessage());
+        }
+    }
+}
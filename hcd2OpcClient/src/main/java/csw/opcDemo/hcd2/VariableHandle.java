@@ -0,0 +1,90 @@
+package csw.opcDemo.hcd2;
+
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A typed handle for writing one OPC UA variable at a high rate. The NodeId and data type are
+ * resolved once, when the handle is created with Hcd2OpcUaClient.variable(), instead of on every write.
+ * Since the stack's request structures are immutable, the last WriteValue is reused when the same
+ * value is written again.
+ *
+ * Writes go through the same pipeline as Hcd2OpcUaClient.setValueAsync(), so they are ordered per node.
+ */
+public final class VariableHandle<T> {
+
+    private final Hcd2OpcUaClient client;
+    private final NodeId nodeId;
+    private final NodeId dataType;
+    private final Class<T> type;
+
+    // The last value written and the request that was built for it
+    private volatile CachedWrite lastWrite;
+
+    private static final class CachedWrite {
+        final Object value;
+        final WriteValue writeValue;
+
+        CachedWrite(Object value, WriteValue writeValue) {
+            this.value = value;
+            this.writeValue = writeValue;
+        }
+    }
+
+    VariableHandle(Hcd2OpcUaClient client, NodeId nodeId, NodeId dataType, Class<T> type) {
+        this.client = client;
+        this.nodeId = nodeId;
+        this.dataType = dataType;
+        this.type = type;
+    }
+
+    public NodeId getNodeId() {
+        return nodeId;
+    }
+
+    public NodeId getDataType() {
+        return dataType;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Writes the value without blocking the caller.
+     *
+     * @return a future holding the status code returned by the server
+     */
+    public CompletableFuture<StatusCode> setAsync(T value) {
+        CachedWrite cached = lastWrite;
+
+        if (cached == null || !Objects.equals(cached.value, value)) {
+            // don't write status or timestamps
+            WriteValue writeValue = new WriteValue(nodeId, AttributeId.Value.uid(), null,
+                    new DataValue(new Variant(value), null, null));
+            cached = new CachedWrite(value, writeValue);
+            lastWrite = cached;
+        }
+
+        return client.setValueAsync(cached.writeValue);
+    }
+
+    /**
+     * Writes the value and waits for the result.
+     */
+    public StatusCode set(T value) throws Exception {
+        return setAsync(value).get();
+    }
+
+    @Override
+    public String toString() {
+        return "VariableHandle{nodeId=" + nodeId + ", dataType=" + dataType + ", type=" + type.getSimpleName() + "}";
+    }
+}
@@ -12,11 +12,14 @@ import csw.util.config.StringKey
  * Test HCD
  */
 case class Hcd2(info: HcdInfo, supervisor: ActorRef) extends Hcd with HcdController {
-  private val worker = context.actorOf(Hcd2Worker.props(info.prefix))
+  private val worker = context.actorOf(Hcd2Worker.props(info.prefix, info.rate))
 
   supervisor ! Initialized
 
-  override def receive: Receive = controllerReceive
+  override def receive: Receive = controllerReceive orElse {
+    // The worker replies to the sender with the OPC UA client's metrics
+    case Hcd2Worker.RequestClientMetrics => worker forward Hcd2Worker.RequestClientMetrics
+  }
 
   // Send the config to the worker for processing
   override protected def process(config: SetupConfig): Unit = {
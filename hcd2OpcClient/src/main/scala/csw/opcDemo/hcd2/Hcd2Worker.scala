@@ -1,32 +1,91 @@
 package csw.opcDemo.hcd2
 
+import java.io.File
+import java.util.Optional
+import java.util.concurrent.{CompletableFuture, TimeUnit}
 import java.util.function.Consumer
 
 import akka.actor._
+import com.typesafe.config.Config
+import csw.opc.client.Backoff
 import csw.opc.server.Hcd2Namespace
 import csw.services.log.PrefixedActorLogging
 import csw.util.config.Configurations._
 
 import scala.concurrent.duration._
 import csw.util.config.ConfigDSL._
+import org.eclipse.milo.opcua.sdk.client.SessionActivityListener
+import org.eclipse.milo.opcua.sdk.client.api.UaSession
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue
 
+import scala.collection.JavaConverters._
 import scala.language.postfixOps
+import scala.util.control.NonFatal
 
 object Hcd2Worker {
-  def props(prefix: String): Props = Props(classOf[Hcd2Worker], prefix)
+  /**
+   * @param prefix the HCD's prefix
+   * @param rate   the HCD's rate (from the container config): current state is published at most once per rate
+   */
+  def props(prefix: String, rate: FiniteDuration): Props = Props(classOf[Hcd2Worker], prefix, rate)
 
   // Message used to try/retry to connect to the OPC server
   case object TryOpcConnection
 
   // Message requesting current state of HCD values
   case object RequestCurrentState
+
+  // Message requesting the metrics of the OPC UA client (the reply is a ClientMetrics.Snapshot)
+  case object RequestClientMetrics
+
+  // Sent to the worker itself when the conflating buffer has new values (at most one is pending at a time)
+  private case object NotificationsAvailable
+
+  // The results of a connection attempt, sent to the worker itself by the attempt's future
+  private case class OpcConnected(client: Hcd2OpcUaClient, demand: VariableHandle[String])
+  private case class OpcConnectionFailed(client: Option[Hcd2OpcUaClient], ex: Throwable)
+
+  // Sent to the worker itself when the client lost the session with the server, and when it reconnected
+  private case object OpcSessionLost
+  private case object OpcSessionRestored
+
+  /**
+   * Returns the delays between attempts to connect to the OPC UA server (from the csw.opcDemo.hcd2 config section)
+   */
+  def connectBackoff(config: Config): Backoff = {
+    val c = config.getConfig("csw.opcDemo.hcd2")
+    new Backoff(
+      c.getDuration("connect-backoff-min", TimeUnit.MILLISECONDS),
+      c.getDuration("connect-backoff-max", TimeUnit.MILLISECONDS),
+      c.getDouble("connect-backoff-jitter")
+    )
+  }
+
+  /**
+   * Returns the settings for the HCD's OPC UA client (from the csw.opcDemo.hcd2 config section)
+   */
+  def clientConfig(config: Config): Hcd2OpcUaClientConfig = {
+    val c = config.getConfig("csw.opcDemo.hcd2")
+    val cacheFile = c.getString("node-id-cache-file")
+    val endpointCacheFile = c.getString("endpoint-cache-file")
+    Hcd2OpcUaClientConfig.builder()
+      .setEndpointUrl(c.getString("endpoint-url"))
+      .setSecurityPolicy(SecurityPolicy.valueOf(c.getString("security-policy")))
+      .setMaxWritesInFlight(c.getInt("max-writes-in-flight"))
+      .setVariables(c.getStringList("variables"))
+      .setNodeIdCacheFile(if (cacheFile.isEmpty) Optional.empty() else Optional.of(new File(cacheFile)))
+      .setEndpointCacheFile(if (endpointCacheFile.isEmpty) Optional.empty() else Optional.of(new File(endpointCacheFile)))
+      .setMetricsIntervalSeconds(c.getDuration("metrics-interval").getSeconds.toInt)
+      .build()
+  }
 }
 
 /**
  * An actor that does the work of matching a configuration
  */
-class Hcd2Worker(override val prefix: String) extends Actor with PrefixedActorLogging {
+class Hcd2Worker(override val prefix: String, rate: FiniteDuration) extends Actor with PrefixedActorLogging {
   import context.dispatcher
   import Hcd2._
   import Hcd2Worker._
@@ -36,6 +95,30 @@ class Hcd2Worker(override val prefix: String) extends Actor with PrefixedActorLo
   private val name = prefix.split('.').last
   private val choices = if (name == "filter") Hcd2Namespace.FILTERS else Hcd2Namespace.DISPERSERS
   private val key = if (prefix == filterPrefix) filterKey else disperserKey
+  private val clientConfig = Hcd2Worker.clientConfig(context.system.settings.config)
+  private val backoff = Hcd2Worker.connectBackoff(context.system.settings.config)
+
+  // The OPC UA client calls the consumers on its own threads: they only put the latest value of each variable here,
+  // and the actor takes them (and changes its state) when it processes NotificationsAvailable
+  private val notifications = new ConflatingBuffer[String, DataValue](new Runnable {
+    override def run(): Unit = self ! NotificationsAvailable
+  })
+
+  // When current state was last published for the notifications (System.nanoTime)
+  private var lastPublished = System.nanoTime() - rate.toNanos
+
+  // The client is shared with the other HCDs in this container (see Hcd2OpcUaClientPool)
+  private var opcClientOpt: Option[Hcd2OpcUaClient] = None
+
+  // The connection attempt whose result the worker has not received yet, if any
+  private var pendingConnection: Option[CompletableFuture[Hcd2OpcUaClient]] = None
+
+  // Tells the worker when the client lost the session with the server and when it is active again
+  // (the client reconnects by itself, transferring or restoring the subscriptions)
+  private val sessionListener = new SessionActivityListener {
+    override def onSessionActive(session: UaSession): Unit = self ! OpcSessionRestored
+    override def onSessionInactive(session: UaSession): Unit = self ! OpcSessionLost
+  }
 
   // We can't do anything until the OPC UA server is available
   context.become(waitingForOpcServer)
@@ -43,64 +126,147 @@ class Hcd2Worker(override val prefix: String) extends Actor with PrefixedActorLo
 
   override def receive: Receive = Actor.emptyBehavior
 
+  override def postStop(): Unit = {
+    // a client acquired after the worker stopped is released when the attempt completes
+    pendingConnection.foreach(_.thenAccept((c: Hcd2OpcUaClient) => Hcd2OpcUaClientPool.release(c)))
+    opcClientOpt.foreach { c =>
+      c.removeSessionActivityListener(sessionListener)
+      Hcd2OpcUaClientPool.release(c)
+    }
+  }
+
   // State while waiting for a connection to the OPC UA server
   private def waitingForOpcServer: Receive = {
     case TryOpcConnection => tryOpcConnection()
-    case _: SetupConfig   => log.error("Not connected to OPC server")
-    case x                => log.error(s"Unexpected message $x")
+
+    case OpcConnected(client, demand) =>
+      pendingConnection = None
+      opcClientOpt = Some(client)
+      backoff.reset()
+      client.addSessionActivityListener(sessionListener)
+      log.info(s"$name: Connected to OPC server")
+      context.become(connected(demand, choices(0), online = true))
+      // publish the values received while waiting (the buffer only signals when the first value is put)
+      self ! NotificationsAvailable
+
+    case OpcConnectionFailed(client, ex) =>
+      pendingConnection = None
+      client.foreach(Hcd2OpcUaClientPool.release)
+      // values from the failed attempt's items, which were deleted
+      notifications.drain()
+      val delay = backoff.nextDelayMillis()
+      log.warning(s"$name: Failed to connect to OPC server (${ex.getMessage}). Will retry in $delay ms.")
+      context.system.scheduler.scheduleOnce(delay.millis, self, TryOpcConnection)
+
+    case _: SetupConfig         => log.error("Not connected to OPC server")
+    case RequestClientMetrics   => opcClientOpt.foreach(c => sender() ! c.getMetrics.getSnapshot)
+    case NotificationsAvailable => // kept in the buffer until connected
+    case x                      => log.error(s"Unexpected message $x")
   }
 
-  // State while connected to the OPC server
-  private def connected(opcClient: Hcd2OpcUaClient, currentPos: String): Receive = {
-    case s: SetupConfig => submit(s, opcClient)
+  // State while connected to the OPC server (demand is the handle for the filter or disperser variable).
+  // While the session is lost (online is false) configs are refused, since their writes would only time out.
+  private def connected(demand: VariableHandle[String], currentPos: String, online: Boolean): Receive = {
+    case s: SetupConfig =>
+      if (online) submit(s, demand)
+      else log.error("Not connected to OPC server (the client is reconnecting)")
+
+    case OpcSessionLost =>
+      if (online) log.warning(s"$name: Lost the session with the OPC server, reconnecting")
+      context.become(connected(demand, currentPos, online = false))
+
+    case OpcSessionRestored =>
+      if (!online) log.info(s"$name: Reconnected to OPC server")
+      context.become(connected(demand, currentPos, online = true))
 
     // Send the parent the current state
     case RequestCurrentState =>
       context.parent ! cs(prefix, key -> currentPos)
 
+    // Reply with the write round-trip times, reconnects and notification lag of the OPC UA client
+    case RequestClientMetrics =>
+      opcClientOpt.foreach(c => sender() ! c.getMetrics.getSnapshot)
+
+    // Publish the latest values, but not more often than the HCD's rate
+    case NotificationsAvailable =>
+      val delay = lastPublished + rate.toNanos - System.nanoTime()
+      if (delay > 0)
+        context.system.scheduler.scheduleOnce(delay.nanos, self, NotificationsAvailable)
+      else
+        publish(demand, online)
+
     case x => log.error(s"Unexpected message $x")
   }
 
+  // Takes the latest values from the buffer, updates the state and sends the parent the current state
+  private def publish(demand: VariableHandle[String], online: Boolean): Unit = {
+    lastPublished = System.nanoTime()
+    val values = notifications.drain().asScala
+    values.get(name).foreach { v =>
+      log.info(s"HCD subscriber: value for $name received: ${v.getValue.getValue}")
+    }
+    values.get(s"${name}Pos").foreach { v =>
+      val choice = choices(v.getValue.getValue.asInstanceOf[Int])
+      log.info(s"HCD subscriber: value for ${name}Pos received: $choice")
+      context.become(connected(demand, choice, online))
+      context.parent ! cs(prefix, key -> choice)
+    }
+    log.debug(s"$name: ${notifications.getConflated} of ${notifications.getReceived} notifications conflated")
+  }
+
+  // Starts connecting without blocking the worker: the result is sent back as OpcConnected or OpcConnectionFailed
   private def tryOpcConnection(): Unit = {
+    val attempt = Hcd2OpcUaClientPool.acquire(clientConfig)
+    pendingConnection = Some(attempt)
+    attempt.whenComplete { (opcClient: Hcd2OpcUaClient, ex: Throwable) =>
+      if (ex != null) self ! OpcConnectionFailed(None, ex)
+      else setUp(opcClient)
+    }
+  }
+
+  // Called (on one of the client's threads) with the connected client to subscribe and resolve the demand variable
+  private def setUp(opcClient: Hcd2OpcUaClient): Unit = {
     try {
-      val opcClient = new Hcd2OpcUaClient()
+      // Subscribe to changes in the filter or disperser opcua variable (logged) and in the filterPos or
+      // disperserPos variable (sets the telemetry value; these values are generated by the HCD2 OPC UA server
+      // to simulate a wheel turning through different values). Only the latest value of each is kept until the
+      // actor publishes it.
+      def consumer(variable: String) = new Consumer[DataValue] {
+        override def accept(v: DataValue): Unit = notifications.put(variable, v)
+      }
 
-      // Subscribe to changes in the filter or disperser opcua variable and then update the state variable
-      opcClient.subscribe(name, new Consumer[DataValue] {
-        override def accept(v: DataValue): Unit = {
-          val s = v.getValue.getValue.toString
-          log.info(s"HCD subscriber: value for $name received: $s")
-        }
-      })
-
-      // Subscribe to changes in the opcua filterPos or disperserPos opcua variable and then set the telemetry value
-      // (These values are generated by the HCD2 OPC UA server to simulate a wheel turning through different values)
-      opcClient.subscribe(s"${name}Pos", new Consumer[DataValue] {
-        override def accept(v: DataValue): Unit = {
-          val pos = v.getValue.getValue.asInstanceOf[Int]
-          val choice = choices(pos)
-          context.become(connected(opcClient, choice))
-          log.info(s"HCD subscriber: value for ${name}Pos received: $choice")
-          context.parent ! cs(prefix, key -> choice)
-        }
-      })
+      // Resolve the variable we write once, instead of on every write
+      val resolved = opcClient.variableAsync(name, classOf[String])
 
-      log.info(s"$name: Connected to OPC server")
-      context.become(connected(opcClient, choices(0)))
+      // Both items share one subscription and are created with a single request
+      val subscribed = opcClient.subscribeAsync(
+        Map[String, Consumer[DataValue]](name -> consumer(name), s"${name}Pos" -> consumer(s"${name}Pos")).asJava
+      )
+
+      resolved.thenCombine(subscribed, (demand: VariableHandle[String], _: java.util.List[UaMonitoredItem]) => demand)
+        .whenComplete { (demand: VariableHandle[String], ex: Throwable) =>
+          if (ex == null) self ! OpcConnected(opcClient, demand)
+          else subscribed.whenComplete { (items: java.util.List[UaMonitoredItem], _: Throwable) =>
+            // The client is shared: delete the items (if they were created) before the worker releases it,
+            // so that they don't stay in the subscription, and the next attempt doesn't add another pair
+            if (items == null) self ! OpcConnectionFailed(Some(opcClient), ex)
+            else opcClient.unsubscribeAsync(items).whenComplete { (_: Void, _: Throwable) =>
+              self ! OpcConnectionFailed(Some(opcClient), ex)
+            }
+          }
+        }
     } catch {
-      case ex: Exception =>
-        // Retry the connection in a second
-        log.warning(s"$name: Failed to connect to OPC server (${ex.getMessage}). Will retry in 1 sec.")
-        context.system.scheduler.scheduleOnce(1.second, self, TryOpcConnection)
+      case NonFatal(e) => self ! OpcConnectionFailed(Some(opcClient), e)
     }
   }
 
   /**
-   * Called when a configuration is submitted
+   * Called when a configuration is submitted.
+   * The write is pipelined (the client keeps writes to the same variable in order), so the actor is not blocked.
    */
-  def submit(setupConfig: SetupConfig, opcClient: Hcd2OpcUaClient): Unit = {
+  def submit(setupConfig: SetupConfig, demand: VariableHandle[String]): Unit = {
     setupConfig.get(key).foreach { value =>
-      opcClient.setValue(name, value.head)
+      demand.setAsync(value.head)
     }
   }
 }
@@ -0,0 +1,402 @@
+package csw.opc.server;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.structured.Range;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+/**
+ * A description of extra folders and variables for Hcd2Namespace, loaded from a HOCON or JSON file.
+ * See address-space-example.conf for the format.
+ */
+public class AddressSpaceModel {
+
+    /**
+     * How the value of a variable is simulated
+     */
+    public enum Simulation {
+        // the value is only changed by writes
+        NONE,
+        // reads return a new random value
+        RANDOM,
+        // the variable is the demand of a wheel, whose position is published in <name>Pos (see MotionSimulator)
+        WHEEL,
+        // the variable is the demand of a linear axis, whose position is published in <name>Pos
+        AXIS
+    }
+
+    // The data types that can be used in a model
+    private static final Set<BuiltinDataType> SUPPORTED_TYPES = EnumSet.of(
+        BuiltinDataType.Boolean, BuiltinDataType.SByte, BuiltinDataType.Byte,
+        BuiltinDataType.Int16, BuiltinDataType.UInt16, BuiltinDataType.Int32, BuiltinDataType.UInt32,
+        BuiltinDataType.Int64, BuiltinDataType.UInt64, BuiltinDataType.Float, BuiltinDataType.Double,
+        BuiltinDataType.String, BuiltinDataType.DateTime);
+
+    public static class FolderSpec {
+        private final String name;
+        private final List<FolderSpec> folders;
+        private final List<VariableSpec> variables;
+
+        FolderSpec(String name, List<FolderSpec> folders, List<VariableSpec> variables) {
+            this.name = name;
+            this.folders = folders;
+            this.variables = variables;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<FolderSpec> getFolders() {
+            return folders;
+        }
+
+        public List<VariableSpec> getVariables() {
+            return variables;
+        }
+    }
+
+    public static class VariableSpec {
+        private final String name;
+        private final BuiltinDataType dataType;
+        private final boolean array;
+        private final Object value;
+        private final boolean writable;
+        private final Simulation simulation;
+        private final String[] choices;
+        private final int positions;
+        private final long stepMillis;
+        private final double velocity;
+        private final Range euRange;
+
+        VariableSpec(String name, BuiltinDataType dataType, boolean array, Object value, boolean writable,
+                     Simulation simulation, String[] choices, int positions, long stepMillis, double velocity,
+                     Range euRange) {
+            this.name = name;
+            this.dataType = dataType;
+            this.array = array;
+            this.value = value;
+            this.writable = writable;
+            this.simulation = simulation;
+            this.choices = choices;
+            this.positions = positions;
+            this.stepMillis = stepMillis;
+            this.velocity = velocity;
+            this.euRange = euRange;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public BuiltinDataType getDataType() {
+            return dataType;
+        }
+
+        public boolean isArray() {
+            return array;
+        }
+
+        /**
+         * The initial value (an array of the data type's backing class if isArray())
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        public boolean isWritable() {
+            return writable;
+        }
+
+        public Simulation getSimulation() {
+            return simulation;
+        }
+
+        /**
+         * Wheels: the position names, or null if the demand is a position index
+         */
+        public String[] getChoices() {
+            return choices;
+        }
+
+        /**
+         * Wheels: the number of positions
+         */
+        public int getPositions() {
+            return positions;
+        }
+
+        /**
+         * Wheels: the time to move one position (ms), or 0 for the namespace default
+         */
+        public long getStepMillis() {
+            return stepMillis;
+        }
+
+        /**
+         * Axes: the velocity (units per second), or 0 for the namespace default
+         */
+        public double getVelocity() {
+            return velocity;
+        }
+
+        /**
+         * The engineering units range (the expected values of an analog variable, used by percent deadbands),
+         * or null if not given
+         */
+        public Range getEuRange() {
+            return euRange;
+        }
+    }
+
+    private final List<FolderSpec> folders;
+    private final int variableCount;
+
+    private AddressSpaceModel(List<FolderSpec> folders, int variableCount) {
+        this.folders = folders;
+        this.variableCount = variableCount;
+    }
+
+    /**
+     * The folders to add below the Objects folder
+     */
+    public List<FolderSpec> getFolders() {
+        return folders;
+    }
+
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * Loads a model from a HOCON or JSON file
+     *
+     * @throws IllegalArgumentException if the model is not valid
+     */
+    public static AddressSpaceModel load(File file) {
+        if (!file.exists()) throw new IllegalArgumentException("Model file not found: " + file);
+        return fromConfig(ConfigFactory.parseFile(file).resolve());
+    }
+
+    /**
+     * Reads a model from a config with a "folders" list
+     *
+     * @throws IllegalArgumentException if the model is not valid
+     */
+    public static AddressSpaceModel fromConfig(Config config) {
+        try {
+            int[] count = {0};
+            List<FolderSpec> folders = new ArrayList<>();
+            for (Config folder : config.getConfigList("folders")) {
+                folders.add(folder(folder, count));
+            }
+            return new AddressSpaceModel(folders, count[0]);
+        } catch (ConfigException ex) {
+            throw new IllegalArgumentException("Invalid address space model: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static FolderSpec folder(Config config, int[] count) {
+        String name = config.getString("name");
+
+        List<FolderSpec> folders = new ArrayList<>();
+        if (config.hasPath("folders")) {
+            for (Config folder : config.getConfigList("folders")) {
+                folders.add(folder(folder, count));
+            }
+        }
+
+        List<VariableSpec> variables = new ArrayList<>();
+        if (config.hasPath("variables")) {
+            for (Config variable : config.getConfigList("variables")) {
+                variables.add(variable(variable.getString("name"), variable));
+            }
+        }
+
+        // Generates variables named <prefix>0 .. <prefix><count - 1> with the same settings
+        if (config.hasPath("generated")) {
+            for (Config generated : config.getConfigList("generated")) {
+                String prefix = generated.getString("prefix");
+                int n = generated.getInt("count");
+                VariableSpec template = variable(prefix, generated);
+                for (int i = 0; i < n; i++) {
+                    variables.add(new VariableSpec(prefix + i, template.dataType, template.array, template.value,
+                        template.writable, template.simulation, template.choices, template.positions,
+                        template.stepMillis, template.velocity, template.euRange));
+                }
+            }
+        }
+
+        for (VariableSpec variable : variables) {
+            // wheels and axes also get a position variable
+            count[0] += variable.simulation == Simulation.WHEEL || variable.simulation == Simulation.AXIS ? 2 : 1;
+        }
+
+        return new FolderSpec(name, Collections.unmodifiableList(folders), Collections.unmodifiableList(variables));
+    }
+
+    private static VariableSpec variable(String name, Config config) {
+        BuiltinDataType dataType;
+        try {
+            dataType = BuiltinDataType.valueOf(config.getString("type"));
+        } catch (IllegalArgumentException ex) {
+            dataType = null;
+        }
+        if (dataType == null || !SUPPORTED_TYPES.contains(dataType)) {
+            throw new IllegalArgumentException(
+                "Unsupported type " + config.getString("type") + " for " + name + " (use one of " + SUPPORTED_TYPES + ")");
+        }
+
+        boolean array = config.hasPath("array") && config.getBoolean("array");
+
+        Object value;
+        if (array) {
+            List<Object> values = config.hasPath("value")
+                ? config.getList("value").unwrapped() : Collections.emptyList();
+            value = Array.newInstance(dataType.getBackingClass(), values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Array.set(value, i, convert(dataType, values.get(i), name));
+            }
+        } else {
+            value = convert(dataType, config.hasPath("value") ? config.getAnyRef("value") : null, name);
+        }
+
+        String access = config.hasPath("access") ? config.getString("access") : "read-write";
+        if (!access.equals("read-write") && !access.equals("read-only")) {
+            throw new IllegalArgumentException("Invalid access " + access + " for " + name + " (use read-write or read-only)");
+        }
+
+        // simulation = random, or simulation { type = wheel, ... }
+        Simulation simulation = Simulation.NONE;
+        Config sim = ConfigFactory.empty();
+        if (config.hasPath("simulation")) {
+            ConfigValue v = config.getValue("simulation");
+            if (v.valueType() == ConfigValueType.OBJECT) {
+                sim = config.getConfig("simulation");
+                simulation = simulation(sim.getString("type"), name);
+            } else {
+                simulation = simulation(config.getString("simulation"), name);
+            }
+        }
+
+        String[] choices = sim.hasPath("choices") ? sim.getStringList("choices").toArray(new String[0]) : null;
+        int positions = sim.hasPath("positions") ? sim.getInt("positions") : choices != null ? choices.length : 8;
+        long stepMillis = sim.hasPath("step-ms") ? sim.getLong("step-ms") : 0;
+        double velocity = sim.hasPath("velocity") ? sim.getDouble("velocity") : 0.0;
+
+        checkSimulation(name, dataType, array, simulation, choices);
+
+        Range euRange = null;
+        if (config.hasPath("eu-range")) {
+            List<Double> range = config.getDoubleList("eu-range");
+            if (range.size() != 2 || range.get(0) >= range.get(1)) {
+                throw new IllegalArgumentException("Invalid eu-range for " + name + " (use [low, high])");
+            }
+            euRange = new Range(range.get(0), range.get(1));
+        }
+
+        return new VariableSpec(name, dataType, array, value, access.equals("read-write"),
+            simulation, choices, positions, stepMillis, velocity, euRange);
+    }
+
+    private static Simulation simulation(String s, String name) {
+        try {
+            return Simulation.valueOf(s.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid simulation " + s + " for " + name + " (use random, wheel or axis)");
+        }
+    }
+
+    private static void checkSimulation(String name, BuiltinDataType dataType, boolean array, Simulation simulation,
+                                        String[] choices) {
+        if (simulation == Simulation.NONE) return;
+
+        boolean ok;
+        switch (simulation) {
+            case RANDOM:
+                ok = !array && dataType != BuiltinDataType.String && dataType != BuiltinDataType.DateTime;
+                break;
+            case WHEEL:
+                ok = !array && (dataType == BuiltinDataType.Int32 || (dataType == BuiltinDataType.String && choices != null));
+                break;
+            default:
+                ok = !array && dataType == BuiltinDataType.Double;
+                break;
+        }
+        if (!ok) {
+            throw new IllegalArgumentException("Simulation " + simulation + " can't be used for " + name
+                + " (random needs a numeric or Boolean scalar, wheel an Int32 or a String with choices, axis a Double)");
+        }
+    }
+
+    /**
+     * Converts a value from the config to the backing class of the given data type.
+     * A missing value gives zero, false, "" or the current time.
+     */
+    static Object convert(BuiltinDataType dataType, Object value, String name) {
+        try {
+            switch (dataType) {
+                case Boolean:
+                    return value == null ? false : value instanceof Boolean ? value : Boolean.valueOf(value.toString());
+                case String:
+                    return value == null ? "" : value.toString();
+                case DateTime:
+                    return value == null || "now".equals(value)
+                        ? DateTime.now() : new DateTime(new Date(number(value).longValue()));
+                default:
+                    return convertNumber(dataType, value == null ? 0 : number(value));
+            }
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid " + dataType + " value " + value + " for " + name, ex);
+        }
+    }
+
+    static Object convertNumber(BuiltinDataType dataType, Number n) {
+        switch (dataType) {
+            case SByte:
+                return n.byteValue();
+            case Byte:
+                return ubyte(n.longValue());
+            case Int16:
+                return n.shortValue();
+            case UInt16:
+                return ushort(n.intValue());
+            case Int32:
+                return n.intValue();
+            case UInt32:
+                return uint(n.longValue());
+            case Int64:
+                return n.longValue();
+            case UInt64:
+                return ulong(n.longValue());
+            case Float:
+                return n.floatValue();
+            case Double:
+                return n.doubleValue();
+            default:
+                throw new IllegalArgumentException(dataType + " is not a numeric type");
+        }
+    }
+
+    private static Number number(Object value) {
+        return value instanceof Number ? (Number) value : Double.valueOf(value.toString());
+    }
+}
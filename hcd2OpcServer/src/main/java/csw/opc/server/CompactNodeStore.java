@@ -0,0 +1,473 @@
+package csw.opc.server;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.core.ValueRank;
+import org.eclipse.milo.opcua.sdk.server.api.nodes.VariableNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeContext;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegate;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * Holds a large number of model variables (see AddressSpaceModel) without a UaVariableNode per variable.
+ * <p>
+ * The attributes that variables share (data type, value rank, access levels, attribute delegate) are
+ * kept once, in a Template, and everything else in arrays indexed by variable number: the NodeId
+ * (just an int for numeric NodeIds), browse name, template, folder and current value. References are
+ * not stored but generated when browsed: a variable only refers to its folder and type definition, and
+ * the variables of a folder are added together, so a folder's Organizes references are a range of
+ * variable numbers.
+ * <p>
+ * Clients see the variables through short lived flyweight nodes (getNode()), which implement ServerNode
+ * on top of the arrays, so reads and writes go through Milo's usual attribute checks and delegates.
+ * <p>
+ * All variables must be added before the store is used. After that, only the values change.
+ */
+public class CompactNodeStore {
+
+    private static final UInteger ZERO = uint(0);
+    private static final UInteger[] NO_ARRAY_DIMENSIONS = {uint(0)};
+
+    // Attributes shared by many variables
+    private static final class Template {
+        final NodeId dataType;
+        final int valueRank;
+        final UInteger[] arrayDimensions;
+        final UByte accessLevel;
+        final AttributeDelegate delegate;
+
+        Template(NodeId dataType, boolean array, boolean writable, AttributeDelegate delegate) {
+            this.dataType = dataType;
+            this.valueRank = array ? ValueRank.OneDimension.getValue() : ValueRank.Scalar.getValue();
+            this.arrayDimensions = array ? NO_ARRAY_DIMENSIONS : null;
+            this.accessLevel = ubyte(AccessLevel.getMask(writable ? AccessLevel.READ_WRITE : AccessLevel.READ_ONLY));
+            this.delegate = delegate;
+        }
+
+        boolean matches(NodeId dataType, boolean array, boolean writable, AttributeDelegate delegate) {
+            return this.dataType.equals(dataType) && (arrayDimensions != null) == array
+                && accessLevel.equals(ubyte(AccessLevel.getMask(writable ? AccessLevel.READ_WRITE : AccessLevel.READ_ONLY)))
+                && this.delegate == delegate;
+        }
+    }
+
+    private final UShort namespaceIndex;
+
+    private final List<Template> templates = new ArrayList<>();
+    private final List<NodeId> folders = new ArrayList<>();
+
+    // Shared initial values, so that generated variables with the same value use one Variant
+    private final Map<Object, Variant> initialValues = new HashMap<>();
+
+    // Variable attributes, by variable number
+    private int size = 0;
+    private final NodeId[] nodeIds;      // string NodeIds (null if numeric)
+    private final int[] numericIds;      // numeric NodeIds (null if not)
+    private final String[] names;        // null if the name is the last element of a string NodeId
+    private final byte[] templateIndex;
+    private final int[] folderIndex;
+    private final AtomicReferenceArray<Object> values;  // the initial Variant, or the last DataValue written
+
+    // The variables of each folder, as {first variable number, number of variables}
+    private final Map<NodeId, int[]> folderRanges = new HashMap<>();
+
+    // Open addressing hash table from NodeId to variable number + 1 (0 is an empty slot)
+    private final int[] table;
+
+    /**
+     * @param namespaceIndex the namespace of the variables' NodeIds and browse names
+     * @param capacity       the number of variables that will be added
+     * @param numericNodeIds true if the variables have numeric NodeIds, false if they have string NodeIds
+     */
+    public CompactNodeStore(UShort namespaceIndex, int capacity, boolean numericNodeIds) {
+        this.namespaceIndex = namespaceIndex;
+        nodeIds = numericNodeIds ? null : new NodeId[capacity];
+        numericIds = numericNodeIds ? new int[capacity] : null;
+        names = new String[capacity];
+        templateIndex = new byte[capacity];
+        folderIndex = new int[capacity];
+        values = new AtomicReferenceArray<>(capacity);
+        table = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1];
+    }
+
+    /**
+     * Adds a variable. The variables of a folder must be added one after the other.
+     *
+     * @param nodeId   the variable's NodeId
+     * @param name     the browse name
+     * @param folderId the folder that organizes the variable
+     * @param spec     the data type, access and initial value of the variable
+     * @param delegate reads and writes the variable's attributes
+     * @throws IllegalStateException    if the store is full, or the folder's variables were not added together
+     * @throws IllegalArgumentException if the NodeId is not of the store's kind, or in another namespace
+     */
+    public void add(NodeId nodeId, String name, NodeId folderId, AddressSpaceModel.VariableSpec spec,
+                    AttributeDelegate delegate) {
+        if (size == templateIndex.length) throw new IllegalStateException("Node store is full (" + size + " variables)");
+        if (!nodeId.getNamespaceIndex().equals(namespaceIndex)
+            || !(nodeIds != null ? nodeId.getIdentifier() instanceof String : nodeId.getIdentifier() instanceof UInteger)) {
+            throw new IllegalArgumentException("Unexpected NodeId " + nodeId);
+        }
+
+        int i = size++;
+        if (nodeIds != null) {
+            nodeIds[i] = nodeId;
+        } else {
+            numericIds[i] = ((UInteger) nodeId.getIdentifier()).intValue();
+        }
+        names[i] = name.equals(nameFromNodeId(nodeId)) ? null : name;
+        templateIndex[i] = (byte) template(new NodeId(0, spec.getDataType().getTypeId()), spec.isArray(),
+            spec.isWritable(), delegate);
+        folderIndex[i] = folder(folderId, i);
+        values.set(i, initialValues.computeIfAbsent(spec.getValue(), Variant::new));
+
+        int slot = slot(hash(nodeId));
+        while (table[slot] != 0) slot = (slot + 1) & (table.length - 1);
+        table[slot] = i + 1;
+    }
+
+    private int template(NodeId dataType, boolean array, boolean writable, AttributeDelegate delegate) {
+        for (int t = 0; t < templates.size(); t++) {
+            if (templates.get(t).matches(dataType, array, writable, delegate)) return t;
+        }
+        if (templates.size() == 256) throw new IllegalStateException("Too many different variable types");
+        templates.add(new Template(dataType, array, writable, delegate));
+        return templates.size() - 1;
+    }
+
+    private int folder(NodeId folderId, int i) {
+        int f = folders.size() - 1;
+        if (f >= 0 && folders.get(f).equals(folderId)) {
+            folderRanges.get(folderId)[1]++;
+            return f;
+        }
+        if (folderRanges.containsKey(folderId)) {
+            throw new IllegalStateException("The variables of folder " + folderId + " were not added together");
+        }
+        folders.add(folderId);
+        folderRanges.put(folderId, new int[]{i, 1});
+        return folders.size() - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the store has a variable with the given NodeId
+     */
+    public boolean contains(NodeId nodeId) {
+        return indexOf(nodeId) >= 0;
+    }
+
+    /**
+     * Returns a flyweight node for the variable with the given NodeId, or null if there is none.
+     * The node is only a view of the store: a new one is returned on each call.
+     */
+    public ServerNode getNode(NodeId nodeId) {
+        int i = indexOf(nodeId);
+        return i >= 0 ? new CompactVariableNode(i) : null;
+    }
+
+    /**
+     * Returns the Organizes references from the given folder to its variables in the store
+     * (none if it is not a folder of the store)
+     */
+    public List<Reference> getFolderReferences(NodeId folderId) {
+        int[] range = folderRanges.get(folderId);
+        if (range == null) return Collections.emptyList();
+
+        List<Reference> references = new ArrayList<>(range[1]);
+        for (int i = range[0]; i < range[0] + range[1]; i++) {
+            references.add(new Reference(folderId, Identifiers.Organizes, nodeId(i).expanded(), NodeClass.Variable, true));
+        }
+        return references;
+    }
+
+    /**
+     * Returns the NodeId of the variable with the given name in the given folder, if any
+     * (this searches the folder's variables one by one)
+     */
+    public NodeId find(NodeId folderId, String name) {
+        int[] range = folderRanges.get(folderId);
+        if (range == null) return null;
+
+        for (int i = range[0]; i < range[0] + range[1]; i++) {
+            if (name(i).equals(name)) return nodeId(i);
+        }
+        return null;
+    }
+
+    private int indexOf(NodeId nodeId) {
+        if (!nodeId.getNamespaceIndex().equals(namespaceIndex)) return -1;
+
+        int slot;
+        if (nodeIds != null) {
+            if (!(nodeId.getIdentifier() instanceof String)) return -1;
+            slot = slot(nodeId.hashCode());
+        } else {
+            if (!(nodeId.getIdentifier() instanceof UInteger)) return -1;
+            slot = slot(((UInteger) nodeId.getIdentifier()).intValue());
+        }
+
+        int id = nodeIds != null ? 0 : ((UInteger) nodeId.getIdentifier()).intValue();
+        int i;
+        while ((i = table[slot]) != 0) {
+            if (nodeIds != null ? nodeIds[i - 1].equals(nodeId) : numericIds[i - 1] == id) return i - 1;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    private int hash(NodeId nodeId) {
+        return nodeIds != null ? nodeId.hashCode() : ((UInteger) nodeId.getIdentifier()).intValue();
+    }
+
+    private int slot(int h) {
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (table.length - 1);
+    }
+
+    // Numeric NodeIds are only created when needed
+    private NodeId nodeId(int i) {
+        return nodeIds != null ? nodeIds[i] : new NodeId(namespaceIndex, uint(numericIds[i] & 0xffffffffL));
+    }
+
+    private String name(int i) {
+        return names[i] != null ? names[i] : nameFromNodeId(nodeIds[i]);
+    }
+
+    // String NodeIds are browse paths, which end with the name
+    private static String nameFromNodeId(NodeId nodeId) {
+        Object id = nodeId.getIdentifier();
+        if (!(id instanceof String)) return null;
+        String path = (String) id;
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * A view of one variable of the store
+     */
+    private final class CompactVariableNode implements ServerNode, VariableNode {
+        private final int i;
+
+        CompactVariableNode(int i) {
+            this.i = i;
+        }
+
+        private Template template() {
+            return templates.get(templateIndex[i] & 0xff);
+        }
+
+        @Override
+        public NodeId getNodeId() {
+            return nodeId(i);
+        }
+
+        @Override
+        public NodeClass getNodeClass() {
+            return NodeClass.Variable;
+        }
+
+        @Override
+        public QualifiedName getBrowseName() {
+            return new QualifiedName(namespaceIndex, name(i));
+        }
+
+        @Override
+        public LocalizedText getDisplayName() {
+            return LocalizedText.english(name(i));
+        }
+
+        @Override
+        public LocalizedText getDescription() {
+            return LocalizedText.NULL_VALUE;
+        }
+
+        @Override
+        public UInteger getWriteMask() {
+            return ZERO;
+        }
+
+        @Override
+        public UInteger getUserWriteMask() {
+            return ZERO;
+        }
+
+        @Override
+        public DataValue getValue() {
+            Object value = values.get(i);
+            return value instanceof DataValue ? (DataValue) value : new DataValue((Variant) value);
+        }
+
+        @Override
+        public NodeId getDataType() {
+            return template().dataType;
+        }
+
+        @Override
+        public Integer getValueRank() {
+            return template().valueRank;
+        }
+
+        @Override
+        public UInteger[] getArrayDimensions() {
+            return template().arrayDimensions;
+        }
+
+        @Override
+        public UByte getAccessLevel() {
+            return template().accessLevel;
+        }
+
+        @Override
+        public UByte getUserAccessLevel() {
+            return template().accessLevel;
+        }
+
+        @Override
+        public Double getMinimumSamplingInterval() {
+            return 0.0;
+        }
+
+        @Override
+        public Boolean getHistorizing() {
+            return false;
+        }
+
+        @Override
+        public void setValue(DataValue value) {
+            values.set(i, Objects.requireNonNull(value));
+        }
+
+        @Override
+        public ImmutableList<Reference> getReferences() {
+            NodeId nodeId = nodeId(i);
+            return ImmutableList.of(
+                new Reference(nodeId, Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType.expanded(),
+                    NodeClass.VariableType, true),
+                new Reference(nodeId, Identifiers.Organizes, folders.get(folderIndex[i]).expanded(),
+                    NodeClass.Object, false));
+        }
+
+        @Override
+        public DataValue getAttribute(AttributeContext context, AttributeId attributeId) {
+            return template().delegate.getAttribute(context, this, attributeId);
+        }
+
+        @Override
+        public void setAttribute(AttributeContext context, AttributeId attributeId, DataValue value) throws UaException {
+            template().delegate.setAttribute(context, this, attributeId, value);
+        }
+
+        // Only the value can change (the write mask of the variables is 0)
+
+        @Override
+        public void addReference(Reference reference) {
+            throw new UnsupportedOperationException("References of compact nodes can't be changed");
+        }
+
+        @Override
+        public void removeReference(Reference reference) {
+            throw new UnsupportedOperationException("References of compact nodes can't be changed");
+        }
+
+        @Override
+        public void setNodeId(NodeId nodeId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setNodeClass(NodeClass nodeClass) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setBrowseName(QualifiedName browseName) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setDisplayName(LocalizedText displayName) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setDescription(LocalizedText description) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setWriteMask(UInteger writeMask) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setUserWriteMask(UInteger userWriteMask) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setDataType(NodeId dataType) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setValueRank(Integer valueRank) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setArrayDimensions(UInteger[] arrayDimensions) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setAccessLevel(UByte accessLevel) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setUserAccessLevel(UByte userAccessLevel) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setMinimumSamplingInterval(Double minimumSamplingInterval) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setHistorizing(Boolean historizing) {
+            throw readOnly();
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("Only the value of a compact node can be changed");
+        }
+    }
+}
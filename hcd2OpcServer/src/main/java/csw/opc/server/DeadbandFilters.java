@@ -0,0 +1,403 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.items.BaseMonitoredItem;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.application.services.ServiceRequest;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.CreateMonitoredItemsRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.CreateMonitoredItemsResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.DataChangeFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.ModifyMonitoredItemsRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.ModifyMonitoredItemsResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemModifyRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemModifyResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.Range;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * Deadband data change filters for the monitored items of a namespace.
+ * <p>
+ * Milo (0.1.0) rejects DataChangeFilters with a deadband on Value attributes (Bad_MonitoredItemFilterUnsupported),
+ * so the CreateMonitoredItems and ModifyMonitoredItems requests are intercepted: for items of this namespace the
+ * deadband is taken out of the filter before Milo sees it (the trigger stays), and applied by a DataItem wrapper
+ * between the namespace's sampling (SubscriptionModel) and Milo's monitored item. A sampled value is passed on
+ * only if its status changed or its value differs from the last value passed on by more than the deadband.
+ * Percent deadbands are converted to absolute ones with the variable's EURange; items of variables
+ * without one fail with Bad_DeadbandFilterInvalid.
+ */
+class DeadbandFilters {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadbandFilters.class);
+
+    private final OpcUaServer server;
+    private final UShort namespaceIndex;
+    private final Function<NodeId, Optional<Range>> euRanges;
+
+    // Deadbands of items being created, by subscription id and client handle, until wrap() finds them
+    private final Map<ItemKey, Double> pending = new ConcurrentHashMap<>();
+
+    // The wrappers of this namespace's data items, by subscription id and monitored item id
+    private final Map<ItemKey, DeadbandDataItem> items = new ConcurrentHashMap<>();
+
+    /**
+     * @param euRanges the EURange of a variable of the namespace, if it has one
+     */
+    DeadbandFilters(OpcUaServer server, UShort namespaceIndex, Function<NodeId, Optional<Range>> euRanges) {
+        this.server = server;
+        this.namespaceIndex = namespaceIndex;
+        this.euRanges = euRanges;
+    }
+
+    /**
+     * Replaces Milo's CreateMonitoredItems and ModifyMonitoredItems handlers (must be called after the
+     * OpcUaServer is created and before clients connect)
+     */
+    void install() {
+        server.getServer().addRequestHandler(CreateMonitoredItemsRequest.class, this::onCreateMonitoredItems);
+        server.getServer().addRequestHandler(ModifyMonitoredItemsRequest.class, this::onModifyMonitoredItems);
+    }
+
+    /**
+     * Returns the wrapper that applies the item's deadband (if any) to the sampled values
+     */
+    DataItem wrap(DataItem item) {
+        Double deadband = item instanceof BaseMonitoredItem
+            ? pending.remove(new ItemKey(item.getSubscriptionId(), uint(((BaseMonitoredItem<?>) item).getClientHandle())))
+            : null;
+        DeadbandDataItem wrapper = new DeadbandDataItem(item, deadband != null ? deadband : 0.0);
+        items.put(new ItemKey(item.getSubscriptionId(), item.getId()), wrapper);
+        return wrapper;
+    }
+
+    /**
+     * Returns the wrapper of a data item passed to wrap() (or the item itself if it has none)
+     */
+    DataItem wrapper(DataItem item) {
+        DataItem wrapper = items.get(new ItemKey(item.getSubscriptionId(), item.getId()));
+        return wrapper != null ? wrapper : item;
+    }
+
+    /**
+     * Forgets the wrapper of a deleted data item and returns it
+     */
+    DataItem remove(DataItem item) {
+        DataItem wrapper = items.remove(new ItemKey(item.getSubscriptionId(), item.getId()));
+        return wrapper != null ? wrapper : item;
+    }
+
+    private void onCreateMonitoredItems(ServiceRequest<CreateMonitoredItemsRequest, CreateMonitoredItemsResponse> service)
+        throws UaException {
+        CreateMonitoredItemsRequest request = service.getRequest();
+        MonitoredItemCreateRequest[] itemsToCreate = request.getItemsToCreate();
+        if (itemsToCreate == null) {
+            server.getSessionManager().onCreateMonitoredItems(service);
+            return;
+        }
+
+        // Items with an invalid deadband get their result here, the others are passed on to Milo
+        MonitoredItemCreateResult[] failed = new MonitoredItemCreateResult[itemsToCreate.length];
+        List<MonitoredItemCreateRequest> passed = new ArrayList<>(itemsToCreate.length);
+        List<ItemKey> keys = new ArrayList<>();
+        for (int i = 0; i < itemsToCreate.length; i++) {
+            MonitoredItemCreateRequest item = itemsToCreate[i];
+            MonitoringParameters parameters = item.getRequestedParameters();
+            Deadband deadband = deadband(item.getItemToMonitor(), parameters.getFilter());
+            if (deadband == null) {
+                passed.add(item);
+            } else if (deadband.status != null) {
+                failed[i] = new MonitoredItemCreateResult(deadband.status, uint(0), 0.0, uint(0), null);
+            } else {
+                ItemKey key = new ItemKey(request.getSubscriptionId(), parameters.getClientHandle());
+                pending.put(key, deadband.value);
+                keys.add(key);
+                passed.add(new MonitoredItemCreateRequest(item.getItemToMonitor(), item.getMonitoringMode(),
+                    withFilter(parameters, deadband.filter)));
+            }
+        }
+        if (keys.isEmpty() && passed.size() == itemsToCreate.length) {
+            server.getSessionManager().onCreateMonitoredItems(service);
+            return;
+        }
+        if (passed.isEmpty()) {
+            service.setResponse(new CreateMonitoredItemsResponse(service.createResponseHeader(), failed, null));
+            return;
+        }
+
+        ServiceRequest<CreateMonitoredItemsRequest, CreateMonitoredItemsResponse> forwarded = new ServiceRequest<>(
+            new CreateMonitoredItemsRequest(request.getRequestHeader(), request.getSubscriptionId(),
+                request.getTimestampsToReturn(), passed.toArray(new MonitoredItemCreateRequest[0])),
+            service.getRequestId(), service.getServer(), service.getSecureChannel());
+
+        forwarded.getFuture().whenComplete((response, ex) -> {
+            // deadbands of items that were not created
+            keys.forEach(pending::remove);
+            if (response == null) {
+                service.getFuture().completeExceptionally(ex);
+                return;
+            }
+            MonitoredItemCreateResult[] results = new MonitoredItemCreateResult[itemsToCreate.length];
+            int j = 0;
+            for (int i = 0; i < results.length; i++) {
+                results[i] = failed[i] != null ? failed[i] : response.getResults()[j++];
+            }
+            service.setResponse(new CreateMonitoredItemsResponse(response.getResponseHeader(), results, null));
+        });
+
+        server.getSessionManager().onCreateMonitoredItems(forwarded);
+    }
+
+    private void onModifyMonitoredItems(ServiceRequest<ModifyMonitoredItemsRequest, ModifyMonitoredItemsResponse> service)
+        throws UaException {
+        ModifyMonitoredItemsRequest request = service.getRequest();
+        MonitoredItemModifyRequest[] itemsToModify = request.getItemsToModify();
+        if (itemsToModify == null) {
+            server.getSessionManager().onModifyMonitoredItems(service);
+            return;
+        }
+
+        MonitoredItemModifyResult[] failed = new MonitoredItemModifyResult[itemsToModify.length];
+        List<MonitoredItemModifyRequest> passed = new ArrayList<>(itemsToModify.length);
+        // the new deadbands of this namespace's items, set when Milo accepted the other parameters
+        Map<Integer, DeadbandDataItem> modified = new ConcurrentHashMap<>();
+        Map<Integer, Double> deadbands = new ConcurrentHashMap<>();
+        for (int i = 0; i < itemsToModify.length; i++) {
+            MonitoredItemModifyRequest item = itemsToModify[i];
+            DeadbandDataItem wrapper = items.get(new ItemKey(request.getSubscriptionId(), item.getMonitoredItemId()));
+            if (wrapper == null) {
+                passed.add(item);
+                continue;
+            }
+            MonitoringParameters parameters = item.getRequestedParameters();
+            Deadband deadband = deadband(wrapper.getReadValueId(), parameters.getFilter());
+            if (deadband != null && deadband.status != null) {
+                failed[i] = new MonitoredItemModifyResult(deadband.status, 0.0, uint(0), null);
+                continue;
+            }
+            modified.put(passed.size(), wrapper);
+            deadbands.put(passed.size(), deadband != null ? deadband.value : 0.0);
+            passed.add(deadband == null ? item
+                : new MonitoredItemModifyRequest(item.getMonitoredItemId(), withFilter(parameters, deadband.filter)));
+        }
+        if (passed.isEmpty()) {
+            service.setResponse(new ModifyMonitoredItemsResponse(service.createResponseHeader(), failed, null));
+            return;
+        }
+        if (modified.isEmpty() && passed.size() == itemsToModify.length) {
+            server.getSessionManager().onModifyMonitoredItems(service);
+            return;
+        }
+
+        ServiceRequest<ModifyMonitoredItemsRequest, ModifyMonitoredItemsResponse> forwarded = new ServiceRequest<>(
+            new ModifyMonitoredItemsRequest(request.getRequestHeader(), request.getSubscriptionId(),
+                request.getTimestampsToReturn(), passed.toArray(new MonitoredItemModifyRequest[0])),
+            service.getRequestId(), service.getServer(), service.getSecureChannel());
+
+        forwarded.getFuture().whenComplete((response, ex) -> {
+            if (response == null) {
+                service.getFuture().completeExceptionally(ex);
+                return;
+            }
+            modified.forEach((j, wrapper) -> {
+                if (response.getResults()[j].getStatusCode().isGood()) wrapper.setDeadband(deadbands.get(j));
+            });
+            MonitoredItemModifyResult[] results = new MonitoredItemModifyResult[itemsToModify.length];
+            int j = 0;
+            for (int i = 0; i < results.length; i++) {
+                results[i] = failed[i] != null ? failed[i] : response.getResults()[j++];
+            }
+            service.setResponse(new ModifyMonitoredItemsResponse(response.getResponseHeader(), results, null));
+        });
+
+        server.getSessionManager().onModifyMonitoredItems(forwarded);
+    }
+
+    // The deadband of a filter on a value of this namespace, or null if there is none
+    private Deadband deadband(ReadValueId readValueId, ExtensionObject filter) {
+        if (filter == null || readValueId.getNodeId().getNamespaceIndex().intValue() != namespaceIndex.intValue()) {
+            return null;
+        }
+        Object decoded;
+        try {
+            decoded = filter.decode();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (!(decoded instanceof DataChangeFilter)) return null;
+
+        DataChangeFilter dataChangeFilter = (DataChangeFilter) decoded;
+        DeadbandType type = DeadbandType.from(dataChangeFilter.getDeadbandType().intValue());
+        if (type == null || type == DeadbandType.None) return null;
+
+        double value = dataChangeFilter.getDeadbandValue() != null ? dataChangeFilter.getDeadbandValue() : 0.0;
+        if (value < 0 || type == DeadbandType.Percent && value > 100) {
+            return new Deadband(new StatusCode(StatusCodes.Bad_DeadbandFilterInvalid));
+        }
+        if (type == DeadbandType.Percent) {
+            Optional<Range> range = euRanges.apply(readValueId.getNodeId());
+            if (!range.isPresent()) {
+                logger.info("Percent deadband requested for {}, which has no EURange", readValueId.getNodeId());
+                return new Deadband(new StatusCode(StatusCodes.Bad_DeadbandFilterInvalid));
+            }
+            value = value / 100 * (range.get().getHigh() - range.get().getLow());
+        }
+
+        ExtensionObject withoutDeadband = ExtensionObject.encode(
+            new DataChangeFilter(dataChangeFilter.getTrigger(), uint(DeadbandType.None.getValue()), 0.0));
+        return new Deadband(value, withoutDeadband);
+    }
+
+    private static MonitoringParameters withFilter(MonitoringParameters parameters, ExtensionObject filter) {
+        return new MonitoringParameters(parameters.getClientHandle(), parameters.getSamplingInterval(), filter,
+            parameters.getQueueSize(), parameters.getDiscardOldest());
+    }
+
+    // Whether the value differs from the last one by more than the deadband (element by element for arrays)
+    static boolean exceedsDeadband(Object last, Object value, double deadband) {
+        if (last == null || value == null) return last != value;
+        if (last.getClass().isArray() && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            if (Array.getLength(last) != length) return true;
+            for (int i = 0; i < length; i++) {
+                if (exceedsDeadband(Array.get(last, i), Array.get(value, i), deadband)) return true;
+            }
+            return false;
+        }
+        if (last instanceof Number && value instanceof Number) {
+            return Math.abs(((Number) value).doubleValue() - ((Number) last).doubleValue()) > deadband;
+        }
+        // the deadband does not apply to other types
+        return !last.equals(value);
+    }
+
+    // A deadband in absolute units with the filter to pass on to Milo, or the status of an invalid deadband
+    private static class Deadband {
+        final double value;
+        final ExtensionObject filter;
+        final StatusCode status;
+
+        Deadband(double value, ExtensionObject filter) {
+            this.value = value;
+            this.filter = filter;
+            this.status = null;
+        }
+
+        Deadband(StatusCode status) {
+            this.value = 0.0;
+            this.filter = null;
+            this.status = status;
+        }
+    }
+
+    // Subscription ids are unique in the server, client handles and monitored item ids per subscription
+    private static final class ItemKey {
+        final UInteger subscriptionId;
+        final UInteger id;
+
+        ItemKey(UInteger subscriptionId, UInteger id) {
+            this.subscriptionId = subscriptionId;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ItemKey)) return false;
+            ItemKey other = (ItemKey) o;
+            return subscriptionId.equals(other.subscriptionId) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * subscriptionId.hashCode() + id.hashCode();
+        }
+    }
+
+    /**
+     * Passes the sampled values of a data item on to it if they exceed the deadband
+     */
+    private static class DeadbandDataItem implements DataItem {
+        private final DataItem item;
+        private volatile double deadband;
+        private DataValue lastValue;
+
+        DeadbandDataItem(DataItem item, double deadband) {
+            this.item = item;
+            this.deadband = deadband;
+        }
+
+        void setDeadband(double deadband) {
+            this.deadband = deadband;
+        }
+
+        @Override
+        public synchronized void setValue(DataValue value) {
+            double d = deadband;
+            if (d > 0 && lastValue != null
+                && value.getStatusCode().equals(lastValue.getStatusCode())
+                && !exceedsDeadband(lastValue.getValue().getValue(), value.getValue().getValue(), d)) {
+                return;
+            }
+            lastValue = value;
+            item.setValue(value);
+        }
+
+        @Override
+        public synchronized void setQuality(StatusCode quality) {
+            item.setQuality(quality);
+        }
+
+        @Override
+        public double getSamplingInterval() {
+            return item.getSamplingInterval();
+        }
+
+        @Override
+        public UInteger getId() {
+            return item.getId();
+        }
+
+        @Override
+        public UInteger getSubscriptionId() {
+            return item.getSubscriptionId();
+        }
+
+        @Override
+        public ReadValueId getReadValueId() {
+            return item.getReadValueId();
+        }
+
+        @Override
+        public TimestampsToReturn getTimestampsToReturn() {
+            return item.getTimestampsToReturn();
+        }
+
+        @Override
+        public boolean isSamplingEnabled() {
+            return item.isSamplingEnabled();
+        }
+    }
+}
@@ -13,13 +13,24 @@
 
 package csw.opc.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import com.google.common.collect.Lists;
 import csw.opc.server.methods.SqrtMethod;
@@ -43,6 +54,7 @@ import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegateChain;
 import org.eclipse.milo.opcua.sdk.server.util.AnnotationBasedInvocationHandler;
 import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
 import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
 import org.eclipse.milo.opcua.stack.core.Identifiers;
 import org.eclipse.milo.opcua.stack.core.StatusCodes;
 import org.eclipse.milo.opcua.stack.core.UaException;
@@ -55,10 +67,12 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
 import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
 import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 import org.eclipse.milo.opcua.stack.core.types.builtin.XmlElement;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.Range;
 import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
 import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
 import org.eclipse.milo.opcua.stack.core.util.FutureUtils;
@@ -155,31 +169,97 @@ public class Hcd2Namespace implements Namespace {
     {"NodeIdArray", Identifiers.NodeId, new Variant(new NodeId(1234, "abcd"))}
   };
 
+  // Size of the value log's ring buffer, and the period of its summaries
+  private static final int VALUE_LOG_CAPACITY = 8192;
+  private static final int VALUE_LOG_SUMMARY_SECONDS = 10;
 
-  private final Logger logger = LoggerFactory.getLogger(getClass());
+  // The HistoryRead bit of the AccessLevel and UserAccessLevel attributes
+  private static final int HISTORY_READ_ACCESS = 0x04;
 
-  private final Random random = new Random();
+  private final Logger logger = LoggerFactory.getLogger(getClass());
 
   private final SubscriptionModel subscriptionModel;
 
   private final OpcUaServer server;
   private final UShort namespaceIndex;
 
-  private  NodeId filterNodeId;
-  private  NodeId filterPosNodeId;
-  private  NodeId disperserNodeId;
-  private  NodeId disperserPosNodeId;
+  private final Hcd2NamespaceConfig config;
+  private int nextNumericId = 1;
+
+  // NodeIds by browse path from the Objects folder, like "HelloWorld/ScalarTypes/filter"
+  private final Map<String, NodeId> nodeIdsByPath = new ConcurrentHashMap<>();
+
+  // Moves the filter and disperser wheels (and any other simulated devices)
+  private final MotionSimulator simulator;
+
+  // Evaluates the test signals of the HelloWorld/Signals variables
+  private final SignalEngine signals;
+
+  // Logs the values read and written by clients
+  private final ValueLog valueLog;
+
+  // Counts and times the requests per service, node and client
+  private final ServerMetrics metrics;
+
+  // Lazy model nodes: the variables of the model by NodeId, and the ones whose node is currently built
+  private final Map<NodeId, ModelVariable> modelVariables = new ConcurrentHashMap<>();
+  private final Set<ModelVariable> materialized = ConcurrentHashMap.newKeySet();
+  private final ValueLoggingDelegate modelLoggingDelegate;
+
+  // Model variables with random values share one delegate per data type
+  private final Map<BuiltinDataType, AttributeDelegate> randomDelegates = new ConcurrentHashMap<>();
+
+  // Compact model nodes: the model variables that have no node of their own
+  private CompactNodeStore compactNodes;
+
+  // Deadband filters of monitored items, and the EURanges of the model variables that have one
+  private final DeadbandFilters deadbandFilters;
+  private final Map<NodeId, Range> euRanges = new ConcurrentHashMap<>();
+
+  // The recent values of the historized variables, for HistoryRead
+  private final HistoryRecorder history;
+
+  // The last values of the variables whose values are produced when read, for reads with a maxAge
+  private final SampledValueCache valueCache = new SampledValueCache();
 
 
   public Hcd2Namespace(OpcUaServer server, UShort namespaceIndex) {
+    this(server, namespaceIndex, Hcd2NamespaceConfig.builder().build());
+  }
+
+  /**
+   * @param config if config.isNumericNodeIds(), nodes get compact numeric NodeIds, which are cheaper to
+   *               encode than the default string NodeIds (the browse path of the node).
+   *               Clients then find the nodes by browse path (TranslateBrowsePathsToNodeIds)
+   */
+  public Hcd2Namespace(OpcUaServer server, UShort namespaceIndex, Hcd2NamespaceConfig config) {
     this.server = server;
     this.namespaceIndex = namespaceIndex;
+    this.config = config;
+    this.simulator = new MotionSimulator(server.getScheduledExecutorService(), config.getSimulationTickMillis());
+    this.signals = new SignalEngine(config.getSignalRateHz(), config.getSignalPartitions());
+    this.valueLog = new ValueLog(config.getValueLogMode(), VALUE_LOG_CAPACITY, config.getValueLogSampleEvery(),
+      config.getValueLogMaxPerSecond(), VALUE_LOG_SUMMARY_SECONDS);
+    this.modelLoggingDelegate = new ValueLoggingDelegate(valueLog);
+    valueLog.start(server.getScheduledExecutorService());
+    this.metrics = new ServerMetrics(config.isMetrics(), config.getMetricsIntervalSeconds(), config.getMetricsMaxNodes());
+    metrics.start(server.getScheduledExecutorService());
 
     subscriptionModel = new SubscriptionModel(server, this);
+    deadbandFilters = new DeadbandFilters(server, namespaceIndex, nodeId -> Optional.ofNullable(euRanges.get(nodeId)));
+    deadbandFilters.install();
+
+    history = new HistoryRecorder(config.getHistoryDepth(), config.getHistoryPaths(),
+      config.getHistoryBucketMillis(), config.getHistoryBuckets());
+    if (history.isEnabled()) {
+      config.getHistoryArchiveDir().ifPresent(this::openHistoryArchive);
+      new HistoryReadService(server, namespaceIndex, history).install();
+      simulator.setPositionListener(history::record);
+    }
 
     try {
       // Create a "HelloWorld" folder and add it to the node manager
-      NodeId folderNodeId = new NodeId(namespaceIndex, "HelloWorld");
+      NodeId folderNodeId = newNodeId("HelloWorld");
 
       UaFolderNode folderNode = new UaFolderNode(
         server.getNodeMap(),
@@ -204,16 +284,65 @@ public class Hcd2Namespace implements Namespace {
 
       addMethodNode(folderNode);
 
-      filterNodeId = new NodeId(namespaceIndex, NAMESPACE_PREFIX + "filter");
-      filterPosNodeId = new NodeId(namespaceIndex, NAMESPACE_PREFIX + "filterPos");
-      disperserNodeId = new NodeId(namespaceIndex, NAMESPACE_PREFIX + "disperser");
-      disperserPosNodeId = new NodeId(namespaceIndex, NAMESPACE_PREFIX + "disperserPos");
+      historize();
+
+      // Writing the filter or disperser starts the wheel moving slowly to the new position
+      simulator.addWheel(
+        nodeIdsByPath.get(NAMESPACE_PREFIX + "filter"),
+        variableNode(NAMESPACE_PREFIX + "filterPos"),
+        FILTERS, FILTERS.length, config.getWheelStepMillis());
+      simulator.addWheel(
+        nodeIdsByPath.get(NAMESPACE_PREFIX + "disperser"),
+        variableNode(NAMESPACE_PREFIX + "disperserPos"),
+        DISPERSERS, DISPERSERS.length, config.getWheelStepMillis());
+
+      simulator.start();
+      signals.start();
 
     } catch (UaException e) {
       logger.error("Error adding nodes: {}", e.getMessage(), e);
     }
   }
 
+  /**
+   * The log of the values read and written by clients, whose mode and limits can be changed at runtime
+   */
+  public ValueLog getValueLog() {
+    return valueLog;
+  }
+
+  /**
+   * The request statistics, also published in the HelloWorld/Diagnostics folder and through JMX
+   */
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * The engine that evaluates the test signals of the HelloWorld/Signals variables
+   */
+  public SignalEngine getSignals() {
+    return signals;
+  }
+
+  /**
+   * The cached values of the dynamic variables, which reads with a maxAge get
+   */
+  public SampledValueCache getValueCache() {
+    return valueCache;
+  }
+
+  /**
+   * The recent values of the historized variables, which clients read with HistoryRead
+   */
+  public HistoryRecorder getHistory() {
+    return history;
+  }
+
+  private UaVariableNode variableNode(String browsePath) {
+    return (UaVariableNode) server.getNodeMap().get(nodeIdsByPath.get(browsePath));
+  }
+
   @Override
   public UShort getNamespaceIndex() {
     return namespaceIndex;
@@ -224,18 +353,88 @@ public class Hcd2Namespace implements Namespace {
     return NAMESPACE_URI;
   }
 
+  /**
+   * Returns the NodeId of the node with the given browse path, like "HelloWorld/ScalarTypes/filter"
+   */
+  public Optional<NodeId> getNodeId(String browsePath) {
+    NodeId nodeId = nodeIdsByPath.get(browsePath);
+    if (nodeId == null && compactNodes != null && browsePath.lastIndexOf('/') > 0) {
+      // compact model variables are not in the index, to save memory
+      int i = browsePath.lastIndexOf('/');
+      NodeId folderNodeId = nodeIdsByPath.get(browsePath.substring(0, i));
+      if (folderNodeId != null) nodeId = compactNodes.find(folderNodeId, browsePath.substring(i + 1));
+    }
+    return Optional.ofNullable(nodeId);
+  }
+
+  // Assigns the NodeId for a new node and adds it to the browse path index
+  private NodeId newNodeId(String browsePath) {
+    NodeId nodeId = assignNodeId(browsePath);
+    nodeIdsByPath.put(browsePath, nodeId);
+    return nodeId;
+  }
+
+  // Assigns the NodeId for a new node
+  private NodeId assignNodeId(String browsePath) {
+    return config.isNumericNodeIds()
+      ? new NodeId(namespaceIndex, uint(nextNumericId++))
+      : new NodeId(namespaceIndex, browsePath);
+  }
+
+  // Starts recording the values of the variables whose browse paths match the history settings
+  private void historize() {
+    if (!history.isEnabled()) return;
+
+    nodeIdsByPath.forEach((browsePath, nodeId) -> {
+      if (!history.matches(browsePath)) return;
+      ServerNode node = getNode(nodeId);
+      if (node instanceof UaVariableNode) {
+        history.add(nodeId, ((UaVariableNode) node).getValue());
+        setHistorizing((UaVariableNode) node);
+      }
+    });
+    logger.info("Keeping the last {} values of {} variables for HistoryRead",
+      history.getDepth(), history.getHistorizedCount());
+  }
+
+  // Keeps the recorded values on disk as well, so that HistoryRead reaches back further than the values in memory
+  private void openHistoryArchive(File dir) {
+    try {
+      HistoryArchive archive = new HistoryArchive(dir, namespaceIndex, config.getHistorySegmentMb() * 1024 * 1024,
+        TimeUnit.MINUTES.toMillis(config.getHistorySegmentMinutes()),
+        TimeUnit.HOURS.toMillis(config.getHistoryRetentionHours()));
+      archive.start();
+      history.setArchive(archive);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.error("Could not open the history archive in {}, keeping history in memory only", dir, e);
+    }
+  }
+
+  // Marks a historized variable as such, and lets clients read its history
+  private void setHistorizing(UaVariableNode node) {
+    node.setHistorizing(true);
+    node.setAccessLevel(ubyte(node.getAccessLevel().intValue() | HISTORY_READ_ACCESS));
+    if (node.getUserAccessLevel() != null) {
+      node.setUserAccessLevel(ubyte(node.getUserAccessLevel().intValue() | HISTORY_READ_ACCESS));
+    }
+  }
+
   private void addVariableNodes(UaFolderNode rootNode) {
     addArrayNodes(rootNode);
     addScalarNodes(rootNode);
     addAdminReadableNodes(rootNode);
     addAdminWritableNodes(rootNode);
     addDynamicNodes(rootNode);
+    addSimulationNodes(rootNode);
+    addSignalNodes(rootNode);
+    if (metrics.isEnabled()) addDiagnosticsNodes(rootNode);
+    config.getModelFile().ifPresent(file -> addModelNodes(AddressSpaceModel.load(file)));
   }
 
   private void addArrayNodes(UaFolderNode rootNode) {
     UaFolderNode arrayTypesFolder = new UaFolderNode(
       server.getNodeMap(),
-      new NodeId(namespaceIndex, "HelloWorld/ArrayTypes"),
+      newNodeId("HelloWorld/ArrayTypes"),
       new QualifiedName(namespaceIndex, "ArrayTypes"),
       LocalizedText.english("ArrayTypes")
     );
@@ -254,7 +453,7 @@ public class Hcd2Namespace implements Namespace {
       Variant variant = new Variant(array);
 
       UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-        .setNodeId(new NodeId(namespaceIndex, "HelloWorld/ArrayTypes/" + name))
+        .setNodeId(newNodeId("HelloWorld/ArrayTypes/" + name))
         .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setBrowseName(new QualifiedName(namespaceIndex, name))
@@ -267,7 +466,7 @@ public class Hcd2Namespace implements Namespace {
 
       node.setValue(new DataValue(variant));
 
-      node.setAttributeDelegate(new ValueLoggingDelegate());
+      node.setAttributeDelegate(new ValueLoggingDelegate(valueLog));
 
       server.getNodeMap().addNode(node);
       arrayTypesFolder.addOrganizes(node);
@@ -277,7 +476,7 @@ public class Hcd2Namespace implements Namespace {
   private void addScalarNodes(UaFolderNode rootNode) {
     UaFolderNode scalarTypesFolder = new UaFolderNode(
       server.getNodeMap(),
-      new NodeId(namespaceIndex, "HelloWorld/ScalarTypes"),
+      newNodeId("HelloWorld/ScalarTypes"),
       new QualifiedName(namespaceIndex, "ScalarTypes"),
       LocalizedText.english("ScalarTypes")
     );
@@ -291,7 +490,7 @@ public class Hcd2Namespace implements Namespace {
       Variant variant = (Variant) os[2];
 
       UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-        .setNodeId(new NodeId(namespaceIndex, "HelloWorld/ScalarTypes/" + name))
+        .setNodeId(newNodeId("HelloWorld/ScalarTypes/" + name))
         .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setBrowseName(new QualifiedName(namespaceIndex, name))
@@ -302,7 +501,7 @@ public class Hcd2Namespace implements Namespace {
 
       node.setValue(new DataValue(variant));
 
-      node.setAttributeDelegate(new ValueLoggingDelegate());
+      node.setAttributeDelegate(new ValueLoggingDelegate(valueLog));
 
       server.getNodeMap().addNode(node);
       scalarTypesFolder.addOrganizes(node);
@@ -312,7 +511,7 @@ public class Hcd2Namespace implements Namespace {
   private void addAdminReadableNodes(UaFolderNode rootNode) {
     UaFolderNode adminFolder = new UaFolderNode(
       server.getNodeMap(),
-      new NodeId(namespaceIndex, "HelloWorld/OnlyAdminCanRead"),
+      newNodeId("HelloWorld/OnlyAdminCanRead"),
       new QualifiedName(namespaceIndex, "OnlyAdminCanRead"),
       LocalizedText.english("OnlyAdminCanRead")
     );
@@ -322,7 +521,7 @@ public class Hcd2Namespace implements Namespace {
 
     String name = "String";
     UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-      .setNodeId(new NodeId(namespaceIndex, "HelloWorld/OnlyAdminCanRead/" + name))
+      .setNodeId(newNodeId("HelloWorld/OnlyAdminCanRead/" + name))
       .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
       .setBrowseName(new QualifiedName(namespaceIndex, name))
       .setDisplayName(LocalizedText.english(name))
@@ -347,7 +546,7 @@ public class Hcd2Namespace implements Namespace {
   private void addAdminWritableNodes(UaFolderNode rootNode) {
     UaFolderNode adminFolder = new UaFolderNode(
       server.getNodeMap(),
-      new NodeId(namespaceIndex, "HelloWorld/OnlyAdminCanWrite"),
+      newNodeId("HelloWorld/OnlyAdminCanWrite"),
       new QualifiedName(namespaceIndex, "OnlyAdminCanWrite"),
       LocalizedText.english("OnlyAdminCanWrite")
     );
@@ -357,7 +556,7 @@ public class Hcd2Namespace implements Namespace {
 
     String name = "String";
     UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-      .setNodeId(new NodeId(namespaceIndex, "HelloWorld/OnlyAdminCanWrite/" + name))
+      .setNodeId(newNodeId("HelloWorld/OnlyAdminCanWrite/" + name))
       .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
       .setBrowseName(new QualifiedName(namespaceIndex, name))
       .setDisplayName(LocalizedText.english(name))
@@ -382,7 +581,7 @@ public class Hcd2Namespace implements Namespace {
   private void addDynamicNodes(UaFolderNode rootNode) {
     UaFolderNode dynamicFolder = new UaFolderNode(
       server.getNodeMap(),
-      new NodeId(namespaceIndex, "HelloWorld/Dynamic"),
+      newNodeId("HelloWorld/Dynamic"),
       new QualifiedName(namespaceIndex, "Dynamic"),
       LocalizedText.english("Dynamic")
     );
@@ -397,7 +596,7 @@ public class Hcd2Namespace implements Namespace {
       Variant variant = new Variant(false);
 
       UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-        .setNodeId(new NodeId(namespaceIndex, "HelloWorld/Dynamic/" + name))
+        .setNodeId(newNodeId("HelloWorld/Dynamic/" + name))
         .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setBrowseName(new QualifiedName(namespaceIndex, name))
         .setDisplayName(LocalizedText.english(name))
@@ -411,13 +610,14 @@ public class Hcd2Namespace implements Namespace {
         new AttributeDelegate() {
           @Override
           public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
-            return new DataValue(new Variant(random.nextBoolean()));
+            return new DataValue(new Variant(ThreadLocalRandom.current().nextBoolean()));
           }
         },
-        ValueLoggingDelegate::new
+        parent -> new ValueLoggingDelegate(parent, valueLog)
       );
 
       node.setAttributeDelegate(delegate);
+      valueCache.add(node.getNodeId(), config.getDynamicMinIntervalMillis());
 
       server.getNodeMap().addNode(node);
       dynamicFolder.addOrganizes(node);
@@ -430,7 +630,7 @@ public class Hcd2Namespace implements Namespace {
       Variant variant = new Variant(0);
 
       UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-        .setNodeId(new NodeId(namespaceIndex, "HelloWorld/Dynamic/" + name))
+        .setNodeId(newNodeId("HelloWorld/Dynamic/" + name))
         .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setBrowseName(new QualifiedName(namespaceIndex, name))
         .setDisplayName(LocalizedText.english(name))
@@ -444,13 +644,14 @@ public class Hcd2Namespace implements Namespace {
         new AttributeDelegate() {
           @Override
           public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
-            return new DataValue(new Variant(random.nextInt()));
+            return new DataValue(new Variant(ThreadLocalRandom.current().nextInt()));
           }
         },
-        ValueLoggingDelegate::new
+        parent -> new ValueLoggingDelegate(parent, valueLog)
       );
 
       node.setAttributeDelegate(delegate);
+      valueCache.add(node.getNodeId(), config.getDynamicMinIntervalMillis());
 
       server.getNodeMap().addNode(node);
       dynamicFolder.addOrganizes(node);
@@ -463,7 +664,7 @@ public class Hcd2Namespace implements Namespace {
       Variant variant = new Variant(0.0);
 
       UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-        .setNodeId(new NodeId(namespaceIndex, "HelloWorld/Dynamic/" + name))
+        .setNodeId(newNodeId("HelloWorld/Dynamic/" + name))
         .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
         .setBrowseName(new QualifiedName(namespaceIndex, name))
         .setDisplayName(LocalizedText.english(name))
@@ -477,22 +678,516 @@ public class Hcd2Namespace implements Namespace {
         new AttributeDelegate() {
           @Override
           public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
-            return new DataValue(new Variant(random.nextDouble()));
+            return new DataValue(new Variant(ThreadLocalRandom.current().nextDouble()));
           }
         },
-        ValueLoggingDelegate::new
+        parent -> new ValueLoggingDelegate(parent, valueLog)
       );
 
       node.setAttributeDelegate(delegate);
+      valueCache.add(node.getNodeId(), config.getDynamicMinIntervalMillis());
 
       server.getNodeMap().addNode(node);
       dynamicFolder.addOrganizes(node);
     }
   }
 
+  // Adds the extra simulated wheels and linear axes, each with a demand and a position variable
+  private void addSimulationNodes(UaFolderNode rootNode) {
+    if (config.getSimulatedWheels() == 0 && config.getSimulatedAxes() == 0) return;
+
+    UaFolderNode simulationFolder = new UaFolderNode(
+      server.getNodeMap(),
+      newNodeId("HelloWorld/Simulation"),
+      new QualifiedName(namespaceIndex, "Simulation"),
+      LocalizedText.english("Simulation")
+    );
+
+    server.getNodeMap().addNode(simulationFolder);
+    rootNode.addOrganizes(simulationFolder);
+
+    for (int i = 0; i < config.getSimulatedWheels(); i++) {
+      String name = "wheel" + i;
+      UaVariableNode demandNode = addSimulationNode(simulationFolder, name, Identifiers.Int32, new Variant(0));
+      UaVariableNode posNode = addSimulationNode(simulationFolder, name + "Pos", Identifiers.Int32, new Variant(0));
+      simulator.addWheel(demandNode.getNodeId(), posNode, null, FILTERS.length, config.getWheelStepMillis());
+    }
+
+    for (int i = 0; i < config.getSimulatedAxes(); i++) {
+      String name = "axis" + i;
+      UaVariableNode demandNode = addSimulationNode(simulationFolder, name, Identifiers.Double, new Variant(0.0));
+      UaVariableNode posNode = addSimulationNode(simulationFolder, name + "Pos", Identifiers.Double, new Variant(0.0));
+      simulator.addAxis(demandNode.getNodeId(), posNode, config.getAxisVelocity());
+    }
+  }
+
+  private UaVariableNode addSimulationNode(UaFolderNode folder, String name, NodeId typeId, Variant variant) {
+    UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
+      .setNodeId(newNodeId("HelloWorld/Simulation/" + name))
+      .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
+      .setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
+      .setBrowseName(new QualifiedName(namespaceIndex, name))
+      .setDisplayName(LocalizedText.english(name))
+      .setDataType(typeId)
+      .setTypeDefinition(Identifiers.BaseDataVariableType)
+      .build();
+
+    node.setValue(new DataValue(variant));
+
+    server.getNodeMap().addNode(node);
+    folder.addOrganizes(node);
+    return node;
+  }
+
+  // Adds the test signal variables, whose values the signal engine evaluates at a fixed rate
+  private void addSignalNodes(UaFolderNode rootNode) {
+    if (config.getSignals() == 0) return;
+
+    UaFolderNode signalsFolder = new UaFolderNode(
+      server.getNodeMap(),
+      newNodeId("HelloWorld/Signals"),
+      new QualifiedName(namespaceIndex, "Signals"),
+      LocalizedText.english("Signals")
+    );
+
+    server.getNodeMap().addNode(signalsFolder);
+    rootNode.addOrganizes(signalsFolder);
+
+    SplittableRandom random = new SplittableRandom(
+      config.getSignalSeed().orElseGet(() -> ThreadLocalRandom.current().nextLong()));
+    List<String> types = config.getSignalTypes();
+
+    for (int i = 0; i < config.getSignals(); i++) {
+      String type = types.get(i % types.size());
+      int signal;
+      try {
+        signal = signals.add(SignalGenerators.create(type, i, random, config.getSignalRateHz()));
+      } catch (IOException | IllegalArgumentException e) {
+        logger.error("Invalid signal {}: {}", type, e.getMessage());
+        return;
+      }
+
+      String name = "signal" + i;
+      UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
+        .setNodeId(newNodeId("HelloWorld/Signals/" + name))
+        .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+        .setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+        .setBrowseName(new QualifiedName(namespaceIndex, name))
+        .setDisplayName(LocalizedText.english(name))
+        .setDataType(Identifiers.Double)
+        .setTypeDefinition(Identifiers.BaseDataVariableType)
+        .build();
+
+      node.setValue(new DataValue(new Variant(0.0)));
+
+      node.setAttributeDelegate(AttributeDelegateChain.create(
+        new AttributeDelegate() {
+          @Override
+          public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
+            return signals.read(signal);
+          }
+        },
+        parent -> new ValueLoggingDelegate(parent, valueLog)
+      ));
+
+      server.getNodeMap().addNode(node);
+      signalsFolder.addOrganizes(node);
+    }
+  }
+
+  // A model variable waiting to be built, with its NodeId already assigned.
+  // With lazy model nodes, this is all that is kept of a variable while its node is not built.
+  private static class ModelVariable {
+    final NodeId nodeId;
+    final NodeId folderNodeId;
+    final String name;
+    final AddressSpaceModel.VariableSpec spec;
+    final NodeId positionNodeId;  // wheels and axes: the variable holding the position
+    final boolean compact;        // kept in the CompactNodeStore
+
+    // Lazy model nodes: when the node was last used (ms), the value it had when it was dropped,
+    // and whether it must never be dropped (the simulator holds on to it)
+    volatile long lastAccess;
+    volatile DataValue value;
+    boolean pinned;
+
+    ModelVariable(NodeId nodeId, NodeId folderNodeId, String name, AddressSpaceModel.VariableSpec spec,
+                  NodeId positionNodeId, boolean compact) {
+      this.nodeId = nodeId;
+      this.folderNodeId = folderNodeId;
+      this.name = name;
+      this.spec = spec;
+      this.positionNodeId = positionNodeId;
+      this.compact = compact;
+    }
+  }
+
+  // Adds the folders and variables of a model below the Objects folder
+  private void addModelNodes(AddressSpaceModel model) {
+    long start = System.currentTimeMillis();
+
+    // NodeIds and folders are assigned sequentially, so that numeric NodeIds are the same on every run
+    List<ModelVariable> variables = new ArrayList<>(model.getVariableCount());
+    for (AddressSpaceModel.FolderSpec folder : model.getFolders()) {
+      UaFolderNode folderNode = addModelFolder(folder.getName(), folder, variables);
+      try {
+        server.getUaNamespace().addReference(
+          Identifiers.ObjectsFolder,
+          Identifiers.Organizes,
+          true,
+          folderNode.getNodeId().expanded(),
+          NodeClass.Object
+        );
+      } catch (UaException e) {
+        logger.error("Error adding reference to model folder {}", folder.getName(), e);
+      }
+    }
+
+    if (config.isCompactModelNodes()) {
+      // Wheels and axes get a node, since the simulator needs one for the position
+      int compactCount = (int) variables.stream().filter(v -> v.compact).count();
+      compactNodes = new CompactNodeStore(namespaceIndex, compactCount, config.isNumericNodeIds());
+      for (ModelVariable v : variables) {
+        if (v.compact) {
+          compactNodes.add(v.nodeId, v.name, v.folderNodeId, v.spec, modelDelegate(v.spec));
+        } else {
+          addModelVariable(v);
+        }
+      }
+    } else if (config.isLazyModelNodes()) {
+      // Only the wheels and axes are built now, the other nodes on first use (see getNode())
+      for (ModelVariable v : variables) {
+        modelVariables.put(v.nodeId, v);
+      }
+      for (ModelVariable v : variables) {
+        if (v.positionNodeId != null) {
+          pin(v);
+          pin(modelVariables.get(v.positionNodeId));
+        }
+      }
+      long sweepMillis = Math.max(1000, config.getNodeIdleMillis() / 4);
+      server.getScheduledExecutorService().scheduleWithFixedDelay(
+        this::evictIdleNodes, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    } else {
+      // The variable nodes are built in parallel (the node map is concurrent)
+      variables.parallelStream().forEach(this::addModelVariable);
+    }
+
+    // The simulator is not thread safe
+    for (ModelVariable v : variables) {
+      AddressSpaceModel.VariableSpec spec = v.spec;
+      if (spec.getEuRange() != null) {
+        euRanges.put(v.nodeId, spec.getEuRange());
+      }
+      if (spec.getSimulation() == AddressSpaceModel.Simulation.WHEEL) {
+        simulator.addWheel(v.nodeId, positionNode(v), spec.getChoices(), spec.getPositions(),
+          spec.getStepMillis() > 0 ? spec.getStepMillis() : config.getWheelStepMillis());
+      } else if (spec.getSimulation() == AddressSpaceModel.Simulation.AXIS) {
+        simulator.addAxis(v.nodeId, positionNode(v),
+          spec.getVelocity() > 0 ? spec.getVelocity() : config.getAxisVelocity());
+      }
+    }
+
+    logger.info("Added {} model variables in {} ms{}", variables.size(), System.currentTimeMillis() - start,
+      compactNodes != null ? " (" + compactNodes.size() + " in a compact store)"
+        : config.isLazyModelNodes() ? " (" + materialized.size() + " built, the rest on first use)" : "");
+  }
+
+  // Builds the node of a lazy model variable now and keeps it
+  private void pin(ModelVariable v) {
+    v.pinned = true;
+    addModelVariable(v);
+    materialized.add(v);
+  }
+
+  /**
+   * Returns the node with the given id, building it first if it is a lazy model variable that is
+   * not built yet (or was dropped), or null if there is no such node
+   */
+  private ServerNode getNode(NodeId nodeId) {
+    if (compactNodes != null) {
+      ServerNode node = compactNodes.getNode(nodeId);
+      if (node != null) return node;
+    }
+
+    ModelVariable v = modelVariables.get(nodeId);
+    if (v == null) return server.getNodeMap().get(nodeId);
+
+    v.lastAccess = System.currentTimeMillis();
+    ServerNode node = server.getNodeMap().get(nodeId);
+    if (node != null) return node;
+
+    synchronized (v) {
+      node = server.getNodeMap().get(nodeId);
+      if (node == null) {
+        addModelVariable(v);
+        node = server.getNodeMap().get(nodeId);
+        if (v.value != null) {
+          ((UaVariableNode) node).setValue(v.value);
+          v.value = null;
+        }
+        materialized.add(v);
+      }
+      return node;
+    }
+  }
+
+  // Answers reads of the browse or display name of a lazy model variable that is not built, without
+  // building it, so that translating the browse path of one variable does not build all its siblings.
+  // Returns null for other reads.
+  private DataValue describe(ReadValueId readValueId) {
+    ModelVariable v = modelVariables.get(readValueId.getNodeId());
+    if (v == null || server.getNodeMap().containsKey(v.nodeId)) return null;
+
+    if (AttributeId.BrowseName.uid().equals(readValueId.getAttributeId())) {
+      return new DataValue(new Variant(new QualifiedName(namespaceIndex, v.name)));
+    } else if (AttributeId.DisplayName.uid().equals(readValueId.getAttributeId())) {
+      return new DataValue(new Variant(LocalizedText.english(v.name)));
+    }
+    return null;
+  }
+
+  // Drops the lazy model nodes that were not used for a while, if the heap is filling up.
+  // The value of a dropped node is kept in its ModelVariable and restored when the node is built again.
+  private void evictIdleNodes() {
+    try {
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      if (used < runtime.maxMemory() * config.getEvictionHeapFraction()) return;
+
+      long idleSince = System.currentTimeMillis() - config.getNodeIdleMillis();
+      int evicted = 0;
+      for (ModelVariable v : materialized) {
+        if (v.pinned || v.lastAccess > idleSince) continue;
+        synchronized (v) {
+          if (v.lastAccess > idleSince) continue;
+          ServerNode node = server.getNodeMap().get(v.nodeId);
+          if (node instanceof UaVariableNode && v.spec.getSimulation() != AddressSpaceModel.Simulation.RANDOM) {
+            v.value = ((UaVariableNode) node).getValue();
+          }
+          server.getNodeMap().removeNode(v.nodeId);
+          materialized.remove(v);
+          evicted++;
+        }
+      }
+
+      if (evicted > 0) {
+        logger.info("Dropped {} idle model nodes ({} MB of {} MB heap in use), {} still built",
+          evicted, used >> 20, runtime.maxMemory() >> 20, materialized.size());
+      }
+    } catch (Throwable t) {
+      // an exception would cancel the scheduled task
+      logger.error("Dropping idle model nodes failed", t);
+    }
+  }
+
+  private UaVariableNode positionNode(ModelVariable demand) {
+    return (UaVariableNode) server.getNodeMap().get(demand.positionNodeId);
+  }
+
+  // Adds a model folder and its sub folders, and assigns NodeIds to their variables
+  private UaFolderNode addModelFolder(String path, AddressSpaceModel.FolderSpec folder, List<ModelVariable> variables) {
+    UaFolderNode folderNode = new UaFolderNode(
+      server.getNodeMap(),
+      newNodeId(path),
+      new QualifiedName(namespaceIndex, folder.getName()),
+      LocalizedText.english(folder.getName())
+    );
+    server.getNodeMap().addNode(folderNode);
+
+    for (AddressSpaceModel.FolderSpec subFolder : folder.getFolders()) {
+      folderNode.addOrganizes(addModelFolder(path + "/" + subFolder.getName(), subFolder, variables));
+    }
+
+    // The folder's references are added in one call
+    List<Reference> references = new ArrayList<>();
+    for (AddressSpaceModel.VariableSpec spec : folder.getVariables()) {
+      List<ModelVariable> added = new ArrayList<>(2);
+      boolean device = spec.getSimulation() == AddressSpaceModel.Simulation.WHEEL
+        || spec.getSimulation() == AddressSpaceModel.Simulation.AXIS;
+
+      // Compact variables are not in the browse path index, and the store generates their folder references
+      if (config.isCompactModelNodes() && !device) {
+        String name = spec.getName();
+        variables.add(new ModelVariable(assignNodeId(path + "/" + name), folderNode.getNodeId(), name, spec, null, true));
+        continue;
+      }
+
+      NodeId nodeId = newNodeId(path + "/" + spec.getName());
+      NodeId positionNodeId = null;
+
+      // Wheels and axes publish their position in an extra read only variable
+      if (device) {
+        boolean wheel = spec.getSimulation() == AddressSpaceModel.Simulation.WHEEL;
+        AddressSpaceModel.VariableSpec positionSpec = new AddressSpaceModel.VariableSpec(
+          spec.getName() + "Pos",
+          wheel ? BuiltinDataType.Int32 : BuiltinDataType.Double,
+          false, wheel ? (Object) 0 : (Object) 0.0, false,
+          AddressSpaceModel.Simulation.NONE, null, 0, 0, 0.0, null);
+        positionNodeId = newNodeId(path + "/" + positionSpec.getName());
+        added.add(new ModelVariable(positionNodeId, folderNode.getNodeId(), positionSpec.getName(), positionSpec, null,
+          false));
+      }
+
+      added.add(0, new ModelVariable(nodeId, folderNode.getNodeId(), spec.getName(), spec, positionNodeId, false));
+
+      for (ModelVariable v : added) {
+        references.add(new Reference(folderNode.getNodeId(), Identifiers.Organizes, v.nodeId.expanded(),
+          NodeClass.Variable, true));
+        variables.add(v);
+      }
+    }
+    folderNode.addReferences(references);
+
+    return folderNode;
+  }
+
+  private void addModelVariable(ModelVariable v) {
+    AddressSpaceModel.VariableSpec spec = v.spec;
+    UByte accessLevel = ubyte(AccessLevel.getMask(spec.isWritable() ? AccessLevel.READ_WRITE : AccessLevel.READ_ONLY));
+
+    UaVariableNode.UaVariableNodeBuilder builder = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
+      .setNodeId(v.nodeId)
+      .setAccessLevel(accessLevel)
+      .setUserAccessLevel(accessLevel)
+      .setBrowseName(new QualifiedName(namespaceIndex, v.name))
+      .setDisplayName(LocalizedText.english(v.name))
+      .setDataType(new NodeId(0, spec.getDataType().getTypeId()))
+      .setTypeDefinition(Identifiers.BaseDataVariableType);
+
+    if (spec.isArray()) {
+      builder
+        .setValueRank(ValueRank.OneDimension.getValue())
+        .setArrayDimensions(new UInteger[]{uint(0)});
+    }
+
+    UaVariableNode node = builder.build();
+    node.setValue(new DataValue(new Variant(spec.getValue())));
+    node.setAttributeDelegate(modelDelegate(spec));
+
+    node.addReference(new Reference(v.nodeId, Identifiers.Organizes, v.folderNodeId.expanded(),
+      NodeClass.Object, false));
+
+    // a lazy model node that is built again
+    if (history.isHistorized(v.nodeId)) setHistorizing(node);
+
+    server.getNodeMap().addNode(node);
+  }
+
+  // Returns the attribute delegate for a model variable
+  private AttributeDelegate modelDelegate(AddressSpaceModel.VariableSpec spec) {
+    if (spec.getSimulation() != AddressSpaceModel.Simulation.RANDOM) return modelLoggingDelegate;
+
+    return randomDelegates.computeIfAbsent(spec.getDataType(), dataType -> AttributeDelegateChain.create(
+      new AttributeDelegate() {
+        @Override
+        public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
+          return new DataValue(new Variant(randomValue(dataType)));
+        }
+      },
+      parent -> new ValueLoggingDelegate(parent, valueLog)
+    ));
+  }
+
+  private Object randomValue(BuiltinDataType dataType) {
+    switch (dataType) {
+      case Boolean:
+        return ThreadLocalRandom.current().nextBoolean();
+      case Float:
+      case Double:
+        return AddressSpaceModel.convertNumber(dataType, ThreadLocalRandom.current().nextDouble());
+      default:
+        // fits all integer types
+        return AddressSpaceModel.convertNumber(dataType, ThreadLocalRandom.current().nextInt(128));
+    }
+  }
+
+  // Publishes the metrics snapshot: a folder per service, the busiest nodes and the clients
+  private void addDiagnosticsNodes(UaFolderNode rootNode) {
+    UaFolderNode diagnosticsFolder = new UaFolderNode(
+      server.getNodeMap(),
+      newNodeId("HelloWorld/Diagnostics"),
+      new QualifiedName(namespaceIndex, "Diagnostics"),
+      LocalizedText.english("Diagnostics")
+    );
+
+    server.getNodeMap().addNode(diagnosticsFolder);
+    rootNode.addOrganizes(diagnosticsFolder);
+
+    for (ServerMetrics.Service service : ServerMetrics.Service.values()) {
+      String name = service.name().charAt(0) + service.name().substring(1).toLowerCase();
+      String path = "HelloWorld/Diagnostics/" + name;
+
+      UaFolderNode serviceFolder = new UaFolderNode(
+        server.getNodeMap(),
+        newNodeId(path),
+        new QualifiedName(namespaceIndex, name),
+        LocalizedText.english(name)
+      );
+
+      server.getNodeMap().addNode(serviceFolder);
+      diagnosticsFolder.addOrganizes(serviceFolder);
+
+      Supplier<Optional<ServerMetrics.ServiceStatistics>> stats = () -> metrics.getSnapshot().getService(service);
+      addDiagnosticsNode(serviceFolder, path, "Requests", Identifiers.Int64,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getRequests).orElse(0L));
+      addDiagnosticsNode(serviceFolder, path, "Operations", Identifiers.Int64,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getOperations).orElse(0L));
+      addDiagnosticsNode(serviceFolder, path, "Errors", Identifiers.Int64,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getErrors).orElse(0L));
+      addDiagnosticsNode(serviceFolder, path, "RequestsPerSecond", Identifiers.Double,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getRequestsPerSecond).orElse(0.0));
+      addDiagnosticsNode(serviceFolder, path, "OperationsPerSecond", Identifiers.Double,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getOperationsPerSecond).orElse(0.0));
+      addDiagnosticsNode(serviceFolder, path, "LatencyP50", Identifiers.Double,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getLatencyP50).orElse(0.0));
+      addDiagnosticsNode(serviceFolder, path, "LatencyP99", Identifiers.Double,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getLatencyP99).orElse(0.0));
+      addDiagnosticsNode(serviceFolder, path, "LatencyMax", Identifiers.Double,
+        () -> stats.get().map(ServerMetrics.ServiceStatistics::getLatencyMax).orElse(0.0));
+    }
+
+    String path = "HelloWorld/Diagnostics";
+    addDiagnosticsNode(diagnosticsFolder, path, "BusiestNodes", Identifiers.String,
+      () -> metrics.getSnapshot().getBusiestNodes().stream().map(Object::toString).toArray(String[]::new));
+    addDiagnosticsNode(diagnosticsFolder, path, "Clients", Identifiers.String,
+      () -> metrics.getSnapshot().getClients().stream().map(Object::toString).toArray(String[]::new));
+    addDiagnosticsNode(diagnosticsFolder, path, "UntrackedOperations", Identifiers.Int64,
+      () -> metrics.getSnapshot().getUntrackedOperations());
+    addDiagnosticsNode(diagnosticsFolder, path, "SnapshotTime", Identifiers.DateTime,
+      () -> new DateTime(new Date(metrics.getSnapshot().getTime())));
+  }
+
+  // A read-only variable whose value is computed when read (String values are arrays)
+  private void addDiagnosticsNode(UaFolderNode folder, String path, String name, NodeId typeId,
+                                  Supplier<Object> value) {
+    UaVariableNode.UaVariableNodeBuilder builder = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
+      .setNodeId(newNodeId(path + "/" + name))
+      .setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+      .setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+      .setBrowseName(new QualifiedName(namespaceIndex, name))
+      .setDisplayName(LocalizedText.english(name))
+      .setDataType(typeId)
+      .setTypeDefinition(Identifiers.BaseDataVariableType);
+    if (typeId.equals(Identifiers.String)) {
+      builder.setValueRank(ValueRank.OneDimension.getValue()).setArrayDimensions(new UInteger[]{uint(0)});
+    }
+    UaVariableNode node = builder.build();
+
+    node.setAttributeDelegate(new AttributeDelegate() {
+      @Override
+      public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
+        return new DataValue(new Variant(value.get()));
+      }
+    });
+
+    server.getNodeMap().addNode(node);
+    folder.addOrganizes(node);
+  }
+
   private void addMethodNode(UaFolderNode folderNode) {
     UaMethodNode methodNode = UaMethodNode.builder(server.getNodeMap())
-      .setNodeId(new NodeId(namespaceIndex, "HelloWorld/sqrt(x)"))
+      .setNodeId(newNodeId("HelloWorld/sqrt(x)"))
       .setBrowseName(new QualifiedName(namespaceIndex, "sqrt(x)"))
       .setDisplayName(new LocalizedText(null, "sqrt(x)"))
       .setDescription(
@@ -533,11 +1228,22 @@ public class Hcd2Namespace implements Namespace {
 
   @Override
   public CompletableFuture<List<Reference>> browse(AccessContext context, NodeId nodeId) {
-    ServerNode node = server.getNodeMap().get(nodeId);
+    long start = metrics.startTime();
+    ServerNode node = getNode(nodeId);
 
     if (node != null) {
-      return CompletableFuture.completedFuture(node.getReferences());
+      List<Reference> references = node.getReferences();
+      List<Reference> compactReferences = compactNodes != null
+        ? compactNodes.getFolderReferences(nodeId) : Collections.emptyList();
+      if (!compactReferences.isEmpty()) {
+        references = new ArrayList<>(references);
+        references.addAll(compactReferences);
+      }
+      metrics.recordOperation(ServerMetrics.Service.BROWSE, nodeId, start);
+      metrics.recordRequest(ServerMetrics.Service.BROWSE, context.getSession(), 1, 0, start);
+      return CompletableFuture.completedFuture(references);
     } else {
+      metrics.recordRequest(ServerMetrics.Service.BROWSE, context.getSession(), 1, 1, start);
       return FutureUtils.failedFuture(new UaException(StatusCodes.Bad_NodeIdUnknown));
     }
   }
@@ -551,117 +1257,150 @@ public class Hcd2Namespace implements Namespace {
 
     List<DataValue> results = Lists.newArrayListWithCapacity(readValueIds.size());
 
+    // Reads without a session are the subscription model sampling monitored items
+    ServerMetrics.Service service = context.getSession().isPresent()
+      ? ServerMetrics.Service.READ : ServerMetrics.Service.SAMPLE;
+    long requestStart = metrics.startTime();
+    int errors = 0;
+
     for (ReadValueId readValueId : readValueIds) {
-      ServerNode node = server.getNodeMap().get(readValueId.getNodeId());
+      long start = metrics.startTime();
+      DataValue described = describe(readValueId);
+      if (described != null) {
+        results.add(described);
+        metrics.recordOperation(service, readValueId.getNodeId(), start);
+        continue;
+      }
+
+      ServerNode node = getNode(readValueId.getNodeId());
 
       if (node != null) {
-        DataValue value = node.readAttribute(
-          new AttributeContext(context),
-          readValueId.getAttributeId(),
-          timestamps,
-          readValueId.getIndexRange()
-        );
+        AttributeContext attributeContext = new AttributeContext(context);
+        boolean valueRead = AttributeId.Value.uid().equals(readValueId.getAttributeId())
+          && readValueId.getIndexRange() == null;
+
+        // variables whose values are produced when read give their cached value if it is recent enough
+        DataValue value = valueRead ? valueCache.read(readValueId.getNodeId(), maxAge, timestamps,
+          () -> node.readAttribute(attributeContext, AttributeId.Value.uid(), TimestampsToReturn.Both, null)) : null;
+        if (value == null) {
+          value = node.readAttribute(
+            attributeContext,
+            readValueId.getAttributeId(),
+            timestamps,
+            readValueId.getIndexRange()
+          );
+        }
 
         results.add(value);
+        // the values of dynamic variables only come into being when they are read
+        if (valueRead) {
+          history.record(readValueId.getNodeId(), value);
+        }
+        if (value.getStatusCode() != null && value.getStatusCode().isBad()) errors++;
+        metrics.recordOperation(service, readValueId.getNodeId(), start);
       } else {
         results.add(new DataValue(StatusCodes.Bad_NodeIdUnknown));
+        errors++;
       }
     }
 
+    metrics.recordRequest(service, context.getSession(), readValueIds.size(), errors, requestStart);
     context.complete(results);
   }
 
   @Override
   public void write(WriteContext context, List<WriteValue> writeValues) {
     List<StatusCode> results = Lists.newArrayListWithCapacity(writeValues.size());
+    long requestStart = metrics.startTime();
+    int errors = 0;
 
     for (WriteValue writeValue : writeValues) {
-      ServerNode node = server.getNodeMap().get(writeValue.getNodeId());
-
-      if (node != null) {
-        try {
-          node.writeAttribute(
-            new AttributeContext(context),
-            writeValue.getAttributeId(),
-            writeValue.getValue(),
-            writeValue.getIndexRange()
-          );
-
-          // React when the filter or disperser value is set to simulate wheel moving slowly
-          if (writeValue.getNodeId().equals(filterNodeId)) {
-            incFilterPos();
-          } else if (writeValue.getNodeId().equals(disperserNodeId)) {
-            incDisperserPos();
-          }
-
-          results.add(StatusCode.GOOD);
-
-          logger.info(
-            "Wrote value {} to {} attribute of {}",
-            writeValue.getValue().getValue(),
-            AttributeId.from(writeValue.getAttributeId()).map(Object::toString).orElse("unknown"),
-            node.getNodeId());
-        } catch (UaException e) {
-          logger.error("Unable to write value={}", writeValue.getValue(), e);
-          results.add(e.getStatusCode());
+      long start = metrics.startTime();
+      StatusCode result;
+      // A lazy model node must not be dropped while it is written, or the new value would be lost
+      ModelVariable v = modelVariables.get(writeValue.getNodeId());
+      if (v != null) {
+        synchronized (v) {
+          result = write(context, writeValue);
         }
       } else {
-        results.add(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
+        result = write(context, writeValue);
+      }
+      results.add(result);
+      if (result.isBad()) errors++;
+      if (result.getValue() != StatusCodes.Bad_NodeIdUnknown) {
+        metrics.recordOperation(ServerMetrics.Service.WRITE, writeValue.getNodeId(), start);
       }
     }
 
+    metrics.recordRequest(ServerMetrics.Service.WRITE, context.getSession(), writeValues.size(), errors, requestStart);
     context.complete(results);
   }
 
-  private void incFilterPos() {
-    UaVariableNode filterNode = (UaVariableNode) server.getNodeMap().get(filterNodeId);
-    UaVariableNode filterPosNode = (UaVariableNode) server.getNodeMap().get(filterPosNodeId);
-    String filter = (String) filterNode.getValue().getValue().getValue();
-    int filterPos = (Integer) filterPosNode.getValue().getValue().getValue();
-    if (!FILTERS[filterPos].equals(filter)) {
-      filterPos = (filterPos + 1) % FILTERS.length;
-      logger.info("Setting filterPos  to = " + filterPos);
-      filterPosNode.setValue(new DataValue(new Variant(filterPos)));
-      if (!FILTERS[filterPos].equals(filter)) {
-        server.getScheduledExecutorService().schedule(this::incFilterPos, 1000L, TimeUnit.MILLISECONDS);
-      }
+  private StatusCode write(WriteContext context, WriteValue writeValue) {
+    ServerNode node = getNode(writeValue.getNodeId());
+
+    if (node == null) {
+      return new StatusCode(StatusCodes.Bad_NodeIdUnknown);
     }
-  }
 
-  private void incDisperserPos() {
-    UaVariableNode disperserNode = (UaVariableNode) server.getNodeMap().get(disperserNodeId);
-    UaVariableNode disperserPosNode = (UaVariableNode) server.getNodeMap().get(disperserPosNodeId);
-    String disperser = (String) disperserNode.getValue().getValue().getValue();
-    int disperserPos = (Integer) disperserPosNode.getValue().getValue().getValue();
-    if (!DISPERSERS[disperserPos].equals(disperser)) {
-      disperserPos = (disperserPos + 1) % DISPERSERS.length;
-      logger.info("Setting disperserPos  to = " + disperserPos);
-      disperserPosNode.setValue(new DataValue(new Variant(disperserPos)));
-      if (!DISPERSERS[disperserPos].equals(disperser)) {
-        server.getScheduledExecutorService().schedule(this::incDisperserPos, 1000L, TimeUnit.MILLISECONDS);
+    try {
+      node.writeAttribute(
+        new AttributeContext(context),
+        writeValue.getAttributeId(),
+        writeValue.getValue(),
+        writeValue.getIndexRange()
+      );
+
+      // React when a demand (like the filter or disperser value) is set to simulate the device moving
+      if (AttributeId.Value.uid().equals(writeValue.getAttributeId())) {
+        simulator.demand(writeValue.getNodeId(), writeValue.getValue().getValue().getValue());
+        history.record(writeValue.getNodeId(),
+          node instanceof UaVariableNode ? ((UaVariableNode) node).getValue() : writeValue.getValue());
       }
+
+      // the values written are logged by the nodes' ValueLoggingDelegates, through the rate limited ValueLog
+      if (logger.isDebugEnabled()) {
+        logger.debug(
+          "Wrote value {} to {} attribute of {}",
+          writeValue.getValue().getValue(),
+          AttributeId.from(writeValue.getAttributeId()).map(Object::toString).orElse("unknown"),
+          node.getNodeId());
+      }
+
+      return StatusCode.GOOD;
+    } catch (UaException e) {
+      logger.error("Unable to write value={}", writeValue.getValue(), e);
+      return e.getStatusCode();
     }
   }
 
+  // The subscription model samples the wrappers that apply the items' deadband filters (see DeadbandFilters)
 
   @Override
   public void onDataItemsCreated(List<DataItem> dataItems) {
-    subscriptionModel.onDataItemsCreated(dataItems);
+    subscriptionModel.onDataItemsCreated(
+      dataItems.stream().map(deadbandFilters::wrap).collect(Collectors.toList()));
   }
 
   @Override
   public void onDataItemsModified(List<DataItem> dataItems) {
-    subscriptionModel.onDataItemsModified(dataItems);
+    subscriptionModel.onDataItemsModified(
+      dataItems.stream().map(deadbandFilters::wrapper).collect(Collectors.toList()));
   }
 
   @Override
   public void onDataItemsDeleted(List<DataItem> dataItems) {
-    subscriptionModel.onDataItemsDeleted(dataItems);
+    subscriptionModel.onDataItemsDeleted(
+      dataItems.stream().map(deadbandFilters::remove).collect(Collectors.toList()));
   }
 
   @Override
   public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
-    subscriptionModel.onMonitoringModeChanged(monitoredItems);
+    subscriptionModel.onMonitoringModeChanged(
+      monitoredItems.stream()
+        .map(item -> item instanceof DataItem ? deadbandFilters.wrapper((DataItem) item) : item)
+        .collect(Collectors.toList()));
   }
 
   @Override
@@ -670,13 +1409,27 @@ public class Hcd2Namespace implements Namespace {
 
     return node.flatMap(n -> {
       if (n instanceof UaMethodNode) {
-        return ((UaMethodNode) n).getInvocationHandler();
+        return ((UaMethodNode) n).getInvocationHandler().map(handler -> timed(methodId, handler));
       } else {
         return Optional.empty();
       }
     });
   }
 
+  // Records the calls of a method in the metrics (the session is not known here)
+  private MethodInvocationHandler timed(NodeId methodId, MethodInvocationHandler handler) {
+    if (!metrics.isEnabled()) return handler;
+    return (request, future) -> {
+      long start = metrics.startTime();
+      future.whenComplete((result, ex) -> {
+        boolean failed = ex != null || result.getStatusCode().isBad();
+        metrics.recordOperation(ServerMetrics.Service.CALL, methodId, start);
+        metrics.recordRequest(ServerMetrics.Service.CALL, Optional.empty(), 1, failed ? 1 : 0, start);
+      });
+      handler.invoke(request, future);
+    };
+  }
+
 }
 
 
@@ -0,0 +1,585 @@
+package csw.opc.server;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Settings for Hcd2Namespace. Use builder() or fromSystemProperties() to create one.
+ */
+public class Hcd2NamespaceConfig {
+
+    // System properties read by fromSystemProperties()
+    public static final String NUMERIC_NODE_IDS_PROPERTY = "csw.opc.server.numericNodeIds";
+    public static final String SIMULATION_TICK_PROPERTY = "csw.opc.server.simulationTickMs";
+    public static final String WHEEL_STEP_PROPERTY = "csw.opc.server.wheelStepMs";
+    public static final String SIMULATED_WHEELS_PROPERTY = "csw.opc.server.simulatedWheels";
+    public static final String SIMULATED_AXES_PROPERTY = "csw.opc.server.simulatedAxes";
+    public static final String MODEL_FILE_PROPERTY = "csw.opc.server.modelFile";
+    public static final String LAZY_NODES_PROPERTY = "csw.opc.server.lazyNodes";
+    public static final String COMPACT_NODES_PROPERTY = "csw.opc.server.compactNodes";
+    public static final String VALUE_LOG_PROPERTY = "csw.opc.server.valueLog";
+    public static final String VALUE_LOG_SAMPLE_EVERY_PROPERTY = "csw.opc.server.valueLogSampleEvery";
+    public static final String VALUE_LOG_MAX_PER_SECOND_PROPERTY = "csw.opc.server.valueLogMaxPerSecond";
+    public static final String METRICS_PROPERTY = "csw.opc.server.metrics";
+    public static final String METRICS_INTERVAL_PROPERTY = "csw.opc.server.metricsIntervalSec";
+    public static final String METRICS_MAX_NODES_PROPERTY = "csw.opc.server.metricsMaxNodes";
+    public static final String NODE_IDLE_PROPERTY = "csw.opc.server.nodeIdleMs";
+    public static final String EVICTION_HEAP_FRACTION_PROPERTY = "csw.opc.server.evictionHeapFraction";
+    public static final String SIGNALS_PROPERTY = "csw.opc.server.signals";
+    public static final String SIGNAL_TYPES_PROPERTY = "csw.opc.server.signalTypes";
+    public static final String SIGNAL_RATE_PROPERTY = "csw.opc.server.signalRateHz";
+    public static final String SIGNAL_SEED_PROPERTY = "csw.opc.server.signalSeed";
+    public static final String SIGNAL_PARTITIONS_PROPERTY = "csw.opc.server.signalPartitions";
+    public static final String DYNAMIC_MIN_INTERVAL_PROPERTY = "csw.opc.server.dynamicMinIntervalMs";
+    public static final String HISTORY_DEPTH_PROPERTY = "csw.opc.server.historyDepth";
+    public static final String HISTORY_PATHS_PROPERTY = "csw.opc.server.historyPaths";
+    public static final String HISTORY_BUCKET_MS_PROPERTY = "csw.opc.server.historyBucketMs";
+    public static final String HISTORY_BUCKETS_PROPERTY = "csw.opc.server.historyBuckets";
+    public static final String HISTORY_ARCHIVE_DIR_PROPERTY = "csw.opc.server.historyArchiveDir";
+    public static final String HISTORY_SEGMENT_MB_PROPERTY = "csw.opc.server.historySegmentMb";
+    public static final String HISTORY_SEGMENT_MINUTES_PROPERTY = "csw.opc.server.historySegmentMinutes";
+    public static final String HISTORY_RETENTION_HOURS_PROPERTY = "csw.opc.server.historyRetentionHours";
+
+    // The signals of the HelloWorld/Signals variables by default, one after the other (see SignalGenerators)
+    public static final List<String> DEFAULT_SIGNAL_TYPES = Collections.unmodifiableList(Arrays.asList(
+        "sine", "ramp", "square", "noise"));
+
+    // The variables historized by default: the HCD variables, and the dynamic and simulated ones
+    public static final List<String> DEFAULT_HISTORY_PATHS = Collections.unmodifiableList(Arrays.asList(
+        "HelloWorld/ScalarTypes/filter", "HelloWorld/ScalarTypes/disperser",
+        "HelloWorld/Dynamic/", "HelloWorld/Simulation/"));
+
+    private final boolean numericNodeIds;
+    private final long simulationTickMillis;
+    private final long wheelStepMillis;
+    private final int simulatedWheels;
+    private final int simulatedAxes;
+    private final double axisVelocity;
+    private final Optional<File> modelFile;
+    private final boolean lazyModelNodes;
+    private final long nodeIdleMillis;
+    private final double evictionHeapFraction;
+    private final boolean compactModelNodes;
+    private final ValueLog.Mode valueLogMode;
+    private final int valueLogSampleEvery;
+    private final int valueLogMaxPerSecond;
+    private final boolean metrics;
+    private final int metricsIntervalSeconds;
+    private final int metricsMaxNodes;
+    private final int signals;
+    private final List<String> signalTypes;
+    private final double signalRateHz;
+    private final Optional<Long> signalSeed;
+    private final int signalPartitions;
+    private final long dynamicMinIntervalMillis;
+    private final int historyDepth;
+    private final List<String> historyPaths;
+    private final long historyBucketMillis;
+    private final int historyBuckets;
+    private final Optional<File> historyArchiveDir;
+    private final int historySegmentMb;
+    private final int historySegmentMinutes;
+    private final int historyRetentionHours;
+
+    private Hcd2NamespaceConfig(Builder builder) {
+        this.numericNodeIds = builder.numericNodeIds;
+        this.simulationTickMillis = builder.simulationTickMillis;
+        this.wheelStepMillis = builder.wheelStepMillis;
+        this.simulatedWheels = builder.simulatedWheels;
+        this.simulatedAxes = builder.simulatedAxes;
+        this.axisVelocity = builder.axisVelocity;
+        this.modelFile = builder.modelFile;
+        this.lazyModelNodes = builder.lazyModelNodes;
+        this.nodeIdleMillis = builder.nodeIdleMillis;
+        this.evictionHeapFraction = builder.evictionHeapFraction;
+        this.compactModelNodes = builder.compactModelNodes;
+        this.valueLogMode = builder.valueLogMode;
+        this.valueLogSampleEvery = builder.valueLogSampleEvery;
+        this.valueLogMaxPerSecond = builder.valueLogMaxPerSecond;
+        this.metrics = builder.metrics;
+        this.metricsIntervalSeconds = builder.metricsIntervalSeconds;
+        this.metricsMaxNodes = builder.metricsMaxNodes;
+        this.signals = builder.signals;
+        this.signalTypes = builder.signalTypes;
+        this.signalRateHz = builder.signalRateHz;
+        this.signalSeed = builder.signalSeed;
+        this.signalPartitions = builder.signalPartitions;
+        this.dynamicMinIntervalMillis = builder.dynamicMinIntervalMillis;
+        this.historyDepth = builder.historyDepth;
+        this.historyPaths = builder.historyPaths;
+        this.historyBucketMillis = builder.historyBucketMillis;
+        this.historyBuckets = builder.historyBuckets;
+        this.historyArchiveDir = builder.historyArchiveDir;
+        this.historySegmentMb = builder.historySegmentMb;
+        this.historySegmentMinutes = builder.historySegmentMinutes;
+        this.historyRetentionHours = builder.historyRetentionHours;
+    }
+
+    /**
+     * If true, nodes get compact numeric NodeIds instead of their browse path as a string NodeId
+     */
+    public boolean isNumericNodeIds() {
+        return numericNodeIds;
+    }
+
+    /**
+     * The tick period of the motion simulation (ms)
+     */
+    public long getSimulationTickMillis() {
+        return simulationTickMillis;
+    }
+
+    /**
+     * The time a wheel (filter, disperser) takes to move one position (ms)
+     */
+    public long getWheelStepMillis() {
+        return wheelStepMillis;
+    }
+
+    /**
+     * The number of extra simulated wheels in the HelloWorld/Simulation folder
+     */
+    public int getSimulatedWheels() {
+        return simulatedWheels;
+    }
+
+    /**
+     * The number of simulated linear axes in the HelloWorld/Simulation folder
+     */
+    public int getSimulatedAxes() {
+        return simulatedAxes;
+    }
+
+    /**
+     * The velocity of the simulated linear axes (units per second)
+     */
+    public double getAxisVelocity() {
+        return axisVelocity;
+    }
+
+    /**
+     * A file describing extra folders and variables to add (see AddressSpaceModel), if any
+     */
+    public Optional<File> getModelFile() {
+        return modelFile;
+    }
+
+    /**
+     * If true, the variable nodes of the model are only built when a client first browses, reads,
+     * writes or monitors them, and nodes that were not used for a while are dropped again when the
+     * heap is filling up
+     */
+    public boolean isLazyModelNodes() {
+        return lazyModelNodes;
+    }
+
+    /**
+     * Lazy model nodes: the time a node must not have been used before it may be dropped (ms)
+     */
+    public long getNodeIdleMillis() {
+        return nodeIdleMillis;
+    }
+
+    /**
+     * Lazy model nodes: idle nodes are only dropped when this fraction of the maximum heap is in use
+     */
+    public double getEvictionHeapFraction() {
+        return evictionHeapFraction;
+    }
+
+    /**
+     * If true, the variables of the model are kept in a CompactNodeStore instead of one node object each
+     * (except wheels and axes). This takes precedence over isLazyModelNodes().
+     */
+    public boolean isCompactModelNodes() {
+        return compactModelNodes;
+    }
+
+    /**
+     * What the value log records of the values read and written by clients (see ValueLog).
+     * This can be changed at runtime with Hcd2Namespace.getValueLog().
+     */
+    public ValueLog.Mode getValueLogMode() {
+        return valueLogMode;
+    }
+
+    /**
+     * Value log in SAMPLED mode: only every n-th read or write of a node is logged
+     */
+    public int getValueLogSampleEvery() {
+        return valueLogSampleEvery;
+    }
+
+    /**
+     * Value log in SAMPLED mode: the maximum number of reads and writes of a node logged per second
+     */
+    public int getValueLogMaxPerSecond() {
+        return valueLogMaxPerSecond;
+    }
+
+    /**
+     * If true, requests are counted and timed per service, node and client (see ServerMetrics), and the
+     * statistics are published in the HelloWorld/Diagnostics folder and through JMX
+     */
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics: the period of the statistics (rates and latency percentiles are per interval)
+     */
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    /**
+     * Metrics: the maximum number of nodes tracked individually
+     */
+    public int getMetricsMaxNodes() {
+        return metricsMaxNodes;
+    }
+
+    /**
+     * The number of test signal variables in the HelloWorld/Signals folder (see SignalEngine)
+     */
+    public int getSignals() {
+        return signals;
+    }
+
+    /**
+     * The specs of the signals, like "sine,period=2" (see SignalGenerators), given to the variables in turn
+     */
+    public List<String> getSignalTypes() {
+        return signalTypes;
+    }
+
+    /**
+     * The number of times per second the signals are evaluated
+     */
+    public double getSignalRateHz() {
+        return signalRateHz;
+    }
+
+    /**
+     * The seed of the noise signals, if they are to be the same on every run
+     */
+    public Optional<Long> getSignalSeed() {
+        return signalSeed;
+    }
+
+    /**
+     * The number of tasks the signals are evaluated in
+     */
+    public int getSignalPartitions() {
+        return signalPartitions;
+    }
+
+    /**
+     * The minimum time between two new values of a dynamic variable (ms): reads within it get the cached value,
+     * whatever their maxAge (see SampledValueCache)
+     */
+    public long getDynamicMinIntervalMillis() {
+        return dynamicMinIntervalMillis;
+    }
+
+    /**
+     * The number of values kept in memory for each historized variable, for HistoryRead (0 turns history off)
+     */
+    public int getHistoryDepth() {
+        return historyDepth;
+    }
+
+    /**
+     * The browse path prefixes of the historized variables (see HistoryRecorder)
+     */
+    public List<String> getHistoryPaths() {
+        return historyPaths;
+    }
+
+    /**
+     * The time span of the buckets the historized values are summarized in, for processed HistoryRead (ms).
+     * Processing intervals that are multiples of it are computed from the buckets.
+     */
+    public long getHistoryBucketMillis() {
+        return historyBucketMillis;
+    }
+
+    /**
+     * The number of buckets kept for each historized variable (0 turns them off)
+     */
+    public int getHistoryBuckets() {
+        return historyBuckets;
+    }
+
+    /**
+     * The directory where the values of the historized variables are archived (see HistoryArchive), if any
+     */
+    public Optional<File> getHistoryArchiveDir() {
+        return historyArchiveDir;
+    }
+
+    /**
+     * The size of a history archive segment file (MB)
+     */
+    public int getHistorySegmentMb() {
+        return historySegmentMb;
+    }
+
+    /**
+     * The maximum time span of a history archive segment, after which a new one is started (minutes)
+     */
+    public int getHistorySegmentMinutes() {
+        return historySegmentMinutes;
+    }
+
+    /**
+     * How long archived values are kept (hours)
+     */
+    public int getHistoryRetentionHours() {
+        return historyRetentionHours;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the default settings, overridden by the csw.opc.server.* system properties that are set
+     */
+    public static Hcd2NamespaceConfig fromSystemProperties() {
+        Builder defaults = new Builder();
+        return builder()
+            .setNumericNodeIds(Boolean.getBoolean(NUMERIC_NODE_IDS_PROPERTY))
+            .setSimulationTickMillis(Long.getLong(SIMULATION_TICK_PROPERTY, defaults.simulationTickMillis))
+            .setWheelStepMillis(Long.getLong(WHEEL_STEP_PROPERTY, defaults.wheelStepMillis))
+            .setSimulatedWheels(Integer.getInteger(SIMULATED_WHEELS_PROPERTY, defaults.simulatedWheels))
+            .setSimulatedAxes(Integer.getInteger(SIMULATED_AXES_PROPERTY, defaults.simulatedAxes))
+            .setModelFile(Optional.ofNullable(System.getProperty(MODEL_FILE_PROPERTY)).map(File::new))
+            .setLazyModelNodes(Boolean.getBoolean(LAZY_NODES_PROPERTY))
+            .setNodeIdleMillis(Long.getLong(NODE_IDLE_PROPERTY, defaults.nodeIdleMillis))
+            .setEvictionHeapFraction(Optional.ofNullable(System.getProperty(EVICTION_HEAP_FRACTION_PROPERTY))
+                .map(Double::valueOf).orElse(defaults.evictionHeapFraction))
+            .setCompactModelNodes(Boolean.getBoolean(COMPACT_NODES_PROPERTY))
+            .setValueLogMode(Optional.ofNullable(System.getProperty(VALUE_LOG_PROPERTY))
+                .map(s -> ValueLog.Mode.valueOf(s.toUpperCase())).orElse(defaults.valueLogMode))
+            .setValueLogSampleEvery(Integer.getInteger(VALUE_LOG_SAMPLE_EVERY_PROPERTY, defaults.valueLogSampleEvery))
+            .setValueLogMaxPerSecond(Integer.getInteger(VALUE_LOG_MAX_PER_SECOND_PROPERTY, defaults.valueLogMaxPerSecond))
+            .setMetrics(Boolean.parseBoolean(System.getProperty(METRICS_PROPERTY, String.valueOf(defaults.metrics))))
+            .setMetricsIntervalSeconds(Integer.getInteger(METRICS_INTERVAL_PROPERTY, defaults.metricsIntervalSeconds))
+            .setMetricsMaxNodes(Integer.getInteger(METRICS_MAX_NODES_PROPERTY, defaults.metricsMaxNodes))
+            .setSignals(Integer.getInteger(SIGNALS_PROPERTY, defaults.signals))
+            .setSignalTypes(Optional.ofNullable(System.getProperty(SIGNAL_TYPES_PROPERTY))
+                .map(s -> Arrays.asList(s.split(";"))).orElse(defaults.signalTypes))
+            .setSignalRateHz(Optional.ofNullable(System.getProperty(SIGNAL_RATE_PROPERTY))
+                .map(Double::valueOf).orElse(defaults.signalRateHz))
+            .setSignalSeed(Optional.ofNullable(Long.getLong(SIGNAL_SEED_PROPERTY)))
+            .setSignalPartitions(Integer.getInteger(SIGNAL_PARTITIONS_PROPERTY, defaults.signalPartitions))
+            .setDynamicMinIntervalMillis(Long.getLong(DYNAMIC_MIN_INTERVAL_PROPERTY, defaults.dynamicMinIntervalMillis))
+            .setHistoryDepth(Integer.getInteger(HISTORY_DEPTH_PROPERTY, defaults.historyDepth))
+            .setHistoryPaths(Optional.ofNullable(System.getProperty(HISTORY_PATHS_PROPERTY))
+                .map(s -> Arrays.asList(s.split(","))).orElse(defaults.historyPaths))
+            .setHistoryBucketMillis(Long.getLong(HISTORY_BUCKET_MS_PROPERTY, defaults.historyBucketMillis))
+            .setHistoryBuckets(Integer.getInteger(HISTORY_BUCKETS_PROPERTY, defaults.historyBuckets))
+            .setHistoryArchiveDir(Optional.ofNullable(System.getProperty(HISTORY_ARCHIVE_DIR_PROPERTY)).map(File::new))
+            .setHistorySegmentMb(Integer.getInteger(HISTORY_SEGMENT_MB_PROPERTY, defaults.historySegmentMb))
+            .setHistorySegmentMinutes(Integer.getInteger(HISTORY_SEGMENT_MINUTES_PROPERTY, defaults.historySegmentMinutes))
+            .setHistoryRetentionHours(Integer.getInteger(HISTORY_RETENTION_HOURS_PROPERTY, defaults.historyRetentionHours))
+            .build();
+    }
+
+    public static class Builder {
+        private boolean numericNodeIds = false;
+        private long simulationTickMillis = 100;
+        private long wheelStepMillis = 1000;
+        private int simulatedWheels = 0;
+        private int simulatedAxes = 0;
+        private double axisVelocity = 1.0;
+        private Optional<File> modelFile = Optional.empty();
+        private boolean lazyModelNodes = false;
+        private long nodeIdleMillis = 60000;
+        private double evictionHeapFraction = 0.7;
+        private boolean compactModelNodes = false;
+        private ValueLog.Mode valueLogMode = ValueLog.Mode.SAMPLED;
+        private int valueLogSampleEvery = 1;
+        private int valueLogMaxPerSecond = 10;
+        private boolean metrics = true;
+        private int metricsIntervalSeconds = 10;
+        private int metricsMaxNodes = 2000;
+        private int signals = 0;
+        private List<String> signalTypes = DEFAULT_SIGNAL_TYPES;
+        private double signalRateHz = 1000.0;
+        private Optional<Long> signalSeed = Optional.empty();
+        private int signalPartitions = Runtime.getRuntime().availableProcessors();
+        private long dynamicMinIntervalMillis = 10;
+        private int historyDepth = 10000;
+        private List<String> historyPaths = DEFAULT_HISTORY_PATHS;
+        private long historyBucketMillis = 10000;
+        private int historyBuckets = 8640;
+        private Optional<File> historyArchiveDir = Optional.empty();
+        private int historySegmentMb = 64;
+        private int historySegmentMinutes = 60;
+        private int historyRetentionHours = 72;
+
+        public Builder setNumericNodeIds(boolean numericNodeIds) {
+            this.numericNodeIds = numericNodeIds;
+            return this;
+        }
+
+        public Builder setSimulationTickMillis(long simulationTickMillis) {
+            this.simulationTickMillis = simulationTickMillis;
+            return this;
+        }
+
+        public Builder setWheelStepMillis(long wheelStepMillis) {
+            this.wheelStepMillis = wheelStepMillis;
+            return this;
+        }
+
+        public Builder setSimulatedWheels(int simulatedWheels) {
+            this.simulatedWheels = simulatedWheels;
+            return this;
+        }
+
+        public Builder setSimulatedAxes(int simulatedAxes) {
+            this.simulatedAxes = simulatedAxes;
+            return this;
+        }
+
+        public Builder setAxisVelocity(double axisVelocity) {
+            this.axisVelocity = axisVelocity;
+            return this;
+        }
+
+        public Builder setModelFile(Optional<File> modelFile) {
+            this.modelFile = modelFile;
+            return this;
+        }
+
+        public Builder setLazyModelNodes(boolean lazyModelNodes) {
+            this.lazyModelNodes = lazyModelNodes;
+            return this;
+        }
+
+        public Builder setNodeIdleMillis(long nodeIdleMillis) {
+            this.nodeIdleMillis = nodeIdleMillis;
+            return this;
+        }
+
+        public Builder setEvictionHeapFraction(double evictionHeapFraction) {
+            this.evictionHeapFraction = evictionHeapFraction;
+            return this;
+        }
+
+        public Builder setCompactModelNodes(boolean compactModelNodes) {
+            this.compactModelNodes = compactModelNodes;
+            return this;
+        }
+
+        public Builder setValueLogMode(ValueLog.Mode valueLogMode) {
+            this.valueLogMode = valueLogMode;
+            return this;
+        }
+
+        public Builder setValueLogSampleEvery(int valueLogSampleEvery) {
+            this.valueLogSampleEvery = valueLogSampleEvery;
+            return this;
+        }
+
+        public Builder setValueLogMaxPerSecond(int valueLogMaxPerSecond) {
+            this.valueLogMaxPerSecond = valueLogMaxPerSecond;
+            return this;
+        }
+
+        public Builder setMetrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder setMetricsIntervalSeconds(int metricsIntervalSeconds) {
+            this.metricsIntervalSeconds = metricsIntervalSeconds;
+            return this;
+        }
+
+        public Builder setMetricsMaxNodes(int metricsMaxNodes) {
+            this.metricsMaxNodes = metricsMaxNodes;
+            return this;
+        }
+
+        public Builder setSignals(int signals) {
+            this.signals = signals;
+            return this;
+        }
+
+        public Builder setSignalTypes(List<String> signalTypes) {
+            this.signalTypes = signalTypes;
+            return this;
+        }
+
+        public Builder setSignalRateHz(double signalRateHz) {
+            this.signalRateHz = signalRateHz;
+            return this;
+        }
+
+        public Builder setSignalSeed(Optional<Long> signalSeed) {
+            this.signalSeed = signalSeed;
+            return this;
+        }
+
+        public Builder setSignalPartitions(int signalPartitions) {
+            this.signalPartitions = signalPartitions;
+            return this;
+        }
+
+        public Builder setDynamicMinIntervalMillis(long dynamicMinIntervalMillis) {
+            this.dynamicMinIntervalMillis = dynamicMinIntervalMillis;
+            return this;
+        }
+
+        public Builder setHistoryDepth(int historyDepth) {
+            this.historyDepth = historyDepth;
+            return this;
+        }
+
+        public Builder setHistoryPaths(List<String> historyPaths) {
+            this.historyPaths = historyPaths;
+            return this;
+        }
+
+        public Builder setHistoryBucketMillis(long historyBucketMillis) {
+            this.historyBucketMillis = historyBucketMillis;
+            return this;
+        }
+
+        public Builder setHistoryBuckets(int historyBuckets) {
+            this.historyBuckets = historyBuckets;
+            return this;
+        }
+
+        public Builder setHistoryArchiveDir(Optional<File> historyArchiveDir) {
+            this.historyArchiveDir = historyArchiveDir;
+            return this;
+        }
+
+        public Builder setHistorySegmentMb(int historySegmentMb) {
+            this.historySegmentMb = historySegmentMb;
+            return this;
+        }
+
+        public Builder setHistorySegmentMinutes(int historySegmentMinutes) {
+            this.historySegmentMinutes = historySegmentMinutes;
+            return this;
+        }
+
+        public Builder setHistoryRetentionHours(int historyRetentionHours) {
+            this.historyRetentionHours = historyRetentionHours;
+            return this;
+        }
+
+        public Hcd2NamespaceConfig build() {
+            return new Hcd2NamespaceConfig(this);
+        }
+    }
+}
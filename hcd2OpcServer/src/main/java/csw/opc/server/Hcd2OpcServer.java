@@ -121,7 +121,7 @@ public class Hcd2OpcServer {
 
         server.getNamespaceManager().registerAndAdd(
           Hcd2Namespace.NAMESPACE_URI,
-          idx -> new Hcd2Namespace(server, idx));
+          idx -> new Hcd2Namespace(server, idx, Hcd2NamespaceConfig.fromSystemProperties()));
 
         server.getServer().addRequestHandler(TestStackRequest.class, service -> {
             TestStackRequest request = service.getRequest();
@@ -0,0 +1,203 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The aggregates of processed HistoryRead (ReadProcessedDetails) supported by HistoryReadService: Average,
+ * Minimum, Maximum, Count, Interpolative and TimeAverage.
+ * <p>
+ * The aggregates of an interval are computed from a Summary of the good numeric (and boolean) values in it,
+ * together with the values just before and after it, which is made from the pre-aggregated buckets of the
+ * variable (HistoryBuckets) when the interval is made of whole buckets, or else from its recorded values.
+ * Values are interpolated linearly between samples (TimeAverage is the trapezoidal area divided by the time
+ * covered), and the last value is held when there is none after it. The AggregateConfiguration is ignored.
+ */
+class HistoryAggregates {
+
+    static final Set<NodeId> SUPPORTED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        Identifiers.AggregateFunction_Average, Identifiers.AggregateFunction_Minimum,
+        Identifiers.AggregateFunction_Maximum, Identifiers.AggregateFunction_Count,
+        Identifiers.AggregateFunction_Interpolative, Identifiers.AggregateFunction_TimeAverage)));
+
+    // The historian bits of the status (with the DataValue info type) of computed and interpolated values
+    private static final long CALCULATED = 0x0400 | 0x01;
+    private static final long INTERPOLATED = 0x0400 | 0x02;
+
+    /**
+     * The good numeric values of an interval, and the nearest ones before and after it
+     */
+    static final class Summary {
+        int count;
+        double min;
+        double max;
+        double sum;
+        // the area under the values, from the first to the last (value x ticks)
+        double integral;
+        long firstTime;
+        double firstValue;
+        long lastTime;
+        double lastValue;
+
+        boolean hasBefore;
+        long beforeTime;
+        double beforeValue;
+        boolean hasAfter;
+        long afterTime;
+        double afterValue;
+
+        void add(long time, double value) {
+            add(1, value, value, value, 0.0, time, value, time, value);
+        }
+
+        // Adds the values of a bucket (or a single value), which must all be after the ones already added
+        void add(int n, double bucketMin, double bucketMax, double bucketSum, double bucketIntegral,
+                 long bucketFirstTime, double bucketFirstValue, long bucketLastTime, double bucketLastValue) {
+            if (n == 0) return;
+            if (count == 0) {
+                min = bucketMin;
+                max = bucketMax;
+                firstTime = bucketFirstTime;
+                firstValue = bucketFirstValue;
+            } else {
+                min = Math.min(min, bucketMin);
+                max = Math.max(max, bucketMax);
+                integral += (lastValue + bucketFirstValue) / 2 * (bucketFirstTime - lastTime);
+            }
+            count += n;
+            sum += bucketSum;
+            integral += bucketIntegral;
+            lastTime = bucketLastTime;
+            lastValue = bucketLastValue;
+        }
+
+        void setBefore(long time, double value) {
+            hasBefore = true;
+            beforeTime = time;
+            beforeValue = value;
+        }
+
+        void setAfter(long time, double value) {
+            hasAfter = true;
+            afterTime = time;
+            afterValue = value;
+        }
+
+        // The value at the given time, which must not be before the value before the interval
+        private double valueAt(long time) {
+            long t0;
+            double v0;
+            long t1;
+            double v1;
+            if (count > 0 && time >= firstTime) {
+                if (time >= lastTime && !hasAfter) return lastValue;
+                t0 = lastTime;
+                v0 = lastValue;
+                t1 = afterTime;
+                v1 = afterValue;
+            } else if (count > 0) {
+                t0 = beforeTime;
+                v0 = beforeValue;
+                t1 = firstTime;
+                v1 = firstValue;
+            } else if (hasAfter) {
+                t0 = beforeTime;
+                v0 = beforeValue;
+                t1 = afterTime;
+                v1 = afterValue;
+            } else {
+                return beforeValue;
+            }
+            return t1 == t0 ? v1 : v0 + (double) (time - t0) / (t1 - t0) * (v1 - v0);
+        }
+    }
+
+    /**
+     * Summarizes the good numeric values in [from, to) from the given values (oldest first) and the values
+     * just before and after the interval (each may be null)
+     */
+    static Summary summarize(List<DataValue> values, DataValue before, DataValue after) {
+        Summary summary = new Summary();
+        if (usable(before)) summary.setBefore(time(before), number(before));
+        for (DataValue value : values) {
+            if (usable(value)) summary.add(time(value), number(value));
+        }
+        if (usable(after)) summary.setAfter(time(after), number(after));
+        return summary;
+    }
+
+    /**
+     * Computes an aggregate for the interval [start, end)
+     *
+     * @param time the timestamp of the result: the start of the interval in the direction of the read
+     */
+    static DataValue compute(NodeId aggregate, Summary s, long start, long end, long time) {
+        DateTime t = new DateTime(time);
+        if (aggregate.equals(Identifiers.AggregateFunction_Count)) {
+            return result(s.count, CALCULATED, t);
+        } else if (aggregate.equals(Identifiers.AggregateFunction_Interpolative)) {
+            if (s.count > 0 && s.firstTime == start) return result(s.firstValue, StatusCode.GOOD.getValue(), t);
+            if (!s.hasBefore) return noData(t);
+            return result(s.valueAt(start), INTERPOLATED, t);
+        } else if (aggregate.equals(Identifiers.AggregateFunction_TimeAverage)) {
+            if (s.count == 0 && !s.hasBefore) return noData(t);
+            long from = s.hasBefore ? start : s.firstTime;
+            double area = s.count > 0 ? s.integral : 0.0;
+            if (s.count > 0) {
+                if (s.hasBefore) area += (s.valueAt(start) + s.firstValue) / 2 * (s.firstTime - start);
+                area += (s.lastValue + s.valueAt(end)) / 2 * (end - s.lastTime);
+            } else {
+                area = (s.valueAt(start) + s.valueAt(end)) / 2 * (end - start);
+            }
+            return end > from ? result(area / (end - from), CALCULATED, t) : result(s.firstValue, CALCULATED, t);
+        } else if (s.count == 0) {
+            return noData(t);
+        } else if (aggregate.equals(Identifiers.AggregateFunction_Average)) {
+            return result(s.sum / s.count, CALCULATED, t);
+        } else if (aggregate.equals(Identifiers.AggregateFunction_Minimum)) {
+            return result(s.min, CALCULATED, t);
+        } else {
+            return result(s.max, CALCULATED, t);
+        }
+    }
+
+    private static DataValue result(Object value, long status, DateTime time) {
+        return new DataValue(new Variant(value), new StatusCode(status), time, time);
+    }
+
+    private static DataValue noData(DateTime time) {
+        return new DataValue(Variant.NULL_VALUE, new StatusCode(StatusCodes.Bad_NoData), time, time);
+    }
+
+    /**
+     * Returns true if a value counts in the aggregates: a good number or boolean
+     */
+    static boolean usable(DataValue value) {
+        if (value == null || value.getStatusCode() == null || !value.getStatusCode().isGood()) return false;
+        Object v = value.getValue() != null ? value.getValue().getValue() : null;
+        return v instanceof Number || v instanceof Boolean;
+    }
+
+    static double number(Object v) {
+        return v instanceof Boolean ? ((Boolean) v ? 1.0 : 0.0) : ((Number) v).doubleValue();
+    }
+
+    private static double number(DataValue value) {
+        return number(value.getValue().getValue());
+    }
+
+    private static long time(DataValue value) {
+        return value.getSourceTime().getUtcTime();
+    }
+}
@@ -0,0 +1,610 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the values recorded by a HistoryRecorder on disk, in append-only segment files that are memory-mapped,
+ * so that days of history take no heap and HistoryRead decodes the values straight from the mapped files.
+ * <p>
+ * A segment file has a header, a time index and the records. A record holds the time (UtcTime), the variable's
+ * number (see the nodes.properties file in the directory), the status code and the value, which must be a boolean,
+ * a number or a String (other values are not archived). The index has the time and offset of the first record in
+ * each 4 KB of records, so a range scan starts near its start time. Records are appended in time order, so the
+ * segments and the records in a segment are sorted by time.
+ * <p>
+ * A new segment is started when the current one is full or older than the rollover time, and segments whose
+ * newest record is older than the retention time are deleted. When the server restarts, it goes on appending to
+ * the newest segment.
+ * <p>
+ * Values are appended on the threads of the requests and of the sampling, so the file system work is done on the
+ * archive's own thread where it can: the next segment file is created ahead of time, full segments are written to
+ * disk there, and new variables are appended to the nodes file instead of rewriting it.
+ */
+public class HistoryArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryArchive.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String NODES_FILE = "nodes.properties";
+    // The next segment file, created ahead of time (renamed to its start time when it is used)
+    private static final String SPARE_FILE = "next.seg.tmp";
+
+    // The header: magic, version, end of the records, index entries, and the times of the first and last record
+    private static final int MAGIC = 0x48495354;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DATA_END_OFFSET = 8;
+    private static final int INDEX_COUNT_OFFSET = 12;
+    private static final int START_TIME_OFFSET = 16;
+    private static final int END_TIME_OFFSET = 24;
+
+    // An index entry (time, offset) for every INDEX_INTERVAL bytes of records
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    // A record: time, node, status, kind, then a double for numbers, or the length and UTF-8 bytes of a String
+    private static final int RECORD_HEADER_SIZE = 17;
+    private static final int MAX_STRING_BYTES = Short.MAX_VALUE;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte STRING = 8;
+
+    // UtcTime ticks per millisecond
+    private static final long TICKS_PER_MILLI = 10000;
+
+    private final File directory;
+    private final UShort namespaceIndex;
+    private final int segmentBytes;
+    // the size of the largest record that fits in an empty segment
+    private final int maxRecordBytes;
+    private final long rolloverTicks;
+    private final long retentionTicks;
+
+    // Oldest first; only the last one is appended to (guarded by this)
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment current;
+    private long lastTime = 0;
+    // The mapped spare file, if it was created (guarded by this)
+    private MappedByteBuffer spare;
+
+    // Variable numbers (new ones guarded by this)
+    private final Map<NodeId, Integer> nodeNumbers = new ConcurrentHashMap<>();
+    private final List<NodeId> nodes = new ArrayList<>();
+
+    // Runs the maintenance and the file system work (guarded by this)
+    private ScheduledExecutorService executor;
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final int indexCapacity;
+        final int dataStart;
+        final long startTime;
+
+        // Readers only look at records below dataEnd and entries below indexCount
+        volatile int dataEnd;
+        volatile int indexCount;
+        volatile long endTime;
+        int lastIndexedOffset;
+
+        // The variables with records in the segment (guarded by the segment)
+        private final BitSet nodes = new BitSet();
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.indexCapacity = indexCapacity(buffer.capacity());
+            this.dataStart = dataStart(buffer.capacity());
+            this.startTime = buffer.getLong(START_TIME_OFFSET);
+            this.dataEnd = buffer.getInt(DATA_END_OFFSET);
+            this.indexCount = buffer.getInt(INDEX_COUNT_OFFSET);
+            this.endTime = buffer.getLong(END_TIME_OFFSET);
+            this.lastIndexedOffset = indexCount > 0 ? entryOffset(indexCount - 1) : 0;
+            for (int offset = dataStart; offset < dataEnd; offset = next(buffer, offset)) {
+                nodes.set(buffer.getInt(offset + 8));
+            }
+        }
+
+        long entryTime(int i) {
+            return buffer.getLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE);
+        }
+
+        int entryOffset(int i) {
+            return buffer.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8);
+        }
+
+        // The offset from which to scan for records at or after the given time
+        int seek(long time) {
+            int low = 0;
+            int high = indexCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entryTime(mid) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low > 0 ? entryOffset(low - 1) : dataStart;
+        }
+
+        synchronized boolean contains(int node) {
+            return nodes.get(node);
+        }
+
+        synchronized void added(int node) {
+            nodes.set(node);
+        }
+    }
+
+    /**
+     * Opens the archive in the given directory (creating it if needed), going on with the newest segment
+     *
+     * @param namespaceIndex the index of the namespace of the archived variables
+     * @param segmentBytes   the size of a segment file (Strings that don't fit in an empty segment are not archived)
+     * @param rolloverMillis the maximum time span of a segment (ms)
+     * @param retentionMillis how long the values are kept (ms)
+     * @throws IllegalArgumentException if a segment is too small for a numeric value
+     */
+    public HistoryArchive(File directory, UShort namespaceIndex, int segmentBytes, long rolloverMillis,
+                          long retentionMillis) throws IOException {
+        if (segmentBytes <= 0 || segmentBytes - dataStart(segmentBytes) < RECORD_HEADER_SIZE + 8) {
+            throw new IllegalArgumentException("History segments of " + segmentBytes + " bytes are too small");
+        }
+        this.directory = directory;
+        this.namespaceIndex = namespaceIndex;
+        this.segmentBytes = segmentBytes;
+        this.maxRecordBytes = segmentBytes - dataStart(segmentBytes);
+        this.rolloverTicks = rolloverMillis * TICKS_PER_MILLI;
+        this.retentionTicks = retentionMillis * TICKS_PER_MILLI;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create history archive directory " + directory);
+        }
+        loadNodes();
+        // a spare file left by the last run may have another size
+        new File(directory, SPARE_FILE).delete();
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            // the names are the start times, zero padded
+            Arrays.sort(files);
+            for (File file : files) {
+                MappedByteBuffer buffer = map(file, file.length());
+                if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+                    logger.warn("Ignoring history segment {}, which has an unknown format", file);
+                    continue;
+                }
+                Segment segment = new Segment(file, buffer);
+                segments.add(segment);
+                lastTime = Math.max(lastTime, segment.endTime);
+            }
+        }
+        if (!segments.isEmpty()) current = segments.get(segments.size() - 1);
+
+        logger.info("History archive in {}: {} segments, {} variables", directory, segments.size(), nodes.size());
+    }
+
+    /**
+     * Starts the archive's thread, which creates the next segment file ahead of time, and once a minute deletes
+     * the segments that are older than the retention time (and writes the current one to disk)
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::createSpare);
+        executor.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops the archive's thread and writes the current segment to disk
+     */
+    public void stop() {
+        Segment s;
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            s = current;
+        }
+        if (s != null) s.buffer.force();
+    }
+
+    /**
+     * Appends a value of a variable. Values that are not booleans, numbers or Strings are not archived.
+     *
+     * @param time the source time of the value (UtcTime); an older time than the last appended one is
+     *             replaced by that one
+     */
+    public synchronized void append(NodeId nodeId, long time, StatusCode status, Object value) {
+        byte kind = kind(value);
+        if (kind < 0) return;
+        byte[] string = kind == STRING ? ((String) value).getBytes(StandardCharsets.UTF_8) : null;
+        if (string != null && string.length > MAX_STRING_BYTES) return;
+        int size = RECORD_HEADER_SIZE + (kind == NULL ? 0 : string != null ? 2 + string.length : 8);
+        // it would not fit in a new segment either
+        if (size > maxRecordBytes) return;
+
+        time = Math.max(time, lastTime);
+        lastTime = time;
+        int node = nodeNumber(nodeId);
+
+        try {
+            if (current == null || current.dataEnd + size > current.buffer.capacity()
+                || current.indexCount == current.indexCapacity || time - current.startTime > rolloverTicks) {
+                roll(time);
+            }
+        } catch (IOException e) {
+            logger.error("Could not start a new history segment in {}", directory, e);
+            return;
+        }
+
+        Segment s = current;
+        MappedByteBuffer b = s.buffer;
+        int offset = s.dataEnd;
+        b.putLong(offset, time);
+        b.putInt(offset + 8, node);
+        b.putInt(offset + 12, status != null ? (int) status.getValue() : 0);
+        b.put(offset + 16, kind);
+        if (string != null) {
+            b.putShort(offset + RECORD_HEADER_SIZE, (short) string.length);
+            ByteBuffer d = b.duplicate();
+            d.position(offset + RECORD_HEADER_SIZE + 2);
+            d.put(string);
+        } else if (kind != NULL) {
+            b.putDouble(offset + RECORD_HEADER_SIZE, number(value));
+        }
+
+        if (s.indexCount == 0 || offset - s.lastIndexedOffset >= INDEX_INTERVAL) {
+            int entry = HEADER_SIZE + s.indexCount * INDEX_ENTRY_SIZE;
+            b.putLong(entry, time);
+            b.putInt(entry + 8, offset);
+            s.lastIndexedOffset = offset;
+            s.indexCount++;
+            b.putInt(INDEX_COUNT_OFFSET, s.indexCount);
+        }
+
+        s.added(node);
+        s.endTime = time;
+        b.putLong(END_TIME_OFFSET, time);
+        b.putInt(DATA_END_OFFSET, offset + size);
+        // publishes the record to the readers
+        s.dataEnd = offset + size;
+    }
+
+    /**
+     * The archived values of a variable, or null if it has none
+     */
+    ValueHistory history(NodeId nodeId) {
+        Integer node = nodeNumbers.get(nodeId);
+        return node != null ? new NodeView(node) : null;
+    }
+
+    /**
+     * The time of the oldest archived value (UtcTime), or Long.MAX_VALUE if there is none
+     */
+    long oldestTime() {
+        for (Segment s : segments) {
+            if (s.dataEnd > s.dataStart) return s.startTime;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // Starts a new segment with the given start time (must be called with the lock held). Uses the spare file
+    // if there is one, and leaves writing the previous segment to disk and creating the next spare to the
+    // archive's thread.
+    private void roll(long startTime) throws IOException {
+        Segment previous = current;
+
+        // a segment that filled up within one tick may have the same start time as the next one
+        long name = startTime;
+        File file = new File(directory, String.format("%020d%s", name, SEGMENT_SUFFIX));
+        while (file.exists()) file = new File(directory, String.format("%020d%s", ++name, SEGMENT_SUFFIX));
+
+        MappedByteBuffer buffer = spare;
+        spare = null;
+        if (buffer == null || !new File(directory, SPARE_FILE).renameTo(file)) {
+            buffer = create(file);
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(DATA_END_OFFSET, dataStart(segmentBytes));
+        buffer.putInt(INDEX_COUNT_OFFSET, 0);
+        buffer.putLong(START_TIME_OFFSET, startTime);
+        buffer.putLong(END_TIME_OFFSET, startTime);
+
+        Segment segment = new Segment(file, buffer);
+        segments.add(segment);
+        current = segment;
+        logger.debug("Started history segment {}", file);
+
+        if (executor != null) {
+            executor.execute(() -> {
+                if (previous != null) previous.buffer.force();
+                createSpare();
+            });
+        } else if (previous != null) {
+            previous.buffer.force();
+        }
+    }
+
+    // Creates the spare segment file, if there is none (called on the archive's thread)
+    private void createSpare() {
+        synchronized (this) {
+            if (spare != null) return;
+        }
+        try {
+            MappedByteBuffer buffer = create(new File(directory, SPARE_FILE));
+            synchronized (this) {
+                spare = buffer;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not create the next history segment in {}: {}", directory, e.getMessage());
+        }
+    }
+
+    // Creates a segment file and maps it
+    private MappedByteBuffer create(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentBytes);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int indexCapacity(int segmentBytes) {
+        return segmentBytes / INDEX_INTERVAL + 1;
+    }
+
+    // The offset of the first record in a segment of the given size, after the header and the index
+    private static int dataStart(int segmentBytes) {
+        return HEADER_SIZE + indexCapacity(segmentBytes) * INDEX_ENTRY_SIZE;
+    }
+
+    // Deletes the segments past the retention time, except the current one, and writes the current one to disk
+    // (called on the archive's thread)
+    private void maintain() {
+        try {
+            long oldest = DateTime.now().getUtcTime() - retentionTicks;
+            for (Segment s : segments) {
+                synchronized (this) {
+                    if (s == current || s.endTime >= oldest) continue;
+                    segments.remove(s);
+                }
+                // readers that still have the segment keep its mapping until it is garbage collected
+                if (!s.file.delete()) logger.warn("Could not delete history segment {}", s.file);
+            }
+            Segment s;
+            synchronized (this) {
+                s = current;
+            }
+            // forcing a mapped buffer while it is appended to is safe, so the appends don't wait for the disk
+            if (s != null) s.buffer.force();
+            createSpare();
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.error("History archive maintenance failed", t);
+        }
+    }
+
+    // Returns the number of a variable, adding it to the nodes file if it is new (must be called with the lock held)
+    private int nodeNumber(NodeId nodeId) {
+        Integer node = nodeNumbers.get(nodeId);
+        if (node != null) return node;
+
+        int n = nodes.size();
+        nodes.add(nodeId);
+        nodeNumbers.put(nodeId, n);
+        appendNode(n, nodeId);
+        return n;
+    }
+
+    // The NodeIds are kept without their namespace index, which may change between server restarts
+    private void loadNodes() {
+        File file = new File(directory, NODES_FILE);
+        if (!file.exists()) return;
+
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        } catch (IOException ex) {
+            logger.warn("Could not read {}: {}", file, ex.getMessage());
+            return;
+        }
+        for (int n = 0; properties.containsKey(String.valueOf(n)); n++) {
+            NodeId nodeId = NodeId.parseSafe("ns=" + namespaceIndex + ";" + properties.getProperty(String.valueOf(n)))
+                .orElse(null);
+            nodes.add(nodeId);
+            if (nodeId != null) nodeNumbers.put(nodeId, n);
+        }
+    }
+
+    // Appends the line of a new variable to the nodes file (escaped by Properties, without its date comment)
+    private void appendNode(int n, NodeId nodeId) {
+        Properties properties = new Properties();
+        properties.setProperty(String.valueOf(n), nodeId.toParseableString().replaceFirst("^ns=\\d+;", ""));
+        try (Writer writer = new FileWriter(new File(directory, NODES_FILE), true)) {
+            StringWriter line = new StringWriter();
+            properties.store(line, null);
+            writer.write(line.toString().replaceFirst("^#.*\\R", ""));
+        } catch (IOException ex) {
+            logger.warn("Could not write {}: {}", NODES_FILE, ex.getMessage());
+        }
+    }
+
+    // How a value is archived, or -1 if it is not
+    private static byte kind(Object value) {
+        if (value == null) return NULL;
+        Class<?> c = value.getClass();
+        if (c == Boolean.class) return BOOLEAN;
+        if (c == Byte.class) return BYTE;
+        if (c == Short.class) return SHORT;
+        if (c == Integer.class) return INT;
+        if (c == Long.class) return Math.abs((Long) value) <= (1L << 53) ? LONG : -1;
+        if (c == Float.class) return FLOAT;
+        if (c == Double.class) return DOUBLE;
+        if (c == String.class) return STRING;
+        return -1;
+    }
+
+    private static double number(Object value) {
+        return value instanceof Boolean ? ((Boolean) value ? 1.0 : 0.0) : ((Number) value).doubleValue();
+    }
+
+    // The offset of the record after the one at the given offset
+    private static int next(ByteBuffer b, int offset) {
+        byte kind = b.get(offset + 16);
+        if (kind == NULL) return offset + RECORD_HEADER_SIZE;
+        if (kind == STRING) return offset + RECORD_HEADER_SIZE + 2 + b.getShort(offset + RECORD_HEADER_SIZE);
+        return offset + RECORD_HEADER_SIZE + 8;
+    }
+
+    private static DataValue decode(ByteBuffer b, int offset) {
+        DateTime time = new DateTime(b.getLong(offset));
+        StatusCode status = new StatusCode(b.getInt(offset + 12) & 0xFFFFFFFFL);
+        int payload = offset + RECORD_HEADER_SIZE;
+        Object value;
+        switch (b.get(offset + 16)) {
+            case BOOLEAN:
+                value = b.getDouble(payload) != 0.0;
+                break;
+            case BYTE:
+                value = (byte) b.getDouble(payload);
+                break;
+            case SHORT:
+                value = (short) b.getDouble(payload);
+                break;
+            case INT:
+                value = (int) b.getDouble(payload);
+                break;
+            case LONG:
+                value = (long) b.getDouble(payload);
+                break;
+            case FLOAT:
+                value = (float) b.getDouble(payload);
+                break;
+            case DOUBLE:
+                value = b.getDouble(payload);
+                break;
+            case STRING:
+                byte[] bytes = new byte[b.getShort(payload)];
+                ByteBuffer d = b.duplicate();
+                d.position(payload + 2);
+                d.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+                break;
+            default:
+                value = null;
+        }
+        return new DataValue(new Variant(value), status, time, time);
+    }
+
+    // The archived values of one variable, read from the mapped segments
+    private final class NodeView implements ValueHistory {
+        private final int node;
+
+        NodeView(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public List<DataValue> range(long from, long to) {
+            List<DataValue> values = new ArrayList<>();
+            for (Segment s : segments) {
+                if (s.endTime < from || s.startTime > to || !s.contains(node)) continue;
+                ByteBuffer b = s.buffer;
+                for (int offset = s.seek(from), end = s.dataEnd; offset < end; offset = next(b, offset)) {
+                    long time = b.getLong(offset);
+                    if (time > to) break;
+                    if (time >= from && b.getInt(offset + 8) == node) values.add(decode(b, offset));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public DataValue before(long time) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment s = segments.get(i);
+                if (s.startTime >= time || !s.contains(node)) continue;
+                ByteBuffer b = s.buffer;
+                int end = s.dataEnd;
+                // scans the index blocks backwards from the one holding the time
+                int block = s.indexCount - 1;
+                while (block > 0 && s.entryTime(block) >= time) block--;
+                for (; block >= 0; block--) {
+                    int blockEnd = block + 1 < s.indexCount ? s.entryOffset(block + 1) : end;
+                    int found = -1;
+                    for (int offset = s.entryOffset(block); offset < blockEnd; offset = next(b, offset)) {
+                        if (b.getLong(offset) >= time) break;
+                        if (b.getInt(offset + 8) == node) found = offset;
+                    }
+                    if (found >= 0) return decode(b, found);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public DataValue after(long time) {
+            for (Segment s : segments) {
+                if (s.endTime <= time || !s.contains(node)) continue;
+                ByteBuffer b = s.buffer;
+                for (int offset = s.seek(time), end = s.dataEnd; offset < end; offset = next(b, offset)) {
+                    if (b.getLong(offset) > time && b.getInt(offset + 8) == node) return decode(b, offset);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package csw.opc.server;
+
+import java.util.Arrays;
+
+/**
+ * Summaries of the good numeric values of one variable per fixed time bucket, kept up to date as the values
+ * are recorded, so that processed HistoryRead (see HistoryAggregates) over hours of history combines a few
+ * hundred buckets instead of going through every value.
+ * <p>
+ * Only buckets with values are kept, in a ring buffer of parallel columns that grows up to the given
+ * capacity; once it is full, each new bucket replaces the oldest one. Bucket n covers the times
+ * [n * width, (n + 1) * width), in UtcTime ticks.
+ */
+class HistoryBuckets {
+
+    private final long width;
+    private final int capacity;
+
+    // The columns (guarded by this): bucket i of count is at (start + i) % length
+    private long[] indexes;
+    private int[] counts;
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+    private double[] integrals;
+    private long[] firstTimes;
+    private double[] firstValues;
+    private long[] lastTimes;
+    private double[] lastValues;
+    private int start = 0;
+    private int count = 0;
+
+    /**
+     * @param width    the time span of a bucket (UtcTime ticks)
+     * @param capacity the maximum number of buckets kept
+     */
+    HistoryBuckets(long width, int capacity) {
+        this.width = width;
+        this.capacity = capacity;
+        int n = Math.min(16, capacity);
+        indexes = new long[n];
+        counts = new int[n];
+        mins = new double[n];
+        maxs = new double[n];
+        sums = new double[n];
+        integrals = new double[n];
+        firstTimes = new long[n];
+        firstValues = new double[n];
+        lastTimes = new long[n];
+        lastValues = new double[n];
+    }
+
+    long getWidth() {
+        return width;
+    }
+
+    /**
+     * Adds a value to the bucket of its time. A time older than the newest value's is replaced by that one.
+     */
+    synchronized void add(long time, double value) {
+        if (count > 0) time = Math.max(time, lastTimes[index(count - 1)]);
+        long index = time / width;
+        if (count == 0 || indexes[index(count - 1)] != index) {
+            int i = newBucket();
+            indexes[i] = index;
+            counts[i] = 0;
+            sums[i] = 0.0;
+            integrals[i] = 0.0;
+        }
+
+        int i = index(count - 1);
+        if (counts[i] == 0) {
+            mins[i] = value;
+            maxs[i] = value;
+            firstTimes[i] = time;
+            firstValues[i] = value;
+        } else {
+            mins[i] = Math.min(mins[i], value);
+            maxs[i] = Math.max(maxs[i], value);
+            integrals[i] += (lastValues[i] + value) / 2 * (time - lastTimes[i]);
+        }
+        counts[i]++;
+        sums[i] += value;
+        lastTimes[i] = time;
+        lastValues[i] = value;
+    }
+
+    /**
+     * Summarizes the values in [from, to), if both are bucket boundaries and the buckets reach back past from
+     * (so that the value before the interval is known).
+     *
+     * @return false if the interval can not be summarized from the buckets
+     */
+    synchronized boolean summarize(long from, long to, HistoryAggregates.Summary summary) {
+        if (count == 0 || from % width != 0 || to % width != 0) return false;
+        long first = from / width;
+        long end = to / width;
+        if (first <= indexes[start]) return false;
+
+        int n = firstAtOrAfter(first);
+        int before = index(n - 1);
+        summary.setBefore(lastTimes[before], lastValues[before]);
+        for (; n < count && indexes[index(n)] < end; n++) {
+            int i = index(n);
+            summary.add(counts[i], mins[i], maxs[i], sums[i], integrals[i], firstTimes[i], firstValues[i],
+                lastTimes[i], lastValues[i]);
+        }
+        if (n < count) {
+            int after = index(n);
+            summary.setAfter(firstTimes[after], firstValues[after]);
+        }
+        return true;
+    }
+
+    // The position (0 - count) of the oldest bucket with an index at or after the given one (binary search)
+    private int firstAtOrAfter(long index) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (indexes[index(mid)] < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns the position of a new newest bucket, growing the columns or dropping the oldest bucket
+    private int newBucket() {
+        if (count == indexes.length && count < capacity) grow();
+        if (count < indexes.length) return index(count++);
+        int i = start;
+        start = index(1);
+        return i;
+    }
+
+    // The columns only grow before the ring wraps around, so start is still 0
+    private void grow() {
+        int n = Math.min(capacity, indexes.length * 2);
+        indexes = Arrays.copyOf(indexes, n);
+        counts = Arrays.copyOf(counts, n);
+        mins = Arrays.copyOf(mins, n);
+        maxs = Arrays.copyOf(maxs, n);
+        sums = Arrays.copyOf(sums, n);
+        integrals = Arrays.copyOf(integrals, n);
+        firstTimes = Arrays.copyOf(firstTimes, n);
+        firstValues = Arrays.copyOf(firstValues, n);
+        lastTimes = Arrays.copyOf(lastTimes, n);
+        lastValues = Arrays.copyOf(lastValues, n);
+    }
+
+    private int index(int n) {
+        int i = start + n;
+        return i < indexes.length ? i : i - indexes.length;
+    }
+}
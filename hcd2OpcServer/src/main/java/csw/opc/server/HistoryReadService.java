@@ -0,0 +1,343 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.application.services.ServiceRequest;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadAtTimeDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadProcessedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answers HistoryRead requests for the historized variables of a namespace (see HistoryRecorder).
+ * <p>
+ * Milo (0.1.0) answers HistoryRead with Bad_ServiceUnsupported, so the requests are intercepted: requests for
+ * nodes of this namespace are answered here, others are passed on to Milo. Raw reads (ReadRawModifiedDetails
+ * without isReadModified, forward or reverse, with bounds and continuation points) and reads at given times
+ * (ReadAtTimeDetails, interpolating between numeric values) are supported, as well as processed reads
+ * (ReadProcessedDetails) with the aggregates of HistoryAggregates.
+ * <p>
+ * Continuation points hold the time of the next value and the number of values with that time already
+ * returned, so the server keeps no state between the calls. Values that were dropped from the history in
+ * between are skipped.
+ */
+class HistoryReadService {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryReadService.class);
+
+    private static final int CONTINUATION_POINT_LENGTH = 12;
+
+    // The most processed values returned per node and call (the rest with a continuation point)
+    private static final int MAX_PROCESSED_VALUES = 10000;
+
+    private final OpcUaServer server;
+    private final UShort namespaceIndex;
+    private final HistoryRecorder recorder;
+
+    HistoryReadService(OpcUaServer server, UShort namespaceIndex, HistoryRecorder recorder) {
+        this.server = server;
+        this.namespaceIndex = namespaceIndex;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Replaces Milo's HistoryRead handler (must be called after the OpcUaServer is created and before
+     * clients connect)
+     */
+    void install() {
+        server.getServer().addRequestHandler(HistoryReadRequest.class, this::onHistoryRead);
+    }
+
+    private void onHistoryRead(ServiceRequest<HistoryReadRequest, HistoryReadResponse> service) throws UaException {
+        HistoryReadRequest request = service.getRequest();
+        HistoryReadValueId[] nodesToRead = request.getNodesToRead();
+
+        boolean ours = false;
+        if (nodesToRead != null) {
+            for (HistoryReadValueId id : nodesToRead) {
+                ours |= isOurs(id.getNodeId());
+            }
+        }
+        if (!ours) {
+            server.getSessionManager().onHistoryRead(service);
+            return;
+        }
+
+        TimestampsToReturn timestamps = request.getTimestampsToReturn();
+        if (timestamps == null || timestamps == TimestampsToReturn.Neither) {
+            throw new UaException(StatusCodes.Bad_TimestampsToReturnInvalid);
+        }
+
+        Object details;
+        try {
+            details = request.getHistoryReadDetails().decode();
+        } catch (RuntimeException e) {
+            throw new UaException(StatusCodes.Bad_HistoryOperationInvalid);
+        }
+
+        // processed reads have an aggregate per node
+        NodeId[] aggregates = null;
+        if (details instanceof ReadProcessedDetails) {
+            aggregates = ((ReadProcessedDetails) details).getAggregateType();
+            if (aggregates == null || aggregates.length != nodesToRead.length) {
+                throw new UaException(StatusCodes.Bad_AggregateListMismatch);
+            }
+        }
+
+        HistoryReadResult[] results = new HistoryReadResult[nodesToRead.length];
+        for (int i = 0; i < results.length; i++) {
+            HistoryReadValueId id = nodesToRead[i];
+            try {
+                results[i] = read(id, details, aggregates != null ? aggregates[i] : null, timestamps,
+                    Boolean.TRUE.equals(request.getReleaseContinuationPoints()));
+            } catch (UaException e) {
+                results[i] = new HistoryReadResult(e.getStatusCode(), null, null);
+            } catch (RuntimeException e) {
+                logger.error("HistoryRead failed for {}", id.getNodeId(), e);
+                results[i] = new HistoryReadResult(new StatusCode(StatusCodes.Bad_InternalError), null, null);
+            }
+        }
+
+        service.setResponse(new HistoryReadResponse(service.createResponseHeader(), results, null));
+    }
+
+    private boolean isOurs(NodeId nodeId) {
+        return nodeId != null && nodeId.getNamespaceIndex().intValue() == namespaceIndex.intValue();
+    }
+
+    private HistoryReadResult read(HistoryReadValueId id, Object details, NodeId aggregate,
+                                   TimestampsToReturn timestamps, boolean release) throws UaException {
+        if (!isOurs(id.getNodeId()) || !recorder.isHistorized(id.getNodeId())) {
+            throw new UaException(StatusCodes.Bad_HistoryOperationUnsupported);
+        }
+
+        // nothing is kept for continuation points, so there is nothing to release
+        if (release) return new HistoryReadResult(StatusCode.GOOD, null, null);
+
+        ValueHistory history = recorder.history(id.getNodeId(), oldestTime(details));
+
+        if (details instanceof ReadRawModifiedDetails) {
+            return readRaw(history, (ReadRawModifiedDetails) details, id.getContinuationPoint(), timestamps);
+        } else if (details instanceof ReadAtTimeDetails) {
+            return readAtTime(history, (ReadAtTimeDetails) details, timestamps);
+        } else if (details instanceof ReadProcessedDetails) {
+            return readProcessed(id.getNodeId(), history, (ReadProcessedDetails) details, aggregate,
+                id.getContinuationPoint(), timestamps);
+        } else {
+            throw new UaException(StatusCodes.Bad_HistoryOperationUnsupported);
+        }
+    }
+
+    // The oldest time a read may need a value for, which decides whether it is served from memory or the archive
+    private static long oldestTime(Object details) {
+        if (details instanceof ReadRawModifiedDetails) {
+            ReadRawModifiedDetails raw = (ReadRawModifiedDetails) details;
+            long start = ticks(raw.getStartTime());
+            long end = ticks(raw.getEndTime());
+            // the bound before the oldest value is needed as well
+            long oldest = start != 0 && end != 0 ? Math.min(start, end) : start == 0 ? Long.MIN_VALUE : start;
+            return oldest == Long.MIN_VALUE ? oldest : oldest - 1;
+        } else if (details instanceof ReadProcessedDetails) {
+            ReadProcessedDetails processed = (ReadProcessedDetails) details;
+            long oldest = Math.min(ticks(processed.getStartTime()), ticks(processed.getEndTime()));
+            return oldest == 0 ? Long.MIN_VALUE : oldest - 1;
+        } else if (details instanceof ReadAtTimeDetails) {
+            long oldest = Long.MAX_VALUE;
+            DateTime[] times = ((ReadAtTimeDetails) details).getReqTimes();
+            if (times != null) {
+                for (DateTime time : times) oldest = Math.min(oldest, ticks(time));
+            }
+            return oldest;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private HistoryReadResult readRaw(ValueHistory history, ReadRawModifiedDetails details,
+                                      ByteString continuationPoint, TimestampsToReturn timestamps)
+        throws UaException {
+        if (Boolean.TRUE.equals(details.getIsReadModified())) {
+            // values are never modified
+            throw new UaException(StatusCodes.Bad_HistoryOperationUnsupported);
+        }
+
+        long start = ticks(details.getStartTime());
+        long end = ticks(details.getEndTime());
+        int max = details.getNumValuesPerNode() != null ? details.getNumValuesPerNode().intValue() : 0;
+        if (start == 0 && end == 0 || (start == 0 || end == 0) && max == 0) {
+            throw new UaException(StatusCodes.Bad_HistoryOperationInvalid);
+        }
+
+        // the end time itself is not included, unless it is the start time
+        boolean reverse = start != 0 && end != 0 ? start > end : start == 0;
+        List<DataValue> values;
+        if (!reverse) {
+            long to = end == 0 ? Long.MAX_VALUE : start == end ? end : end - 1;
+            values = history.range(start, to);
+            if (Boolean.TRUE.equals(details.getReturnBounds())) {
+                DataValue before = history.before(start);
+                if (before != null && (values.isEmpty() || !hasTime(values.get(0), start))) values.add(0, before);
+                DataValue after = end != 0 ? history.after(to) : null;
+                if (after != null) values.add(after);
+            }
+        } else {
+            // without a start time, backwards from the end time (included)
+            values = start == 0 ? history.range(Long.MIN_VALUE, end) : history.range(end + 1, start);
+            if (Boolean.TRUE.equals(details.getReturnBounds()) && start != 0) {
+                DataValue after = history.after(start);
+                if (after != null) values.add(after);
+                DataValue before = history.before(end + 1);
+                if (before != null) values.add(0, before);
+            }
+            Collections.reverse(values);
+        }
+
+        return page(values, reverse, max, continuationPoint, timestamps);
+    }
+
+    // Returns up to max values (all if 0) starting at the continuation point, if any
+    private HistoryReadResult page(List<DataValue> values, boolean reverse, int max, ByteString continuationPoint,
+                                   TimestampsToReturn timestamps) throws UaException {
+        int from = 0;
+        if (continuationPoint != null && !continuationPoint.isNull()) {
+            byte[] bytes = continuationPoint.bytes();
+            if (bytes == null || bytes.length != CONTINUATION_POINT_LENGTH) {
+                throw new UaException(StatusCodes.Bad_ContinuationPointInvalid);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long time = buffer.getLong();
+            int skip = buffer.getInt();
+            while (from < values.size() && (reverse ? time(values.get(from)) > time : time(values.get(from)) < time)) {
+                from++;
+            }
+            for (int n = 0; n < skip && from < values.size() && time(values.get(from)) == time; n++) {
+                from++;
+            }
+        }
+
+        int to = max > 0 ? Math.min(values.size(), from + max) : values.size();
+        ByteString next = null;
+        if (to < values.size()) {
+            long time = time(values.get(to));
+            int first = to;
+            while (first > 0 && time(values.get(first - 1)) == time) first--;
+            next = ByteString.of(ByteBuffer.allocate(CONTINUATION_POINT_LENGTH).putLong(time).putInt(to - first).array());
+        }
+
+        List<DataValue> page = values.subList(from, to);
+        DataValue[] dataValues = new DataValue[page.size()];
+        for (int i = 0; i < dataValues.length; i++) {
+            dataValues[i] = withTimestamps(page.get(i), timestamps);
+        }
+
+        StatusCode status = dataValues.length == 0 ? new StatusCode(StatusCodes.Good_NoData) : StatusCode.GOOD;
+        return new HistoryReadResult(status, next, ExtensionObject.encode(new HistoryData(dataValues)));
+    }
+
+    private HistoryReadResult readAtTime(ValueHistory history, ReadAtTimeDetails details,
+                                         TimestampsToReturn timestamps) throws UaException {
+        DateTime[] times = details.getReqTimes();
+        if (times == null || times.length == 0) {
+            throw new UaException(StatusCodes.Bad_HistoryOperationInvalid);
+        }
+
+        DataValue[] dataValues = new DataValue[times.length];
+        for (int i = 0; i < times.length; i++) {
+            DataValue value = history.at(ticks(times[i]));
+            dataValues[i] = value != null ? withTimestamps(value, timestamps)
+                : new DataValue(null, new StatusCode(StatusCodes.Bad_NoData), times[i], times[i]);
+        }
+        return new HistoryReadResult(StatusCode.GOOD, null, ExtensionObject.encode(new HistoryData(dataValues)));
+    }
+
+    // One value per processing interval from the start time towards the end time; the last interval may be
+    // shorter, and a processing interval of 0 makes a single interval
+    private HistoryReadResult readProcessed(NodeId nodeId, ValueHistory history, ReadProcessedDetails details,
+                                            NodeId aggregate, ByteString continuationPoint,
+                                            TimestampsToReturn timestamps) throws UaException {
+        if (aggregate == null || !HistoryAggregates.SUPPORTED.contains(aggregate)) {
+            throw new UaException(StatusCodes.Bad_AggregateNotSupported);
+        }
+        long start = ticks(details.getStartTime());
+        long end = ticks(details.getEndTime());
+        double interval = details.getProcessingInterval() != null ? details.getProcessingInterval() : 0.0;
+        if (start == 0 || end == 0 || start == end || interval < 0) {
+            throw new UaException(StatusCodes.Bad_HistoryOperationInvalid);
+        }
+
+        boolean reverse = start > end;
+        long step = interval > 0 ? Math.max(1, (long) (interval * 10000)) : Math.abs(end - start);
+
+        long from = start;
+        if (continuationPoint != null && !continuationPoint.isNull()) {
+            byte[] bytes = continuationPoint.bytes();
+            if (bytes == null || bytes.length != CONTINUATION_POINT_LENGTH) {
+                throw new UaException(StatusCodes.Bad_ContinuationPointInvalid);
+            }
+            from = ByteBuffer.wrap(bytes).getLong();
+            if (reverse ? from > start || from <= end : from < start || from >= end) {
+                throw new UaException(StatusCodes.Bad_ContinuationPointInvalid);
+            }
+        }
+
+        List<DataValue> values = new ArrayList<>();
+        while (values.size() < MAX_PROCESSED_VALUES && (reverse ? from > end : from < end)) {
+            long to = reverse ? Math.max(end, from - step) : Math.min(end, from + step);
+            long low = Math.min(from, to);
+            long high = Math.max(from, to);
+            HistoryAggregates.Summary summary = recorder.summarize(nodeId, history, low, high);
+            values.add(withTimestamps(HistoryAggregates.compute(aggregate, summary, low, high, from), timestamps));
+            from = to;
+        }
+
+        ByteString next = null;
+        if (reverse ? from > end : from < end) {
+            next = ByteString.of(ByteBuffer.allocate(CONTINUATION_POINT_LENGTH).putLong(from).putInt(0).array());
+        }
+        return new HistoryReadResult(StatusCode.GOOD, next,
+            ExtensionObject.encode(new HistoryData(values.toArray(new DataValue[values.size()]))));
+    }
+
+    private static DataValue withTimestamps(DataValue value, TimestampsToReturn timestamps) {
+        switch (timestamps) {
+            case Source:
+                return new DataValue(value.getValue(), value.getStatusCode(), value.getSourceTime(), null);
+            case Server:
+                return new DataValue(value.getValue(), value.getStatusCode(), null, value.getServerTime());
+            default:
+                return value;
+        }
+    }
+
+    // An unset time (null or the minimum DateTime) is 0
+    static long ticks(DateTime time) {
+        return time == null ? 0 : time.getUtcTime();
+    }
+
+    private static long time(DataValue value) {
+        return value.getSourceTime().getUtcTime();
+    }
+
+    private static boolean hasTime(DataValue value, long time) {
+        return time(value) == time;
+    }
+}
@@ -0,0 +1,168 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the recent values of the historized variables of a namespace in memory (see NodeHistory), for
+ * HistoryRead requests (see HistoryReadService).
+ * <p>
+ * A variable is historized if its browse path starts with one of the configured prefixes. Its values are
+ * recorded when they change: when written by a client, published by the simulator or read (which is how
+ * the values of dynamic variables come into being). Unchanged values are not recorded again.
+ * <p>
+ * The good numeric values are also summarized per time bucket (see HistoryBuckets), for processed reads.
+ * <p>
+ * If an archive is set, the recorded values are also appended to it, and reads that reach back further than
+ * the values kept in memory are served from the archive.
+ */
+public class HistoryRecorder {
+
+    private final int depth;
+    private final List<String> pathPrefixes;
+    private final long bucketTicks;
+    private final int bucketCount;
+    private final Map<NodeId, NodeHistory> histories = new ConcurrentHashMap<>();
+    private final Map<NodeId, HistoryBuckets> buckets = new ConcurrentHashMap<>();
+    private volatile HistoryArchive archive;
+
+    /**
+     * @param depth        the number of values kept per variable (0 turns history off)
+     * @param pathPrefixes the browse path prefixes of the historized variables, like "HelloWorld/Dynamic/"
+     * @param bucketMillis the time span of the buckets the values are summarized in (ms)
+     * @param bucketCount  the number of buckets kept per variable
+     */
+    public HistoryRecorder(int depth, List<String> pathPrefixes, long bucketMillis, int bucketCount) {
+        this.depth = depth;
+        this.pathPrefixes = Collections.unmodifiableList(new ArrayList<>(pathPrefixes));
+        this.bucketTicks = bucketMillis * 10000;
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * Sets the archive where the recorded values are also kept (must be called before values are recorded)
+     */
+    public void setArchive(HistoryArchive archive) {
+        this.archive = archive;
+    }
+
+    public HistoryArchive getArchive() {
+        return archive;
+    }
+
+    public boolean isEnabled() {
+        return depth > 0;
+    }
+
+    /**
+     * The number of values kept per variable
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns true if the variable with the given browse path is to be historized
+     */
+    public boolean matches(String browsePath) {
+        if (!isEnabled()) return false;
+        for (String prefix : pathPrefixes) {
+            if (browsePath.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts recording the values of a variable, beginning with its current value
+     */
+    public void add(NodeId nodeId, DataValue value) {
+        histories.computeIfAbsent(nodeId, id -> new NodeHistory(depth));
+        if (bucketTicks > 0 && bucketCount > 0) {
+            buckets.computeIfAbsent(nodeId, id -> new HistoryBuckets(bucketTicks, bucketCount));
+        }
+        record(nodeId, value);
+    }
+
+    public boolean isHistorized(NodeId nodeId) {
+        return histories.containsKey(nodeId);
+    }
+
+    public int getHistorizedCount() {
+        return histories.size();
+    }
+
+    /**
+     * Records a value of a variable, if it is historized and the value or status changed.
+     * The value's source timestamp is used, or its server timestamp, or the current time.
+     */
+    public void record(NodeId nodeId, DataValue value) {
+        NodeHistory history = histories.get(nodeId);
+        if (history == null || value == null) return;
+
+        DateTime time = value.getSourceTime() != null ? value.getSourceTime() : value.getServerTime();
+        long ticks = time != null ? time.getUtcTime() : DateTime.now().getUtcTime();
+        Object v = value.getValue() != null ? value.getValue().getValue() : null;
+        if (!history.record(ticks, value.getStatusCode(), v)) return;
+
+        HistoryBuckets b = buckets.get(nodeId);
+        if (b != null && HistoryAggregates.usable(value)) {
+            b.add(ticks, HistoryAggregates.number(v));
+        }
+        HistoryArchive archive = this.archive;
+        if (archive != null) archive.append(nodeId, ticks, value.getStatusCode(), v);
+    }
+
+    /**
+     * The history of a variable, or null if it is not historized
+     */
+    NodeHistory get(NodeId nodeId) {
+        return histories.get(nodeId);
+    }
+
+    /**
+     * Summarizes the good numeric values of a variable in [from, to) from its buckets, if the interval is made
+     * of whole buckets that are still kept, or else from the given history
+     */
+    HistoryAggregates.Summary summarize(NodeId nodeId, ValueHistory history, long from, long to) {
+        HistoryBuckets b = buckets.get(nodeId);
+        if (b != null) {
+            HistoryAggregates.Summary summary = new HistoryAggregates.Summary();
+            if (b.summarize(from, to, summary)) return summary;
+        }
+        return HistoryAggregates.summarize(history.range(from, to - 1), usableBefore(history, from),
+            history.after(to - 1));
+    }
+
+    // The newest usable value before the given time, looking back past a few bad or non-numeric ones
+    private static DataValue usableBefore(ValueHistory history, long time) {
+        DataValue value = history.before(time);
+        for (int n = 0; n < 10 && value != null && !HistoryAggregates.usable(value); n++) {
+            value = history.before(value.getSourceTime().getUtcTime());
+        }
+        return value;
+    }
+
+    /**
+     * The history to read the values of a variable from, starting at the given time (UtcTime): the values in
+     * memory, or the archive's if the memory does not reach back that far. Returns null if the variable is not
+     * historized.
+     */
+    ValueHistory history(NodeId nodeId, long from) {
+        NodeHistory history = histories.get(nodeId);
+        if (history == null) return null;
+
+        HistoryArchive archive = this.archive;
+        if (archive != null && from < history.oldestTime()) {
+            ValueHistory archived = archive.history(nodeId);
+            if (archived != null) return archived;
+        }
+        return history;
+    }
+}
@@ -0,0 +1,283 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Simulates the motion of wheels (filter wheels, dispersers) and linear axes with a single fixed-rate tick.
+ * <p>
+ * The state of all devices is kept in parallel arrays, indexed by device number, which only the tick
+ * touches. Demands written by clients are queued and applied at the start of the next tick, and the
+ * positions that changed during a tick are published together, with the same source timestamp.
+ * <p>
+ * Devices must be added before start() is called.
+ */
+public class MotionSimulator {
+
+    private static final int WHEEL = 0;
+    private static final int AXIS = 1;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScheduledExecutorService executor;
+    private final long tickMillis;
+
+    // Device state, by device number
+    private int size = 0;
+    private int[] kind = new int[16];
+    private UaVariableNode[] positionNodes = new UaVariableNode[16];
+    private String[][] choices = new String[16][];  // wheels: position names, if the demand is a name
+    private int[] positionCount = new int[16];      // wheels: number of positions
+    private long[] stepNanos = new long[16];        // wheels: time to move one position
+    private double[] velocity = new double[16];     // axes: units per second
+    private double[] position = new double[16];
+    private double[] target = new double[16];
+    private long[] nextStepNanos = new long[16];    // wheels: when to move to the next position
+    private boolean[] moving = new boolean[16];
+    private int movingCount = 0;
+
+    // Devices changed during the current tick
+    private int[] changed = new int[16];
+
+    private long lastTickNanos;
+
+    private final Map<NodeId, Integer> devicesByDemandNode = new ConcurrentHashMap<>();
+    private final Queue<Demand> demands = new ConcurrentLinkedQueue<>();
+
+    private ScheduledFuture<?> tickTask;
+
+    // Told about every published position, if set
+    private BiConsumer<NodeId, DataValue> positionListener;
+
+    private static class Demand {
+        final int device;
+        final Object value;
+
+        Demand(int device, Object value) {
+            this.device = device;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param executor   runs the tick
+     * @param tickMillis the tick period (ms)
+     */
+    public MotionSimulator(ScheduledExecutorService executor, long tickMillis) {
+        this.executor = executor;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Adds a wheel that moves one position per step time, always in the same direction, until it
+     * reaches the demanded position.
+     *
+     * @param demandNode   the node holding the demanded position (an index, or a name from choices)
+     * @param positionNode the Int32 node where the current position index is published
+     * @param choices      the position names, or null if demands are position indexes
+     * @param positions    the number of positions
+     * @param stepMillis   the time to move one position (ms)
+     */
+    public void addWheel(NodeId demandNode, UaVariableNode positionNode, String[] choices, int positions,
+                         long stepMillis) {
+        int i = add(demandNode, positionNode);
+        kind[i] = WHEEL;
+        this.choices[i] = choices;
+        positionCount[i] = positions;
+        stepNanos[i] = TimeUnit.MILLISECONDS.toNanos(stepMillis);
+    }
+
+    /**
+     * Adds a linear axis that moves at constant velocity towards the demanded position.
+     *
+     * @param demandNode   the node holding the demanded position (a number)
+     * @param positionNode the Double node where the current position is published
+     * @param velocity     the velocity (units per second)
+     */
+    public void addAxis(NodeId demandNode, UaVariableNode positionNode, double velocity) {
+        int i = add(demandNode, positionNode);
+        kind[i] = AXIS;
+        this.velocity[i] = velocity;
+    }
+
+    private int add(NodeId demandNode, UaVariableNode positionNode) {
+        if (size == kind.length) grow();
+        int i = size++;
+        positionNodes[i] = positionNode;
+        Object value = positionNode.getValue().getValue().getValue();
+        position[i] = value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+        target[i] = position[i];
+        devicesByDemandNode.put(demandNode, i);
+        return i;
+    }
+
+    private void grow() {
+        int n = kind.length * 2;
+        kind = Arrays.copyOf(kind, n);
+        positionNodes = Arrays.copyOf(positionNodes, n);
+        choices = Arrays.copyOf(choices, n);
+        positionCount = Arrays.copyOf(positionCount, n);
+        stepNanos = Arrays.copyOf(stepNanos, n);
+        velocity = Arrays.copyOf(velocity, n);
+        position = Arrays.copyOf(position, n);
+        target = Arrays.copyOf(target, n);
+        nextStepNanos = Arrays.copyOf(nextStepNanos, n);
+        moving = Arrays.copyOf(moving, n);
+        changed = Arrays.copyOf(changed, n);
+    }
+
+    /**
+     * Sets a listener that is called with each position published by the tick (must be called before start())
+     */
+    public void setPositionListener(BiConsumer<NodeId, DataValue> positionListener) {
+        this.positionListener = positionListener;
+    }
+
+    public int getDeviceCount() {
+        return size;
+    }
+
+    /**
+     * Starts the tick
+     */
+    public synchronized void start() {
+        if (tickTask != null) return;
+        lastTickNanos = System.nanoTime();
+        tickTask = executor.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        logger.info("Simulating {} devices with a tick of {} ms", size, tickMillis);
+    }
+
+    public synchronized void stop() {
+        if (tickTask != null) {
+            tickTask.cancel(false);
+            tickTask = null;
+        }
+    }
+
+    /**
+     * Called when a value was written to a node. If the node is the demand node of a device,
+     * the device starts moving to the new position on the next tick.
+     *
+     * @return true if the node is a demand node
+     */
+    public boolean demand(NodeId nodeId, Object value) {
+        Integer device = devicesByDemandNode.get(nodeId);
+        if (device == null) return false;
+        demands.add(new Demand(device, value));
+        return true;
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - lastTickNanos) / 1e9;
+            lastTickNanos = now;
+
+            Demand demand;
+            while ((demand = demands.poll()) != null) {
+                applyDemand(demand, now);
+            }
+
+            if (movingCount == 0) return;
+
+            int changedCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (moving[i] && (kind[i] == WHEEL ? stepWheel(i, now) : moveAxis(i, elapsedSeconds))) {
+                    changed[changedCount++] = i;
+                }
+            }
+
+            publish(changedCount);
+        } catch (Throwable t) {
+            // an exception would cancel the fixed-rate task
+            logger.error("Simulation tick failed", t);
+        }
+    }
+
+    private void applyDemand(Demand demand, long now) {
+        int i = demand.device;
+        double newTarget;
+
+        if (kind[i] == WHEEL) {
+            int index = -1;
+            if (demand.value instanceof Number) {
+                index = ((Number) demand.value).intValue();
+            } else if (choices[i] != null) {
+                index = Arrays.asList(choices[i]).indexOf(String.valueOf(demand.value));
+            }
+            if (index < 0 || index >= positionCount[i]) {
+                logger.warn("Ignoring invalid demand {} for {}", demand.value, positionNodes[i].getNodeId());
+                return;
+            }
+            newTarget = index;
+            // the first step is taken right away
+            nextStepNanos[i] = now;
+        } else if (demand.value instanceof Number) {
+            newTarget = ((Number) demand.value).doubleValue();
+        } else {
+            logger.warn("Ignoring invalid demand {} for {}", demand.value, positionNodes[i].getNodeId());
+            return;
+        }
+
+        target[i] = newTarget;
+        setMoving(i, position[i] != newTarget);
+    }
+
+    // Returns true if the wheel moved
+    private boolean stepWheel(int i, long now) {
+        if (now - nextStepNanos[i] < 0) return false;
+        position[i] = (position[i] + 1) % positionCount[i];
+        nextStepNanos[i] += stepNanos[i];
+        if (position[i] == target[i]) setMoving(i, false);
+        return true;
+    }
+
+    // Returns true if the axis moved
+    private boolean moveAxis(int i, double elapsedSeconds) {
+        double distance = target[i] - position[i];
+        double step = velocity[i] * elapsedSeconds;
+        if (Math.abs(distance) <= step) {
+            position[i] = target[i];
+            setMoving(i, false);
+        } else {
+            position[i] += Math.copySign(step, distance);
+        }
+        return true;
+    }
+
+    private void setMoving(int i, boolean m) {
+        if (moving[i] != m) {
+            moving[i] = m;
+            movingCount += m ? 1 : -1;
+        }
+    }
+
+    // Publishes the positions of the changed devices, all with the same timestamp
+    private void publish(int changedCount) {
+        DateTime now = DateTime.now();
+        for (int n = 0; n < changedCount; n++) {
+            int i = changed[n];
+            Object value = kind[i] == WHEEL ? (Object) (int) position[i] : (Object) position[i];
+            DataValue dataValue = new DataValue(new Variant(value), StatusCode.GOOD, now);
+            positionNodes[i].setValue(dataValue);
+            if (positionListener != null) positionListener.accept(positionNodes[i].getNodeId(), dataValue);
+        }
+        logger.debug("Published {} positions", changedCount);
+    }
+}
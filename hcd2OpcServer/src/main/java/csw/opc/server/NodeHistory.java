@@ -0,0 +1,196 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The recent values of one variable in memory, in a ring buffer of parallel primitive arrays (time, status
+ * and value columns), so that a sample costs no objects unless its value is not a boxed Java primitive.
+ * <p>
+ * Times are OPC UA UtcTime (100 ns ticks since 1601) and never decrease: a sample older than the newest
+ * one is stored with the newest one's time. The columns start small and grow up to the capacity, so that
+ * variables that rarely change take little memory. Once the buffer is full, each new sample replaces the oldest.
+ */
+class NodeHistory implements ValueHistory {
+
+    // How a value is stored: numbers and booleans in the numbers column, anything else in the objects column
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte OBJECT = 8;
+
+    private final int capacity;
+
+    // The columns (guarded by this): sample i of count is at (start + i) % length
+    private long[] times;
+    private int[] statuses;
+    private byte[] kinds;
+    private double[] numbers;
+    private Object[] objects;
+    private int start = 0;
+    private int count = 0;
+
+    NodeHistory(int capacity) {
+        this.capacity = capacity;
+        int n = Math.min(16, capacity);
+        times = new long[n];
+        statuses = new int[n];
+        kinds = new byte[n];
+        numbers = new double[n];
+    }
+
+    /**
+     * Adds a sample, unless its status and value are the same as the newest sample's
+     *
+     * @param time the source time of the value (UtcTime)
+     * @return true if the sample was added
+     */
+    synchronized boolean record(long time, StatusCode status, Object value) {
+        int statusCode = status != null ? (int) status.getValue() : 0;
+        if (count > 0) {
+            int last = index(count - 1);
+            if (statuses[last] == statusCode && Objects.deepEquals(value(last), value)) return false;
+            time = Math.max(time, times[last]);
+        }
+
+        if (count == times.length && count < capacity) grow();
+        int i;
+        if (count < times.length) {
+            i = index(count++);
+        } else {
+            i = start;
+            start = index(1);
+        }
+
+        times[i] = time;
+        statuses[i] = statusCode;
+        byte kind = kind(value);
+        kinds[i] = kind;
+        if (kind == OBJECT) {
+            if (objects == null) objects = new Object[times.length];
+            objects[i] = value;
+        } else {
+            numbers[i] = kind == BOOLEAN ? ((Boolean) value ? 1.0 : 0.0) : kind == NULL ? 0.0 : ((Number) value).doubleValue();
+            if (objects != null) objects[i] = null;
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * The time of the oldest sample, or Long.MAX_VALUE if there is none
+     */
+    synchronized long oldestTime() {
+        return count > 0 ? times[start] : Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized List<DataValue> range(long from, long to) {
+        List<DataValue> values = new ArrayList<>();
+        for (int n = firstAtOrAfter(from); n < count && times[index(n)] <= to; n++) {
+            values.add(dataValue(index(n)));
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized DataValue before(long time) {
+        int n = firstAtOrAfter(time) - 1;
+        return n >= 0 ? dataValue(index(n)) : null;
+    }
+
+    @Override
+    public synchronized DataValue after(long time) {
+        int n = firstAtOrAfter(time);
+        while (n < count && times[index(n)] == time) n++;
+        return n < count ? dataValue(index(n)) : null;
+    }
+
+    // The position (0 - count) of the oldest sample with a time at or after the given time (binary search)
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[index(mid)] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // The columns only grow before the ring wraps around, so start is still 0
+    private void grow() {
+        int n = Math.min(capacity, times.length * 2);
+        times = Arrays.copyOf(times, n);
+        statuses = Arrays.copyOf(statuses, n);
+        kinds = Arrays.copyOf(kinds, n);
+        numbers = Arrays.copyOf(numbers, n);
+        if (objects != null) objects = Arrays.copyOf(objects, n);
+    }
+
+    private int index(int n) {
+        int i = start + n;
+        return i < times.length ? i : i - times.length;
+    }
+
+    private DataValue dataValue(int i) {
+        DateTime time = new DateTime(times[i]);
+        return new DataValue(new Variant(value(i)), new StatusCode(statuses[i] & 0xFFFFFFFFL), time, time);
+    }
+
+    private Object value(int i) {
+        double d = numbers[i];
+        switch (kinds[i]) {
+            case BOOLEAN:
+                return d != 0.0;
+            case BYTE:
+                return (byte) d;
+            case SHORT:
+                return (short) d;
+            case INT:
+                return (int) d;
+            case LONG:
+                return (long) d;
+            case FLOAT:
+                return (float) d;
+            case DOUBLE:
+                return d;
+            case OBJECT:
+                return objects[i];
+            default:
+                return null;
+        }
+    }
+
+    private static byte kind(Object value) {
+        if (value == null) return NULL;
+        Class<?> c = value.getClass();
+        if (c == Boolean.class) return BOOLEAN;
+        if (c == Byte.class) return BYTE;
+        if (c == Short.class) return SHORT;
+        if (c == Integer.class) return INT;
+        // longs that don't fit in a double exactly keep their object
+        if (c == Long.class) return Math.abs((Long) value) <= (1L << 53) ? LONG : OBJECT;
+        if (c == Float.class) return FLOAT;
+        if (c == Double.class) return DOUBLE;
+        return OBJECT;
+    }
+}
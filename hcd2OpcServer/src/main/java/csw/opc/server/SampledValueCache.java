@@ -0,0 +1,118 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Caches the last value of variables whose values are produced when they are read (like the dynamic
+ * variables, or a hardware poll), so that reads honour the maxAge of the Read service: a read gets the
+ * cached value if it is not older than maxAge, and only otherwise makes the variable produce a new one.
+ * <p>
+ * Each variable also has a minimum interval: however many clients read it, a new value is produced at most
+ * once per interval. While one thread produces a value, other readers of the same variable wait for it
+ * instead of producing their own. Reads of the cached value take no lock.
+ */
+public class SampledValueCache {
+
+    private final Map<NodeId, Slot> slots = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class Slot {
+        final long minIntervalNanos;
+        // the last value, read with all timestamps, and when it was produced (System.nanoTime)
+        volatile DataValue value;
+        volatile long nanos;
+
+        Slot(long minIntervalNanos) {
+            this.minIntervalNanos = minIntervalNanos;
+        }
+    }
+
+    /**
+     * Caches the values of a variable
+     *
+     * @param minIntervalMillis the minimum time between two new values (ms, 0 for none)
+     */
+    public void add(NodeId nodeId, long minIntervalMillis) {
+        slots.put(nodeId, new Slot(TimeUnit.MILLISECONDS.toNanos(minIntervalMillis)));
+    }
+
+    public boolean contains(NodeId nodeId) {
+        return slots.containsKey(nodeId);
+    }
+
+    /**
+     * Returns the cached value of a variable, or a new one from the provider if the cached one is older than
+     * maxAge and the minimum interval.
+     *
+     * @param maxAge     the maxAge of the read (ms; null or 0 for a new value, unless within the minimum interval)
+     * @param timestamps the timestamps to return
+     * @param provider   produces a new value, with both timestamps
+     * @return the value, or null if the variable is not cached
+     */
+    public DataValue read(NodeId nodeId, Double maxAge, TimestampsToReturn timestamps, Supplier<DataValue> provider) {
+        Slot slot = slots.get(nodeId);
+        if (slot == null) return null;
+
+        long maxAgeNanos = Math.max(slot.minIntervalNanos, maxAgeNanos(maxAge));
+        DataValue value = slot.value;
+        if (value == null || System.nanoTime() - slot.nanos > maxAgeNanos) {
+            synchronized (slot) {
+                // another reader may have produced a value meanwhile
+                value = slot.value;
+                if (value == null || System.nanoTime() - slot.nanos > maxAgeNanos) {
+                    value = provider.get();
+                    slot.nanos = System.nanoTime();
+                    slot.value = value;
+                    misses.increment();
+                    return withTimestamps(value, timestamps);
+                }
+            }
+        }
+        hits.increment();
+        return withTimestamps(value, timestamps);
+    }
+
+    /**
+     * The number of reads that got a cached value
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of reads that produced a new value
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static long maxAgeNanos(Double maxAge) {
+        if (maxAge == null || maxAge <= 0 || maxAge.isNaN()) return 0;
+        // longer than about 24 days is as good as forever, and doesn't overflow
+        return (long) (Math.min(maxAge, Integer.MAX_VALUE) * 1e6);
+    }
+
+    private static DataValue withTimestamps(DataValue value, TimestampsToReturn timestamps) {
+        if (timestamps == null) return value;
+        switch (timestamps) {
+            case Source:
+                return new DataValue(value.getValue(), value.getStatusCode(), value.getSourceTime(), null);
+            case Server:
+                return new DataValue(value.getValue(), value.getStatusCode(), null, value.getServerTime());
+            case Neither:
+                return new DataValue(value.getValue(), value.getStatusCode(), null, null);
+            default:
+                return value;
+        }
+    }
+}
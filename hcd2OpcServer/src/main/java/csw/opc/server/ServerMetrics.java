@@ -0,0 +1,520 @@
+package csw.opc.server;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.milo.opcua.sdk.server.Session;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests and operations handled by Hcd2Namespace and records their latency, per service, per
+ * node and per client session, so that the nodes and clients that keep the server busy can be found.
+ * <p>
+ * Recording only increments LongAdders and records in HdrHistogram Recorders, so it doesn't take locks.
+ * Every interval a background task turns the counters and histograms of the interval into a Snapshot,
+ * which is published in the Diagnostics folder of the namespace and through JMX (ServerMetricsMXBean).
+ * Only the first maxNodes nodes and MAX_CLIENTS sessions used are tracked individually, which bounds
+ * the memory used.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public enum Service {
+        READ,
+        WRITE,
+        BROWSE,
+        CALL,
+        // reads of monitored items by the subscription model
+        SAMPLE
+    }
+
+    public static final String MBEAN_NAME = "csw.opc.server:type=ServerMetrics";
+
+    // Latencies are recorded in microseconds, with higher ones counted as the maximum
+    private static final long MAX_SERVICE_LATENCY_US = TimeUnit.SECONDS.toMicros(60);
+    private static final long MAX_NODE_LATENCY_US = TimeUnit.SECONDS.toMicros(1);
+
+    private static final int MAX_CLIENTS = 1000;
+    private static final int TOP_NODES = 10;
+
+    private static final Service[] SERVICES = Service.values();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final boolean enabled;
+    private final int intervalSeconds;
+    private final int maxNodes;
+
+    private final ServiceMetrics[] services = new ServiceMetrics[SERVICES.length];
+    private final Map<NodeId, NodeMetrics> nodes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder[]> clients = new ConcurrentHashMap<>();
+    private final LongAdder untrackedOperations = new LongAdder();
+
+    private volatile Snapshot snapshot;
+    private ScheduledFuture<?> snapshotTask;
+    private ObjectName mbeanName;
+
+    private static final class ServiceMetrics {
+        final LongAdder requests = new LongAdder();
+        final LongAdder operations = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Recorder latency = new Recorder(1, MAX_SERVICE_LATENCY_US, 2);
+        long lastRequests;
+        long lastOperations;
+        Histogram intervalHistogram;
+    }
+
+    private static final class NodeMetrics {
+        final LongAdder[] operations = newCounters();
+        final Recorder latency = new Recorder(1, MAX_NODE_LATENCY_US, 1);
+        final long[] totals = new long[SERVICES.length];
+        Histogram intervalHistogram;
+    }
+
+    /**
+     * @param enabled         if false, nothing is recorded
+     * @param intervalSeconds the period of the snapshots (rates and latency percentiles are per interval)
+     * @param maxNodes        the maximum number of nodes tracked individually
+     */
+    public ServerMetrics(boolean enabled, int intervalSeconds, int maxNodes) {
+        this.enabled = enabled;
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+        this.maxNodes = maxNodes;
+        for (Service service : SERVICES) {
+            services[service.ordinal()] = new ServiceMetrics();
+        }
+        this.snapshot = new Snapshot(0, Collections.emptyList(), Collections.emptyList(), Collections.emptyList(), 0);
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[SERVICES.length];
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+        return counters;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts taking snapshots on the given executor and registers the MBean
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (!enabled || snapshotTask != null) return;
+        snapshotTask = executor.scheduleAtFixedRate(this::takeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanName = new ObjectName(MBEAN_NAME);
+            mbeanServer.registerMBean(this, mbeanName);
+        } catch (InstanceAlreadyExistsException e) {
+            // another namespace in this JVM (as in the benchmarks) registered first
+            mbeanName = null;
+        } catch (JMException e) {
+            mbeanName = null;
+            logger.warn("Unable to register the server metrics MBean", e);
+        }
+    }
+
+    public synchronized void stop() {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+            snapshotTask = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister the server metrics MBean", e);
+            }
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * Returns the start time to pass to the record methods (0 if disabled)
+     */
+    public long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a request (a service call with one or more operations) that started at startNanos
+     *
+     * @param session the session of the client, if any and known
+     */
+    public void recordRequest(Service service, Optional<Session> session, int operations, int errors,
+                              long startNanos) {
+        if (!enabled) return;
+
+        ServiceMetrics metrics = services[service.ordinal()];
+        metrics.requests.increment();
+        metrics.operations.add(operations);
+        if (errors > 0) metrics.errors.add(errors);
+        metrics.latency.recordValue(micros(startNanos, MAX_SERVICE_LATENCY_US));
+
+        if (session.isPresent()) {
+            String name = session.get().getSessionName();
+            LongAdder[] counters = clients.get(name);
+            if (counters == null && clients.size() < MAX_CLIENTS) {
+                counters = clients.computeIfAbsent(name, n -> newCounters());
+            }
+            if (counters != null) counters[service.ordinal()].add(operations);
+        }
+    }
+
+    /**
+     * Records an operation of a request on one node that started at startNanos
+     */
+    public void recordOperation(Service service, NodeId nodeId, long startNanos) {
+        if (!enabled) return;
+
+        NodeMetrics metrics = nodes.get(nodeId);
+        if (metrics == null) {
+            if (nodes.size() >= maxNodes) {
+                untrackedOperations.increment();
+                return;
+            }
+            metrics = nodes.computeIfAbsent(nodeId, id -> new NodeMetrics());
+        }
+        metrics.operations[service.ordinal()].increment();
+        metrics.latency.recordValue(micros(startNanos, MAX_NODE_LATENCY_US));
+    }
+
+    private static long micros(long startNanos, long max) {
+        return Math.min(max, Math.max(0, (System.nanoTime() - startNanos) / 1000));
+    }
+
+    /**
+     * The statistics of the last interval
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // Called by the snapshot task only
+    private void takeSnapshot() {
+        try {
+            List<ServiceStatistics> serviceStatistics = new ArrayList<>(SERVICES.length);
+            for (Service service : SERVICES) {
+                ServiceMetrics metrics = services[service.ordinal()];
+                metrics.intervalHistogram = metrics.latency.getIntervalHistogram(metrics.intervalHistogram);
+                long requests = metrics.requests.sum();
+                long operations = metrics.operations.sum();
+                Histogram h = metrics.intervalHistogram;
+                serviceStatistics.add(new ServiceStatistics(
+                    service.name(), requests, operations, metrics.errors.sum(),
+                    (double) (requests - metrics.lastRequests) / intervalSeconds,
+                    (double) (operations - metrics.lastOperations) / intervalSeconds,
+                    percentile(h, 50), percentile(h, 99), h.getTotalCount() == 0 ? 0 : h.getMaxValue()));
+                metrics.lastRequests = requests;
+                metrics.lastOperations = operations;
+            }
+
+            List<NodeStatistics> nodeStatistics = new ArrayList<>();
+            nodes.forEach((nodeId, metrics) -> {
+                long[] interval = new long[SERVICES.length];
+                long total = 0;
+                for (int i = 0; i < interval.length; i++) {
+                    interval[i] = metrics.operations[i].sumThenReset();
+                    metrics.totals[i] += interval[i];
+                    total += interval[i];
+                }
+                metrics.intervalHistogram = metrics.latency.getIntervalHistogram(metrics.intervalHistogram);
+                if (total > 0) {
+                    Histogram h = metrics.intervalHistogram;
+                    nodeStatistics.add(new NodeStatistics(nodeId.toParseableString(),
+                        (double) total / intervalSeconds,
+                        metrics.totals[Service.READ.ordinal()], metrics.totals[Service.WRITE.ordinal()],
+                        metrics.totals[Service.SAMPLE.ordinal()],
+                        percentile(h, 99), h.getMaxValue()));
+                }
+            });
+            nodeStatistics.sort(Comparator.comparingDouble(NodeStatistics::getOperationsPerSecond).reversed());
+
+            List<ClientStatistics> clientStatistics = new ArrayList<>(clients.size());
+            clients.forEach((name, counters) -> clientStatistics.add(new ClientStatistics(name,
+                counters[Service.READ.ordinal()].sum(), counters[Service.WRITE.ordinal()].sum(),
+                counters[Service.BROWSE.ordinal()].sum())));
+            clientStatistics.sort(Comparator.comparingLong(
+                (ClientStatistics c) -> c.getReads() + c.getWrites() + c.getBrowses()).reversed());
+
+            snapshot = new Snapshot(System.currentTimeMillis(), serviceStatistics,
+                new ArrayList<>(nodeStatistics.subList(0, Math.min(TOP_NODES, nodeStatistics.size()))),
+                clientStatistics, untrackedOperations.sum());
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.error("Taking a metrics snapshot failed", t);
+        }
+    }
+
+    private static double percentile(Histogram h, double percentile) {
+        return h.getTotalCount() == 0 ? 0 : h.getValueAtPercentile(percentile);
+    }
+
+    // --- ServerMetricsMXBean
+
+    @Override
+    public List<ServiceStatistics> getServices() {
+        return snapshot.getServices();
+    }
+
+    @Override
+    public List<NodeStatistics> getBusiestNodes() {
+        return snapshot.getBusiestNodes();
+    }
+
+    @Override
+    public List<ClientStatistics> getClients() {
+        return snapshot.getClients();
+    }
+
+    @Override
+    public long getUntrackedOperations() {
+        return snapshot.getUntrackedOperations();
+    }
+
+    @Override
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    /**
+     * The statistics of one interval
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final List<ServiceStatistics> services;
+        private final List<NodeStatistics> busiestNodes;
+        private final List<ClientStatistics> clients;
+        private final long untrackedOperations;
+
+        Snapshot(long time, List<ServiceStatistics> services, List<NodeStatistics> busiestNodes,
+                 List<ClientStatistics> clients, long untrackedOperations) {
+            this.time = time;
+            this.services = Collections.unmodifiableList(services);
+            this.busiestNodes = Collections.unmodifiableList(busiestNodes);
+            this.clients = Collections.unmodifiableList(clients);
+            this.untrackedOperations = untrackedOperations;
+        }
+
+        /**
+         * The time the snapshot was taken (ms since the epoch, 0 before the first snapshot)
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public List<ServiceStatistics> getServices() {
+            return services;
+        }
+
+        public Optional<ServiceStatistics> getService(Service service) {
+            return services.stream().filter(s -> s.getService().equals(service.name())).findFirst();
+        }
+
+        /**
+         * The nodes with the most operations in the interval, busiest first
+         */
+        public List<NodeStatistics> getBusiestNodes() {
+            return busiestNodes;
+        }
+
+        /**
+         * The client sessions, busiest first
+         */
+        public List<ClientStatistics> getClients() {
+            return clients;
+        }
+
+        /**
+         * The operations on nodes that were not tracked individually because maxNodes was reached
+         */
+        public long getUntrackedOperations() {
+            return untrackedOperations;
+        }
+    }
+
+    /**
+     * Totals, and rates and latencies (microseconds) of the last interval, of a service
+     */
+    public static final class ServiceStatistics {
+        private final String service;
+        private final long requests;
+        private final long operations;
+        private final long errors;
+        private final double requestsPerSecond;
+        private final double operationsPerSecond;
+        private final double latencyP50;
+        private final double latencyP99;
+        private final double latencyMax;
+
+        @ConstructorProperties({"service", "requests", "operations", "errors", "requestsPerSecond",
+            "operationsPerSecond", "latencyP50", "latencyP99", "latencyMax"})
+        public ServiceStatistics(String service, long requests, long operations, long errors,
+                                 double requestsPerSecond, double operationsPerSecond,
+                                 double latencyP50, double latencyP99, double latencyMax) {
+            this.service = service;
+            this.requests = requests;
+            this.operations = operations;
+            this.errors = errors;
+            this.requestsPerSecond = requestsPerSecond;
+            this.operationsPerSecond = operationsPerSecond;
+            this.latencyP50 = latencyP50;
+            this.latencyP99 = latencyP99;
+            this.latencyMax = latencyMax;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public double getOperationsPerSecond() {
+            return operationsPerSecond;
+        }
+
+        public double getLatencyP50() {
+            return latencyP50;
+        }
+
+        public double getLatencyP99() {
+            return latencyP99;
+        }
+
+        public double getLatencyMax() {
+            return latencyMax;
+        }
+    }
+
+    /**
+     * The operation rate and latencies (microseconds) of a node in the last interval, and its totals
+     */
+    public static final class NodeStatistics {
+        private final String nodeId;
+        private final double operationsPerSecond;
+        private final long reads;
+        private final long writes;
+        private final long samples;
+        private final double latencyP99;
+        private final double latencyMax;
+
+        @ConstructorProperties({"nodeId", "operationsPerSecond", "reads", "writes", "samples",
+            "latencyP99", "latencyMax"})
+        public NodeStatistics(String nodeId, double operationsPerSecond, long reads, long writes, long samples,
+                              double latencyP99, double latencyMax) {
+            this.nodeId = nodeId;
+            this.operationsPerSecond = operationsPerSecond;
+            this.reads = reads;
+            this.writes = writes;
+            this.samples = samples;
+            this.latencyP99 = latencyP99;
+            this.latencyMax = latencyMax;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public double getOperationsPerSecond() {
+            return operationsPerSecond;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getWrites() {
+            return writes;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public double getLatencyP99() {
+            return latencyP99;
+        }
+
+        public double getLatencyMax() {
+            return latencyMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.1f/s p99=%.0fus", nodeId, operationsPerSecond, latencyP99);
+        }
+    }
+
+    /**
+     * The operations of a client session
+     */
+    public static final class ClientStatistics {
+        private final String session;
+        private final long reads;
+        private final long writes;
+        private final long browses;
+
+        @ConstructorProperties({"session", "reads", "writes", "browses"})
+        public ClientStatistics(String session, long reads, long writes, long browses) {
+            this.session = session;
+            this.reads = reads;
+            this.writes = writes;
+            this.browses = browses;
+        }
+
+        public String getSession() {
+            return session;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getWrites() {
+            return writes;
+        }
+
+        public long getBrowses() {
+            return browses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s reads=%d writes=%d browses=%d", session, reads, writes, browses);
+        }
+    }
+}
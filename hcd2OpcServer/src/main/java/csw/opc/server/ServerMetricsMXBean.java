@@ -0,0 +1,20 @@
+package csw.opc.server;
+
+import java.util.List;
+
+/**
+ * The JMX view of ServerMetrics (registered as ServerMetrics.MBEAN_NAME). The values are those of the
+ * last snapshot, taken every getIntervalSeconds().
+ */
+public interface ServerMetricsMXBean {
+
+    List<ServerMetrics.ServiceStatistics> getServices();
+
+    List<ServerMetrics.NodeStatistics> getBusiestNodes();
+
+    List<ServerMetrics.ClientStatistics> getClients();
+
+    long getUntrackedOperations();
+
+    int getIntervalSeconds();
+}
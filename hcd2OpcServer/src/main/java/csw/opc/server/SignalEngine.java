@@ -0,0 +1,184 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Evaluates the SignalGenerators of many variables at a fixed rate (like 1 kHz), so that reads and monitored
+ * items get realistic, changing values at no cost to the request threads.
+ * <p>
+ * The signals are split into partitions, each evaluated by its own fixed-rate task. The tasks run on the
+ * engine's own pool, with a thread per partition, so that they don't delay the server's scheduler (nor each
+ * other), and a partition's generators are only called from one thread at a time. The values are written to one
+ * slot per signal, and all values of a partition evaluated in the same tick get the same source timestamp.
+ * Readers take no lock: each partition has a sequence number that is odd while a tick writes its slots, and
+ * a reader tries again if the number was odd or changed while it read a slot.
+ * <p>
+ * Signals must be added before start() is called.
+ */
+public class SignalEngine {
+
+    // Nanoseconds per UtcTime tick
+    private static final long NANOS_PER_TICK = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final double rateHz;
+    private final int partitionCount;
+
+    private final List<SignalGenerator> added = new ArrayList<>();
+
+    // Set by start(): the generators and value slots (double bits) by signal number, and the partitions
+    private SignalGenerator[] generators;
+    private AtomicLongArray values;
+    private int partitionSize;
+    // set last, so that readers that see it see the rest
+    private volatile Partition[] partitions;
+
+    private long startNanos;
+    private long startUtcTime;
+
+    // Runs the partitions' tasks, created by start()
+    private ScheduledThreadPoolExecutor executor;
+
+    // The signals [from, to), evaluated by one task
+    private final class Partition implements Runnable {
+        final int from;
+        final int to;
+        volatile int sequence;
+        volatile long time;
+        boolean failed;
+
+        Partition(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            evaluate(System.nanoTime());
+        }
+
+        void evaluate(long nanos) {
+            double seconds = (nanos - startNanos) / 1e9;
+            // single writer: odd while the slots are written
+            sequence++;
+            try {
+                for (int i = from; i < to; i++) {
+                    values.set(i, Double.doubleToRawLongBits(generators[i].value(seconds)));
+                }
+                time = startUtcTime + (nanos - startNanos) / NANOS_PER_TICK;
+            } catch (Throwable t) {
+                // an exception would cancel the fixed-rate task, and would be repeated at every tick
+                if (!failed) logger.error("Signal evaluation failed", t);
+                failed = true;
+            } finally {
+                sequence++;
+            }
+        }
+    }
+
+    /**
+     * @param rateHz         the number of times per second the signals are evaluated
+     * @param partitionCount the number of partitions (tasks and threads) the signals are split into
+     */
+    public SignalEngine(double rateHz, int partitionCount) {
+        this.rateHz = rateHz;
+        this.partitionCount = Math.max(1, partitionCount);
+    }
+
+    /**
+     * Adds a signal (must be called before start())
+     *
+     * @return the signal number, to read its value with
+     */
+    public synchronized int add(SignalGenerator generator) {
+        if (generators != null) throw new IllegalStateException("The signal engine is already started");
+        added.add(generator);
+        return added.size() - 1;
+    }
+
+    public synchronized int getSignalCount() {
+        return added.size();
+    }
+
+    public double getRateHz() {
+        return rateHz;
+    }
+
+    /**
+     * Evaluates all signals once, then starts the tasks that evaluate them at the rate
+     */
+    public synchronized void start() {
+        if (generators != null || added.isEmpty()) return;
+
+        generators = added.toArray(new SignalGenerator[added.size()]);
+        values = new AtomicLongArray(generators.length);
+        int n = Math.min(partitionCount, generators.length);
+        partitionSize = (generators.length + n - 1) / n;
+        Partition[] ps = new Partition[(generators.length + partitionSize - 1) / partitionSize];
+        for (int p = 0; p < ps.length; p++) {
+            ps[p] = new Partition(p * partitionSize, Math.min(generators.length, (p + 1) * partitionSize));
+        }
+
+        startNanos = System.nanoTime();
+        startUtcTime = DateTime.now().getUtcTime();
+        for (Partition partition : ps) {
+            partition.evaluate(startNanos);
+        }
+        partitions = ps;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(ps.length, r -> {
+            Thread thread = new Thread(r, "signal-engine-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodNanos = Math.max(1, Math.round(1e9 / rateHz));
+        for (Partition partition : ps) {
+            executor.scheduleAtFixedRate(partition, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        }
+        logger.info("Evaluating {} signals at {} Hz in {} partitions", generators.length, rateHz, ps.length);
+    }
+
+    /**
+     * Stops the tasks and their threads (the signals keep their last values)
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the last value of a signal, with the time it was evaluated as source timestamp
+     */
+    public DataValue read(int signal) {
+        Partition[] ps = partitions;
+        if (ps == null) return new DataValue(StatusCodes.Bad_WaitingForInitialData);
+        Partition p = ps[signal / partitionSize];
+        while (true) {
+            int sequence = p.sequence;
+            if ((sequence & 1) == 0) {
+                double value = Double.longBitsToDouble(values.get(signal));
+                long time = p.time;
+                if (p.sequence == sequence) {
+                    return new DataValue(new Variant(value), StatusCode.GOOD, new DateTime(time), DateTime.now());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package csw.opc.server;
+
+/**
+ * Produces the values of a test signal, which SignalEngine evaluates at a fixed rate.
+ * See SignalGenerators for the built-in signals, and for how to add others.
+ * <p>
+ * A generator belongs to one variable and is only called from one thread at a time, so it may keep state
+ * (like a random number generator) without locking.
+ */
+public interface SignalGenerator {
+
+    /**
+     * Returns the value of the signal at the given time
+     *
+     * @param seconds the time since the engine started (s)
+     */
+    double value(double seconds);
+}
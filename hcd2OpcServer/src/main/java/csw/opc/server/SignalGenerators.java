@@ -0,0 +1,160 @@
+package csw.opc.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates SignalGenerators from specs like "sine,period=2,amplitude=5": the name of the signal, followed by
+ * its parameters. The built-in signals are:
+ * <ul>
+ * <li>sine: period (s, default 1), amplitude (1), offset (0)</li>
+ * <li>ramp: a sawtooth from min (0) to max (1) in period (s, 1)</li>
+ * <li>square: low (0) for (1 - duty) and high (1) for duty (0.5) of period (s, 1)</li>
+ * <li>noise: uniform in offset (0) +/- amplitude (1), from a SplittableRandom with the given seed</li>
+ * <li>replay: the numbers in file (the last one on each line; other lines are skipped), at rate samples per
+ * second (default: the engine's rate), over and over</li>
+ * </ul>
+ * Each variable gets its own generator. Periodic signals are shifted by a different phase for each variable,
+ * so that they are not all the same. Other signals can be added with register().
+ */
+public class SignalGenerators {
+
+    /**
+     * Creates the generator of a variable
+     */
+    public interface Factory {
+        /**
+         * @param params the parameters of the spec
+         * @param index  the number of the variable, which may be used to vary the signal
+         * @param random gives the variable's generator its own seed
+         * @param rateHz the rate at which the engine evaluates the signal
+         */
+        SignalGenerator create(Map<String, String> params, int index, SplittableRandom random, double rateHz)
+            throws IOException;
+    }
+
+    // The phase shift of variable i is i times this fraction of the period (the golden ratio spreads them evenly)
+    private static final double PHASE_STEP = 0.6180339887498949;
+
+    private static final Map<String, Factory> factories = new ConcurrentHashMap<>();
+
+    // Replay files are read once, and their samples shared by the variables
+    private static final Map<String, double[]> replays = new ConcurrentHashMap<>();
+
+    static {
+        register("sine", (p, index, random, rate) -> {
+            double period = param(p, "period", 1.0);
+            double amplitude = param(p, "amplitude", 1.0);
+            double offset = param(p, "offset", 0.0);
+            double phase = phase(index) * period;
+            return t -> offset + amplitude * Math.sin(2 * Math.PI * (t + phase) / period);
+        });
+        register("ramp", (p, index, random, rate) -> {
+            double period = param(p, "period", 1.0);
+            double min = param(p, "min", 0.0);
+            double max = param(p, "max", 1.0);
+            double phase = phase(index) * period;
+            return t -> min + (max - min) * fraction((t + phase) / period);
+        });
+        register("square", (p, index, random, rate) -> {
+            double period = param(p, "period", 1.0);
+            double low = param(p, "low", 0.0);
+            double high = param(p, "high", 1.0);
+            double duty = param(p, "duty", 0.5);
+            double phase = phase(index) * period;
+            return t -> fraction((t + phase) / period) < duty ? high : low;
+        });
+        register("noise", (p, index, random, rate) -> {
+            double amplitude = param(p, "amplitude", 1.0);
+            double offset = param(p, "offset", 0.0);
+            SplittableRandom r = random.split();
+            return t -> offset + amplitude * (2 * r.nextDouble() - 1);
+        });
+        register("replay", (p, index, random, rate) -> {
+            String file = p.get("file");
+            if (file == null) throw new IllegalArgumentException("replay needs a file parameter");
+            double[] samples = replay(file);
+            double samplesPerSecond = param(p, "rate", rate);
+            // each variable starts at a different sample
+            long start = (long) (phase(index) * samples.length);
+            return t -> samples[(int) Math.floorMod(start + (long) (t * samplesPerSecond), (long) samples.length)];
+        });
+    }
+
+    /**
+     * Adds a signal (or replaces a built-in one)
+     */
+    public static void register(String name, Factory factory) {
+        factories.put(name, factory);
+    }
+
+    /**
+     * Creates the generator of a variable from a spec, like "sine,period=2,amplitude=5"
+     *
+     * @throws IllegalArgumentException if the spec is invalid
+     * @throws IOException              if a file could not be read
+     */
+    public static SignalGenerator create(String spec, int index, SplittableRandom random, double rateHz)
+        throws IOException {
+        String[] parts = spec.trim().split(",");
+        Factory factory = factories.get(parts[0].trim());
+        if (factory == null) throw new IllegalArgumentException("Unknown signal: " + parts[0]);
+
+        Map<String, String> params = new HashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Invalid signal parameter: " + parts[i]);
+            params.put(parts[i].substring(0, eq).trim(), parts[i].substring(eq + 1).trim());
+        }
+        return factory.create(params, index, random, rateHz);
+    }
+
+    private static double param(Map<String, String> params, String name, double defaultValue) {
+        String value = params.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid signal parameter: " + name + "=" + value);
+        }
+    }
+
+    private static double phase(int index) {
+        return fraction(index * PHASE_STEP);
+    }
+
+    private static double fraction(double x) {
+        return x - Math.floor(x);
+    }
+
+    private static double[] replay(String file) throws IOException {
+        double[] samples = replays.get(file);
+        if (samples != null) return samples;
+
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        double[] values = new double[lines.size()];
+        int n = 0;
+        for (String line : lines) {
+            String[] fields = line.trim().split("[,;\\s]+");
+            try {
+                values[n] = Double.parseDouble(fields[fields.length - 1]);
+                n++;
+            } catch (NumberFormatException e) {
+                // a header or comment
+            }
+        }
+        if (n == 0) throw new IOException("No samples in " + file);
+
+        samples = Arrays.copyOf(values, n);
+        replays.putIfAbsent(file, samples);
+        return samples;
+    }
+}
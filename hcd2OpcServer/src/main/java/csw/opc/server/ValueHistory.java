@@ -0,0 +1,68 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import java.util.List;
+
+/**
+ * The recorded values of one variable, ordered by time (OPC UA UtcTime, 100 ns ticks since 1601),
+ * as read by HistoryReadService. Kept in memory (NodeHistory) or on disk (HistoryArchive).
+ */
+interface ValueHistory {
+
+    /**
+     * Returns the values with from <= time <= to, oldest first
+     */
+    List<DataValue> range(long from, long to);
+
+    /**
+     * Returns the newest value with a time before the given time, or null if there is none
+     */
+    DataValue before(long time);
+
+    /**
+     * Returns the oldest value with a time after the given time, or null if there is none
+     */
+    DataValue after(long time);
+
+    /**
+     * Returns the value at the given time: the newest value at that time, or the newest one before it,
+     * or, if that one and the one after it are both numbers, the value interpolated linearly between them
+     * (with the earlier status). Returns null if there is no value at or before the time.
+     */
+    default DataValue at(long time) {
+        List<DataValue> exact = range(time, time);
+        if (!exact.isEmpty()) return exact.get(exact.size() - 1);
+
+        DataValue before = before(time);
+        if (before == null) return null;
+        DataValue after = after(time);
+        Object v0 = before.getValue().getValue();
+        Object v1 = after != null ? after.getValue().getValue() : null;
+        if (!interpolable(v0) || !interpolable(v1)) return before;
+
+        long t0 = before.getSourceTime().getUtcTime();
+        long t1 = after.getSourceTime().getUtcTime();
+        double d0 = ((Number) v0).doubleValue();
+        double value = d0 + (double) (time - t0) / (t1 - t0) * (((Number) v1).doubleValue() - d0);
+
+        Object v;
+        if (v0 instanceof Integer) {
+            v = (int) Math.round(value);
+        } else if (v0 instanceof Long) {
+            v = Math.round(value);
+        } else if (v0 instanceof Float) {
+            v = (float) value;
+        } else {
+            v = value;
+        }
+        DateTime t = new DateTime(time);
+        return new DataValue(new Variant(v), before.getStatusCode(), t, t);
+    }
+
+    static boolean interpolable(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Float || value instanceof Double;
+    }
+}
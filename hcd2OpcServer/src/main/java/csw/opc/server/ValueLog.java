@@ -0,0 +1,265 @@
+package csw.opc.server;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs the values read and written by clients (see ValueLoggingDelegate) without slowing down the
+ * requests: the request threads only count the access and, if it is to be logged, put it in a lock-free
+ * ring buffer, which a background task drains into the log.
+ * <p>
+ * Which accesses are logged depends on the mode, which can be changed at any time. In SAMPLED mode, only
+ * every n-th access of a node is logged, and at most a maximum number per second for each node (both can
+ * be set per node). Accesses that don't fit in the ring buffer are dropped. In all modes except OFF, a
+ * summary with the read and write rates and the busiest nodes is logged periodically.
+ */
+public class ValueLog {
+
+    public enum Mode {
+        // nothing is counted or logged
+        OFF,
+        // only the periodic summaries are logged
+        SUMMARY,
+        // accesses are logged subject to the per node sampling and rate limits
+        SAMPLED,
+        // all accesses are logged (as long as the ring buffer has room)
+        ALL
+    }
+
+    private static final int SUMMARY_TOP_NODES = 5;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private volatile Mode mode;
+    private volatile int defaultSampleEvery;
+    private volatile int defaultMaxPerSecond;
+    private final long summaryMillis;
+
+    // The ring buffer: producers claim a slot by advancing writeIndex, the drain task frees it
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong writeIndex = new AtomicLong();
+    private volatile long readIndex = 0;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Map<NodeId, NodeState> nodes = new ConcurrentHashMap<>();
+
+    private long lastSummaryNanos = System.nanoTime();
+    private long droppedAtLastSummary = 0;
+    private ScheduledFuture<?> drainTask;
+
+    private static final class Entry {
+        final boolean write;
+        final NodeId nodeId;
+        final DataValue value;
+
+        Entry(boolean write, NodeId nodeId, DataValue value) {
+            this.write = write;
+            this.nodeId = nodeId;
+            this.value = value;
+        }
+    }
+
+    // Per node counters and limits
+    private static final class NodeState {
+        final LongAdder accesses = new LongAdder();   // since the last summary
+        final AtomicLong count = new AtomicLong();    // for sampling
+        final AtomicLong window = new AtomicLong();   // packed: second (high 40 bits), entries logged (low 24 bits)
+        volatile int sampleEvery = -1;                // -1: use the default
+        volatile int maxPerSecond = -1;
+    }
+
+    /**
+     * @param mode              what to log
+     * @param capacity          the size of the ring buffer (rounded up to a power of 2)
+     * @param sampleEvery       SAMPLED mode: log every n-th access of a node (1 logs all)
+     * @param maxPerSecond      SAMPLED mode: the maximum number of accesses of a node logged per second
+     * @param summarySeconds    the period of the summaries
+     */
+    public ValueLog(Mode mode, int capacity, int sampleEvery, int maxPerSecond, int summarySeconds) {
+        this.mode = mode;
+        this.defaultSampleEvery = Math.max(1, sampleEvery);
+        this.defaultMaxPerSecond = maxPerSecond;
+        this.summaryMillis = TimeUnit.SECONDS.toMillis(summarySeconds);
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts draining the ring buffer every 100 ms on the given executor
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (drainTask != null) return;
+        drainTask = executor.scheduleWithFixedDelay(this::drain, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (drainTask != null) {
+            drainTask.cancel(false);
+            drainTask = null;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Changes what is logged, effective immediately for all delegates using this log
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        logger.info("Value log mode is now {}", mode);
+    }
+
+    /**
+     * Sets the default sampling and rate limit of SAMPLED mode
+     */
+    public void setDefaultLimits(int sampleEvery, int maxPerSecond) {
+        this.defaultSampleEvery = Math.max(1, sampleEvery);
+        this.defaultMaxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * Sets the sampling and rate limit of SAMPLED mode for one node
+     *
+     * @param sampleEvery  log every n-th access (1 logs all)
+     * @param maxPerSecond the maximum number of accesses logged per second (0 logs none)
+     */
+    public void setNodeLimits(NodeId nodeId, int sampleEvery, int maxPerSecond) {
+        NodeState state = nodes.computeIfAbsent(nodeId, id -> new NodeState());
+        state.sampleEvery = Math.max(1, sampleEvery);
+        state.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * The number of accesses that were not logged because the ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Records a read of a node by a client
+     */
+    public void read(NodeId nodeId, DataValue value) {
+        record(false, nodeId, value);
+    }
+
+    /**
+     * Records a write to a node by a client
+     */
+    public void write(NodeId nodeId, DataValue value) {
+        record(true, nodeId, value);
+    }
+
+    private void record(boolean write, NodeId nodeId, DataValue value) {
+        Mode m = mode;
+        if (m == Mode.OFF) return;
+
+        (write ? writes : reads).increment();
+        NodeState state = nodes.computeIfAbsent(nodeId, id -> new NodeState());
+        state.accesses.increment();
+
+        if (m == Mode.SUMMARY) return;
+        if (m == Mode.SAMPLED && !sample(state)) {
+            suppressed.increment();
+            return;
+        }
+
+        long w;
+        do {
+            w = writeIndex.get();
+            if (w - readIndex > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!writeIndex.compareAndSet(w, w + 1));
+        slots.lazySet((int) w & mask, new Entry(write, nodeId, value));
+    }
+
+    // Returns true if the access is to be logged in SAMPLED mode
+    private boolean sample(NodeState state) {
+        int every = state.sampleEvery > 0 ? state.sampleEvery : defaultSampleEvery;
+        if (every > 1 && state.count.getAndIncrement() % every != 0) return false;
+
+        int max = state.maxPerSecond >= 0 ? state.maxPerSecond : defaultMaxPerSecond;
+        if (max < 0) return true;
+
+        long second = System.currentTimeMillis() / 1000;
+        while (true) {
+            long window = state.window.get();
+            long logged = window >>> 40 == second ? window & 0xffffff : 0;
+            if (logged >= max) return false;
+            if (state.window.compareAndSet(window, second << 40 | (logged + 1))) return true;
+        }
+    }
+
+    // Called by the drain task only
+    private void drain() {
+        try {
+            long r = readIndex;
+            Entry entry;
+            while ((entry = slots.get((int) r & mask)) != null) {
+                slots.lazySet((int) r & mask, null);
+                readIndex = ++r;
+                logger.info("{} nodeId={} value={}", entry.write ? "setValue()" : "getValue()", entry.nodeId, entry.value);
+            }
+
+            long now = System.nanoTime();
+            if (TimeUnit.NANOSECONDS.toMillis(now - lastSummaryNanos) >= summaryMillis) {
+                summary((now - lastSummaryNanos) / 1e9);
+                lastSummaryNanos = now;
+            }
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.error("Draining the value log failed", t);
+        }
+    }
+
+    private void summary(double seconds) {
+        long r = reads.sumThenReset();
+        long w = writes.sumThenReset();
+        long s = suppressed.sumThenReset();
+        long droppedTotal = dropped.sum();
+        long d = droppedTotal - droppedAtLastSummary;
+        droppedAtLastSummary = droppedTotal;
+
+        List<Map.Entry<NodeId, Long>> busiest = new ArrayList<>();
+        nodes.forEach((nodeId, state) -> {
+            long n = state.accesses.sumThenReset();
+            if (n > 0) busiest.add(new AbstractMap.SimpleImmutableEntry<>(nodeId, n));
+        });
+        if (r + w == 0) return;
+
+        busiest.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        StringBuilder top = new StringBuilder();
+        for (int i = 0; i < Math.min(SUMMARY_TOP_NODES, busiest.size()); i++) {
+            Map.Entry<NodeId, Long> e = busiest.get(i);
+            if (i > 0) top.append(", ");
+            top.append(e.getKey().getIdentifier()).append('=').append(String.format("%.1f/s", e.getValue() / seconds));
+        }
+
+        logger.info("{} reads/sec, {} writes/sec by clients ({} not logged, {} dropped); busiest nodes: {}",
+            String.format("%.1f", r / seconds), String.format("%.1f", w / seconds), s, d, top);
+    }
+}
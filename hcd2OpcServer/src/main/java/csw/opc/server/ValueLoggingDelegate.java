@@ -19,19 +19,24 @@ import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegate;
 import org.eclipse.milo.opcua.sdk.server.nodes.delegates.DelegatingAttributeDelegate;
 import org.eclipse.milo.opcua.stack.core.UaException;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 
+/**
+ * Records the values read and written by clients in a ValueLog (reads and writes by the server itself
+ * are not recorded). The log decides what is actually logged, and logs it on a background thread.
+ */
 public class ValueLoggingDelegate extends DelegatingAttributeDelegate {
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ValueLog log;
 
-    public ValueLoggingDelegate() {}
+    public ValueLoggingDelegate(ValueLog log) {
+        this.log = log;
+    }
 
-    public ValueLoggingDelegate(@Nullable AttributeDelegate parent) {
+    public ValueLoggingDelegate(@Nullable AttributeDelegate parent, ValueLog log) {
         super(parent);
+        this.log = log;
     }
 
     @Override
@@ -40,9 +45,7 @@ public class ValueLoggingDelegate extends DelegatingAttributeDelegate {
 
         // only log external reads
         if (context.getSession().isPresent()) {
-            logger.info(
-                "getValue() nodeId={} value={}",
-                node.getNodeId(), value);
+            log.read(node.getNodeId(), value);
         }
 
         return value;
@@ -52,9 +55,7 @@ public class ValueLoggingDelegate extends DelegatingAttributeDelegate {
     public void setValue(AttributeContext context, VariableNode node, DataValue value) throws UaException {
         // only log external writes
         if (context.getSession().isPresent()) {
-            logger.info(
-                "setValue() nodeId={} value={}",
-                node.getNodeId(), value);
+            log.write(node.getNodeId(), value);
         }
 
         super.setValue(context, node, value);
@@ -0,0 +1,100 @@
+package csw.opc.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Measures the CPU time used by the server process (from /proc, so only on Linux) and by this process
+ * between start() and stop(). 100% is one core.
+ */
+class CpuUsage {
+
+    // The unit of the times in /proc/[pid]/stat (USER_HZ, which is 100 on practically all Linux systems)
+    private static final double CLOCK_TICKS_PER_SECOND = 100.0;
+
+    private static final String SERVER_MAIN_CLASS = "csw.opc.server.Hcd2OpcServer";
+
+    private final int serverPid;
+    private long startNanos;
+    private long serverStartTicks;
+    private long clientStartNanos;
+
+    /**
+     * @param serverPid the process id of the server, or 0 to look for a running Hcd2OpcServer
+     */
+    CpuUsage(int serverPid) {
+        this.serverPid = serverPid > 0 ? serverPid : findServer();
+    }
+
+    /**
+     * The process id of the server, or 0 if not known (then the server CPU is reported as -1)
+     */
+    int getServerPid() {
+        return serverPid;
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+        serverStartTicks = serverTicks();
+        clientStartNanos = clientCpuNanos();
+    }
+
+    /**
+     * Returns the server's and this process's CPU usage since start() in percent
+     */
+    double[] stop() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long serverTicks = serverTicks();
+        double server = serverTicks < 0 || serverStartTicks < 0
+            ? -1 : 100 * (serverTicks - serverStartTicks) / CLOCK_TICKS_PER_SECOND / seconds;
+        long clientNanos = clientCpuNanos();
+        double client = clientNanos < 0 ? -1 : 100 * (clientNanos - clientStartNanos) / 1e9 / seconds;
+        return new double[]{server, client};
+    }
+
+    // utime + stime of the server process, or -1
+    private long serverTicks() {
+        if (serverPid <= 0) return -1;
+        try {
+            String stat = new String(Files.readAllBytes(new File("/proc/" + serverPid + "/stat").toPath()),
+                StandardCharsets.US_ASCII);
+            // the command name (field 2) may contain spaces, so count the fields after it
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long clientCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    // Looks for a JVM running the demo server on this host
+    private static int findServer() {
+        File[] processes = new File("/proc").listFiles((dir, name) -> name.matches("\\d+"));
+        if (processes == null) return 0;
+        for (File process : processes) {
+            try {
+                // the arguments are separated by NUL; skip wrappers like timeout or sh -c
+                String[] args = new String(Files.readAllBytes(new File(process, "cmdline").toPath()),
+                    StandardCharsets.UTF_8).split("\0");
+                if (args[0].endsWith("java") && Arrays.asList(args).contains(SERVER_MAIN_CLASS)) {
+                    return Integer.parseInt(process.getName());
+                }
+            } catch (IOException | RuntimeException e) {
+                // the process ended or is not ours
+            }
+        }
+        return 0;
+    }
+}
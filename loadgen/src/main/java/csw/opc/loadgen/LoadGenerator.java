@@ -0,0 +1,136 @@
+package csw.opc.loadgen;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import csw.opcDemo.hcd2.KeyStoreLoader;
+import csw.opcDemo.hcd2.NodeIdCache;
+import org.eclipse.milo.opcua.stack.client.UaTcpStackClient;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the configured load scenarios one after the other against an Hcd2OpcServer and writes
+ * loadgen-report.csv and loadgen-report.json to the output directory.
+ * <p>
+ * Usage: LoadGenerator [config-file], where the file overrides the settings in reference.conf.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final Config config;
+    private final EndpointDescription endpoint;
+    private final KeyStoreLoader loader = new KeyStoreLoader();
+    private final CpuUsage cpu;
+
+    public LoadGenerator(Config config) throws Exception {
+        this.config = config;
+        String endpointUrl = config.getString("endpoint-url");
+        endpoint = Arrays.stream(UaTcpStackClient.getEndpoints(endpointUrl).get())
+            .filter(e -> e.getSecurityPolicyUri().equals(SecurityPolicy.None.getSecurityPolicyUri()))
+            .findFirst().orElseThrow(() -> new Exception("no endpoint without security at " + endpointUrl));
+        loader.load();
+        cpu = new CpuUsage(config.getInt("server-pid"));
+        if (cpu.getServerPid() == 0) {
+            logger.warn("Server process not found, server CPU will be reported as -1 (set loadgen.server-pid)");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = args.length > 0
+            ? ConfigFactory.parseFile(new File(args[0])).withFallback(ConfigFactory.load())
+            : ConfigFactory.load();
+        config = config.resolve().getConfig("loadgen");
+
+        LoadGenerator generator = new LoadGenerator(config);
+        Config defaults = config.getConfig("scenario-defaults");
+        LoadReport report = new LoadReport();
+        for (Config scenario : config.getConfigList("scenarios")) {
+            generator.run(new Scenario(scenario.withFallback(defaults)), report);
+        }
+
+        Path dir = Paths.get(config.getString("output-dir"));
+        Files.createDirectories(dir);
+        report.writeCsv(dir.resolve("loadgen-report.csv"));
+        report.writeJson(dir.resolve("loadgen-report.json"));
+        logger.info("Wrote {} and {}", dir.resolve("loadgen-report.csv"), dir.resolve("loadgen-report.json"));
+        System.exit(0);
+    }
+
+    /**
+     * Runs one scenario and adds its results to the report
+     */
+    public void run(Scenario scenario, LoadReport report) throws Exception {
+        logger.info("Scenario {}: {} sessions x {} items", scenario.getName(),
+            scenario.getSessions(), scenario.getItemsPerSession());
+
+        LoadStatistics statistics = new LoadStatistics();
+        List<LoadSession> sessions = new ArrayList<>();
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try {
+            for (int i = 0; i < scenario.getSessions(); i++) {
+                sessions.add(new LoadSession(i, scenario, statistics, endpoint, loader));
+            }
+            if (sessions.isEmpty()) return;
+
+            // translate all browse paths with the first session
+            Set<String> paths = new LinkedHashSet<>();
+            paths.addAll(scenario.getMonitoredNodes());
+            paths.addAll(scenario.getReadNodes());
+            paths.addAll(scenario.getWriteNodes());
+            NodeIdCache nodeIds = NodeIdCache.resolve(sessions.get(0).getClient(),
+                config.getString("namespace-uri"), "", new ArrayList<>(paths), Optional.empty());
+            List<NodeId> monitored = nodeIds(nodeIds, scenario.getMonitoredNodes());
+            List<NodeId> reads = nodeIds(nodeIds, scenario.getReadNodes());
+            List<NodeId> writes = nodeIds(nodeIds, scenario.getWriteNodes());
+
+            for (LoadSession session : sessions) {
+                session.subscribe(monitored);
+            }
+            // spread the sessions' requests over the period
+            long spread = TimeUnit.SECONDS.toNanos(1) / sessions.size();
+            for (int i = 0; i < sessions.size(); i++) {
+                sessions.get(i).start(executor, reads, writes, i * spread);
+            }
+
+            Thread.sleep(scenario.getWarmupMillis());
+            statistics.reset();
+            cpu.start();
+            long start = System.nanoTime();
+            Thread.sleep(scenario.getDurationMillis());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double[] cpuUsage = cpu.stop();
+            Map<String, Object> row = report.add(scenario, statistics, seconds, cpuUsage);
+            logger.info("Scenario {}: {}", scenario.getName(), row);
+        } finally {
+            sessions.forEach(LoadSession::stop);
+            executor.shutdownNow();
+            sessions.forEach(LoadSession::disconnect);
+        }
+    }
+
+    private static List<NodeId> nodeIds(NodeIdCache cache, List<String> paths) {
+        List<NodeId> result = new ArrayList<>(paths.size());
+        for (String path : paths) result.add(cache.get(path));
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package csw.opc.loadgen;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The results of the scenarios of one run, written as CSV (one row per scenario) and JSON
+ */
+class LoadReport {
+
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+
+    /**
+     * Adds the results of a scenario measured for the given time
+     *
+     * @param cpu the server's and this process's CPU usage in percent (-1 if unknown)
+     */
+    Map<String, Object> add(Scenario scenario, LoadStatistics statistics, double seconds, double[] cpu) {
+        Histogram readLatency = LoadStatistics.histogram(statistics.readLatency);
+        Histogram writeLatency = LoadStatistics.histogram(statistics.writeLatency);
+        Histogram lag = LoadStatistics.histogram(statistics.notificationLag);
+
+        long notifications = statistics.notifications.sum();
+        double expected = statistics.expectedNotificationRate.sum() * seconds;
+
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("scenario", scenario.getName());
+        row.put("sessions", scenario.getSessions());
+        row.put("itemsPerSession", scenario.getItemsPerSession());
+        row.put("seconds", seconds);
+        row.put("reads", statistics.reads.sum());
+        row.put("readsPerSecond", statistics.reads.sum() / seconds);
+        row.put("readOperationsPerSecond", statistics.readOperations.sum() / seconds);
+        row.put("readErrors", statistics.readErrors.sum());
+        putLatency(row, "readLatency", readLatency);
+        row.put("writes", statistics.writes.sum());
+        row.put("writesPerSecond", statistics.writes.sum() / seconds);
+        row.put("writeErrors", statistics.writeErrors.sum());
+        putLatency(row, "writeLatency", writeLatency);
+        row.put("skippedRequests", statistics.skipped.sum());
+        row.put("notifications", notifications);
+        row.put("notificationsPerSecond", notifications / seconds);
+        row.put("expectedNotifications", Math.round(expected));
+        row.put("notificationLoss", expected > 0 ? Math.max(0, 1 - notifications / expected) : 0.0);
+        row.put("overflows", statistics.overflows.sum());
+        row.put("notificationLagP50Ms", lag.getValueAtPercentile(50));
+        row.put("notificationLagP99Ms", lag.getValueAtPercentile(99));
+        row.put("notificationLagMaxMs", lag.getMaxValue());
+        row.put("serverCpuPercent", cpu[0]);
+        row.put("clientCpuPercent", cpu[1]);
+        rows.add(row);
+        return row;
+    }
+
+    private static void putLatency(Map<String, Object> row, String prefix, Histogram histogram) {
+        row.put(prefix + "P50Us", histogram.getValueAtPercentile(50));
+        row.put(prefix + "P99Us", histogram.getValueAtPercentile(99));
+        row.put(prefix + "P999Us", histogram.getValueAtPercentile(99.9));
+        row.put(prefix + "MaxUs", histogram.getMaxValue());
+    }
+
+    void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            if (rows.isEmpty()) return;
+            out.println(String.join(",", rows.get(0).keySet()));
+            for (Map<String, Object> row : rows) {
+                List<String> values = new ArrayList<>();
+                for (Object value : row.values()) {
+                    values.add(value instanceof String ? '"' + ((String) value).replace("\"", "\"\"") + '"' : format(value));
+                }
+                out.println(String.join(",", values));
+            }
+        }
+    }
+
+    void writeJson(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int i = 0; i < rows.size(); i++) {
+                out.println("  {");
+                int j = 0;
+                for (Map.Entry<String, Object> entry : rows.get(i).entrySet()) {
+                    Object value = entry.getValue();
+                    String json = value instanceof String
+                        ? '"' + ((String) value).replace("\\", "\\\\").replace("\"", "\\\"") + '"'
+                        : format(value);
+                    out.println("    \"" + entry.getKey() + "\": " + json + (++j < rows.get(i).size() ? "," : ""));
+                }
+                out.println(i < rows.size() - 1 ? "  }," : "  }");
+            }
+            out.println("]");
+        }
+    }
+
+    static String format(Object value) {
+        if (value instanceof Double) return String.format(Locale.ROOT, "%.3f", (Double) value);
+        return String.valueOf(value);
+    }
+}
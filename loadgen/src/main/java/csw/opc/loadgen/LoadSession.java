@@ -0,0 +1,237 @@
+package csw.opc.loadgen;
+
+import csw.opcDemo.hcd2.KeyStoreLoader;
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
+import org.eclipse.milo.opcua.sdk.client.api.identity.AnonymousProvider;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.ULong;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+/**
+ * One client session of a scenario: a subscription with the session's monitored items, plus
+ * reads and writes sent at a fixed rate (open loop, so a slow server does not lower the offered load,
+ * except for the max-in-flight limit).
+ */
+class LoadSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadSession.class);
+
+    private final int index;
+    private final Scenario scenario;
+    private final LoadStatistics statistics;
+    private final OpcUaClient client;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    // The Java class of each write node's value, from a read before the writes start
+    private final Map<NodeId, Class<?>> writeTypes = new HashMap<>();
+
+    private int nextRead;
+    private int nextWrite;
+    private int writeCounter;
+
+    LoadSession(int index, Scenario scenario, LoadStatistics statistics,
+                EndpointDescription endpoint, KeyStoreLoader loader) throws Exception {
+        this.index = index;
+        this.scenario = scenario;
+        this.statistics = statistics;
+
+        OpcUaClientConfig config = OpcUaClientConfig.builder()
+            .setApplicationName(LocalizedText.english("csw opc-ua load generator"))
+            .setApplicationUri("urn:csw:opc:loadgen")
+            .setSessionName(() -> "loadgen-" + scenario.getName() + "-" + index)
+            .setCertificate(loader.getClientCertificate())
+            .setKeyPair(loader.getClientKeyPair())
+            .setEndpoint(endpoint)
+            .setIdentityProvider(new AnonymousProvider())
+            .setRequestTimeout(uint(10000))
+            .build();
+
+        client = new OpcUaClient(config);
+        client.connect().get();
+    }
+
+    OpcUaClient getClient() {
+        return client;
+    }
+
+    /**
+     * Creates the session's monitored items, taking items-per-session consecutive nodes (wrapping around)
+     * starting at this session's offset, so that sessions share nodes only if there are fewer nodes than items.
+     */
+    void subscribe(List<NodeId> nodes) throws Exception {
+        int items = scenario.getItemsPerSession();
+        if (items <= 0 || nodes.isEmpty()) return;
+
+        UaSubscription subscription = client.getSubscriptionManager()
+            .createSubscription(scenario.getPublishingInterval()).get();
+
+        List<MonitoredItemCreateRequest> requests = new ArrayList<>(items);
+        for (int j = 0; j < items; j++) {
+            NodeId nodeId = nodes.get((index * items + j) % nodes.size());
+            ReadValueId readValueId = new ReadValueId(nodeId, AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+            MonitoringParameters parameters = new MonitoringParameters(
+                uint(j), scenario.getSamplingInterval(), null, uint(scenario.getQueueSize()), true);
+            requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+        }
+
+        List<UaMonitoredItem> created = subscription.createMonitoredItems(TimestampsToReturn.Both, requests).get();
+        int failed = 0;
+        for (UaMonitoredItem item : created) {
+            if (item.getStatusCode().isGood()) {
+                item.setValueConsumer(statistics::recordNotification);
+                // at most one notification per sample, and at most a queue full per publishing interval
+                double interval = Math.max(item.getRevisedSamplingInterval(),
+                    subscription.getRevisedPublishingInterval() / Math.max(1, item.getRevisedQueueSize().intValue()));
+                if (interval > 0) statistics.expectedNotificationRate.add(1000.0 / interval);
+            } else {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            logger.warn("Session {}: {} of {} monitored items could not be created", index, failed, items);
+        }
+    }
+
+    /**
+     * Starts sending reads and writes on the given executor
+     */
+    void start(ScheduledExecutorService executor, List<NodeId> readNodes, List<NodeId> writeNodes, long startDelayNanos)
+        throws Exception {
+        if (!writeNodes.isEmpty()) {
+            List<DataValue> values = client.readValues(0.0, TimestampsToReturn.Neither, writeNodes).get();
+            for (int i = 0; i < writeNodes.size(); i++) {
+                Object value = values.get(i).getValue().getValue();
+                if (value != null) writeTypes.put(writeNodes.get(i), value.getClass());
+            }
+        }
+        if (scenario.getReadsPerSecond() > 0 && !readNodes.isEmpty()) {
+            long period = (long) (TimeUnit.SECONDS.toNanos(1) / scenario.getReadsPerSecond());
+            tasks.add(executor.scheduleAtFixedRate(() -> read(readNodes),
+                startDelayNanos % period, period, TimeUnit.NANOSECONDS));
+        }
+        if (scenario.getWritesPerSecond() > 0 && !writeNodes.isEmpty()) {
+            long period = (long) (TimeUnit.SECONDS.toNanos(1) / scenario.getWritesPerSecond());
+            tasks.add(executor.scheduleAtFixedRate(() -> write(writeNodes),
+                startDelayNanos % period, period, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private boolean acquire() {
+        if (inFlight.incrementAndGet() > scenario.getMaxInFlight()) {
+            inFlight.decrementAndGet();
+            statistics.skipped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void read(List<NodeId> nodes) {
+        try {
+            if (!acquire()) return;
+            int batch = Math.min(scenario.getReadBatch(), nodes.size());
+            List<NodeId> nodeIds = new ArrayList<>(batch);
+            for (int i = 0; i < batch; i++) {
+                nodeIds.add(nodes.get(nextRead));
+                nextRead = (nextRead + 1) % nodes.size();
+            }
+            long start = System.nanoTime();
+            client.readValues(0.0, TimestampsToReturn.Neither, nodeIds).whenComplete((values, ex) -> {
+                inFlight.decrementAndGet();
+                boolean ok = ex == null && values.stream().allMatch(v -> v.getStatusCode().isGood());
+                statistics.recordRead(start, nodeIds.size(), ok);
+            });
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.warn("Read failed", t);
+        }
+    }
+
+    private void write(List<NodeId> nodes) {
+        try {
+            if (!acquire()) return;
+            NodeId nodeId = nodes.get(nextWrite);
+            nextWrite = (nextWrite + 1) % nodes.size();
+            // a new value each time, so that the server's subscribers are notified
+            WriteValue writeValue = new WriteValue(nodeId, AttributeId.Value.uid(), null,
+                new DataValue(new Variant(value(nodeId)), null, null));
+            long start = System.nanoTime();
+            client.write(Collections.singletonList(writeValue)).whenComplete((response, ex) -> {
+                inFlight.decrementAndGet();
+                boolean ok = ex == null && response.getResults()[0].isGood();
+                statistics.recordWrite(start, ok);
+            });
+        } catch (Throwable t) {
+            // an exception would cancel the scheduled task
+            logger.warn("Write failed", t);
+        }
+    }
+
+    // A value of the node's type that differs from the previous one (the write nodes are expected to be scalars)
+    private Object value(NodeId nodeId) {
+        int n = ++writeCounter;
+        Class<?> type = writeTypes.getOrDefault(nodeId, Integer.class);
+        if (type == Double.class) return (double) n;
+        if (type == Float.class) return (float) n;
+        if (type == Long.class) return (long) n;
+        if (type == Short.class) return (short) n;
+        if (type == Byte.class) return (byte) n;
+        if (type == Boolean.class) return n % 2 == 0;
+        if (type == String.class) return Integer.toString(n);
+        // Milo's classes for the unsigned types (wrapping around at their maximum)
+        if (type == UByte.class) return ubyte(n & 0xff);
+        if (type == UShort.class) return ushort(n & 0xffff);
+        if (type == UInteger.class) return uint(n & 0xffffffffL);
+        if (type == ULong.class) return ulong(n & 0xffffffffL);
+        return n;
+    }
+
+    /**
+     * Stops sending requests (outstanding ones still complete)
+     */
+    void stop() {
+        for (ScheduledFuture<?> task : tasks) task.cancel(false);
+        tasks.clear();
+    }
+
+    void disconnect() {
+        try {
+            client.disconnect().get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("Session {}: disconnect failed ({})", index, e.toString());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package csw.opc.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histograms of a scenario, shared by all its sessions.
+ * reset() is called at the end of the warmup, so that only the measurement counts.
+ */
+class LoadStatistics {
+
+    private static final long MAX_LATENCY_US = TimeUnit.SECONDS.toMicros(60);
+    private static final long MAX_LAG_MS = TimeUnit.SECONDS.toMillis(60);
+
+    final LongAdder reads = new LongAdder();
+    final LongAdder readOperations = new LongAdder();
+    final LongAdder readErrors = new LongAdder();
+    final Recorder readLatency = new Recorder(1, MAX_LATENCY_US, 3);
+
+    final LongAdder writes = new LongAdder();
+    final LongAdder writeErrors = new LongAdder();
+    final Recorder writeLatency = new Recorder(1, MAX_LATENCY_US, 3);
+
+    // Requests not sent because max-in-flight requests were unanswered
+    final LongAdder skipped = new LongAdder();
+
+    final LongAdder notifications = new LongAdder();
+    final LongAdder overflows = new LongAdder();
+    final Recorder notificationLag = new Recorder(1, MAX_LAG_MS, 2);
+
+    // The notifications expected per second (one per revised sampling interval and item)
+    final DoubleAdder expectedNotificationRate = new DoubleAdder();
+
+    void recordRead(long startNanos, int operations, boolean ok) {
+        reads.increment();
+        readOperations.add(operations);
+        if (!ok) readErrors.increment();
+        readLatency.recordValue(micros(startNanos));
+    }
+
+    void recordWrite(long startNanos, boolean ok) {
+        writes.increment();
+        if (!ok) writeErrors.increment();
+        writeLatency.recordValue(micros(startNanos));
+    }
+
+    void recordNotification(DataValue value) {
+        notifications.increment();
+        if (value.getStatusCode() != null && value.getStatusCode().isOverflowSet()) overflows.increment();
+        DateTime sourceTime = value.getSourceTime();
+        if (sourceTime != null && sourceTime.getUtcTime() != 0) {
+            long lag = System.currentTimeMillis() - sourceTime.getJavaTime();
+            notificationLag.recordValue(Math.min(MAX_LAG_MS, Math.max(0, lag)));
+        }
+    }
+
+    private static long micros(long startNanos) {
+        return Math.min(MAX_LATENCY_US, Math.max(0, (System.nanoTime() - startNanos) / 1000));
+    }
+
+    /**
+     * Clears the counters and histograms (but not the expected notification rate)
+     */
+    void reset() {
+        reads.reset();
+        readOperations.reset();
+        readErrors.reset();
+        readLatency.reset();
+        writes.reset();
+        writeErrors.reset();
+        writeLatency.reset();
+        skipped.reset();
+        notifications.reset();
+        overflows.reset();
+        notificationLag.reset();
+    }
+
+    static Histogram histogram(Recorder recorder) {
+        return recorder.getIntervalHistogram();
+    }
+}
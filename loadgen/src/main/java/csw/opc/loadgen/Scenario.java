@@ -0,0 +1,148 @@
+package csw.opc.loadgen;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The settings of one load scenario (see reference.conf for their meaning and defaults)
+ */
+public class Scenario {
+
+    // A range in a browse path, like "PLC1/Tags/Sensor{0-999}"
+    private static final Pattern RANGE = Pattern.compile("\\{(\\d+)-(\\d+)}");
+
+    private final String name;
+    private final int sessions;
+    private final int itemsPerSession;
+    private final double publishingInterval;
+    private final double samplingInterval;
+    private final int queueSize;
+    private final double readsPerSecond;
+    private final int readBatch;
+    private final double writesPerSecond;
+    private final int maxInFlight;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final List<String> monitoredNodes;
+    private final List<String> readNodes;
+    private final List<String> writeNodes;
+
+    /**
+     * @param config the scenario's settings, with the scenario defaults as fallback
+     */
+    public Scenario(Config config) {
+        this.name = config.getString("name");
+        this.sessions = config.getInt("sessions");
+        this.itemsPerSession = config.getInt("items-per-session");
+        this.publishingInterval = config.getDuration("publishing-interval", TimeUnit.MILLISECONDS);
+        this.samplingInterval = config.getDuration("sampling-interval", TimeUnit.MILLISECONDS);
+        this.queueSize = config.getInt("queue-size");
+        this.readsPerSecond = config.getDouble("reads-per-second");
+        this.readBatch = Math.max(1, config.getInt("read-batch"));
+        this.writesPerSecond = config.getDouble("writes-per-second");
+        this.maxInFlight = config.getInt("max-in-flight");
+        this.warmupMillis = config.getDuration("warmup", TimeUnit.MILLISECONDS);
+        this.durationMillis = config.getDuration("duration", TimeUnit.MILLISECONDS);
+        this.monitoredNodes = expand(config.getStringList("monitored-nodes"));
+        this.readNodes = expand(config.getStringList("read-nodes"));
+        this.writeNodes = expand(config.getStringList("write-nodes"));
+    }
+
+    // Expands the ranges in the browse paths
+    static List<String> expand(List<String> paths) {
+        List<String> result = new ArrayList<>();
+        for (String path : paths) {
+            Matcher m = RANGE.matcher(path);
+            if (m.find()) {
+                int from = Integer.parseInt(m.group(1));
+                int to = Integer.parseInt(m.group(2));
+                for (int i = from; i <= to; i++) {
+                    result.addAll(expand(Collections.singletonList(
+                        path.substring(0, m.start()) + i + path.substring(m.end()))));
+                }
+            } else {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public int getItemsPerSession() {
+        return itemsPerSession;
+    }
+
+    public double getPublishingInterval() {
+        return publishingInterval;
+    }
+
+    public double getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Read requests per second and session
+     */
+    public double getReadsPerSecond() {
+        return readsPerSecond;
+    }
+
+    /**
+     * Nodes per read request
+     */
+    public int getReadBatch() {
+        return readBatch;
+    }
+
+    /**
+     * Write requests (of one node) per second and session
+     */
+    public double getWritesPerSecond() {
+        return writesPerSecond;
+    }
+
+    /**
+     * The maximum number of unanswered read and write requests per session; requests due while
+     * the limit is reached are skipped and counted
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getWarmupMillis() {
+        return warmupMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public List<String> getMonitoredNodes() {
+        return monitoredNodes;
+    }
+
+    public List<String> getReadNodes() {
+        return readNodes;
+    }
+
+    public List<String> getWriteNodes() {
+        return writeNodes;
+    }
+}
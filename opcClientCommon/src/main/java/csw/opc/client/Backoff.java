@@ -0,0 +1,54 @@
+package csw.opc.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered exponential backoff for connection retries: the delay doubles after each failed attempt, up to a
+ * maximum, and a random part of it is taken off so that clients that lost the same server don't all retry
+ * at the same moment. Not thread safe (it is meant to be used by one actor).
+ */
+public class Backoff {
+
+    private final long minMillis;
+    private final long maxMillis;
+    private final double jitter;
+    private int attempts = 0;
+
+    /**
+     * @param minMillis the delay after the first failure (ms)
+     * @param maxMillis the longest delay (ms)
+     * @param jitter    the part of the delay that is random, from 0 (none) to 1 (anything from 0 to the delay)
+     */
+    public Backoff(long minMillis, long maxMillis, double jitter) {
+        if (minMillis <= 0 || maxMillis < minMillis) throw new IllegalArgumentException("Need 0 < min <= max");
+        if (jitter < 0 || jitter > 1) throw new IllegalArgumentException("Jitter must be 0 - 1");
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the delay before the next attempt (ms) and counts the failed attempt
+     */
+    public long nextDelayMillis() {
+        long delay = minMillis;
+        for (int i = 0; i < attempts && delay < maxMillis; i++) delay *= 2;
+        delay = Math.min(delay, maxMillis);
+        attempts++;
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * The number of failed attempts since the last reset
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Called after a successful attempt, so that the next failure starts with the minimum delay again
+     */
+    public void reset() {
+        attempts = 0;
+    }
+}
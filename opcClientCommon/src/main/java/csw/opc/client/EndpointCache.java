@@ -0,0 +1,228 @@
+package csw.opc.client;
+
+import org.eclipse.milo.opcua.stack.client.UaTcpStackClient;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.ApplicationType;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MessageSecurityMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.UserTokenType;
+import org.eclipse.milo.opcua.stack.core.types.structured.ApplicationDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.UserTokenPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+
+/**
+ * Keeps the endpoint selected for each server URL and security policy, so that connecting (and
+ * connecting again after an outage) opens the session directly instead of first asking the server
+ * for its endpoints with a GetEndpoints request on a separate connection.
+ * <p>
+ * The endpoints can also be kept in a properties file, so that they survive a restart.
+ * A cached endpoint is only replaced when connecting with it fails and the server then returns a
+ * different endpoint (a new URL, security mode or server certificate).
+ */
+public class EndpointCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EndpointCache.class);
+
+    // Endpoints by cache key (guarded by the class)
+    private static final Map<String, EndpointDescription> endpoints = new HashMap<>();
+
+    // Cache files already read into endpoints (guarded by the class)
+    private static final Set<File> loadedFiles = new HashSet<>();
+
+    private EndpointCache() {
+    }
+
+    /**
+     * Returns the cached endpoint for the given server URL and security policy, if any
+     *
+     * @param cacheFile file where the endpoints are kept between runs, if any
+     */
+    public static synchronized Optional<EndpointDescription> get(String endpointUrl, SecurityPolicy securityPolicy,
+                                                                 Optional<File> cacheFile) {
+        cacheFile.ifPresent(EndpointCache::loadOnce);
+        return Optional.ofNullable(endpoints.get(key(endpointUrl, securityPolicy)));
+    }
+
+    /**
+     * Asks the server for its endpoints, selects the one with the given security policy and caches it
+     * (replacing the cached one, if any)
+     *
+     * @param cacheFile file where the endpoints are kept between runs, if any
+     * @return a future holding the selected endpoint, which fails if the server has none with the security policy
+     */
+    public static CompletableFuture<EndpointDescription> discover(String endpointUrl, SecurityPolicy securityPolicy,
+                                                                  Optional<File> cacheFile) {
+        return UaTcpStackClient.getEndpoints(endpointUrl).thenApply(all -> {
+            EndpointDescription endpoint = Arrays.stream(all)
+                    .filter(e -> e.getSecurityPolicyUri().equals(securityPolicy.getSecurityPolicyUri()))
+                    .findFirst().orElseThrow(() -> new IllegalStateException("no desired endpoints returned"));
+
+            put(endpointUrl, securityPolicy, endpoint, cacheFile);
+            return endpoint;
+        });
+    }
+
+    /**
+     * Returns true if a session opened with one endpoint could equally be opened with the other:
+     * the URL, security and server certificate are the same
+     */
+    public static boolean sameEndpoint(EndpointDescription a, EndpointDescription b) {
+        return Objects.equals(a.getEndpointUrl(), b.getEndpointUrl())
+                && Objects.equals(a.getSecurityPolicyUri(), b.getSecurityPolicyUri())
+                && a.getSecurityMode() == b.getSecurityMode()
+                && Arrays.equals(bytes(a.getServerCertificate()), bytes(b.getServerCertificate()));
+    }
+
+    private static synchronized void put(String endpointUrl, SecurityPolicy securityPolicy,
+                                         EndpointDescription endpoint, Optional<File> cacheFile) {
+        String key = key(endpointUrl, securityPolicy);
+        EndpointDescription previous = endpoints.put(key, endpoint);
+
+        if (previous == null || !sameEndpoint(previous, endpoint)) {
+            logger.info("Cached endpoint {} for {}", endpoint.getEndpointUrl(), key);
+            cacheFile.ifPresent(file -> save(file, key, endpoint));
+        }
+    }
+
+    private static String key(String endpointUrl, SecurityPolicy securityPolicy) {
+        return endpointUrl + " [" + securityPolicy + "]";
+    }
+
+    // Must be called with the class lock held
+    private static void loadOnce(File file) {
+        if (!loadedFiles.add(file) || !file.exists()) return;
+
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        } catch (IOException ex) {
+            logger.warn("Could not read endpoint cache file {}: {}", file, ex.getMessage());
+            return;
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".endpointUrl")) continue;
+            String key = name.substring(0, name.length() - ".endpointUrl".length());
+            try {
+                endpoints.putIfAbsent(key, read(properties, key + "."));
+            } catch (RuntimeException ex) {
+                logger.warn("Ignoring cached endpoint for {} in {}: {}", key, file, ex.toString());
+            }
+        }
+    }
+
+    // Replaces the entry for the given key in the file, keeping the others
+    private static void save(File file, String key, EndpointDescription endpoint) {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (Reader reader = new FileReader(file)) {
+                properties.load(reader);
+            } catch (IOException ex) {
+                logger.warn("Could not read endpoint cache file {}: {}", file, ex.getMessage());
+            }
+        }
+        properties.stringPropertyNames().stream()
+                .filter(name -> name.startsWith(key + "."))
+                .forEach(properties::remove);
+        write(properties, key + ".", endpoint);
+
+        try (Writer writer = new FileWriter(file)) {
+            properties.store(writer, "Endpoints selected by " + EndpointCache.class.getName());
+        } catch (IOException ex) {
+            logger.warn("Could not write endpoint cache file {}: {}", file, ex.getMessage());
+        }
+    }
+
+    // Stores the fields of the endpoint that the client needs to open a session
+    private static void write(Properties properties, String prefix, EndpointDescription endpoint) {
+        ApplicationDescription server = endpoint.getServer();
+
+        properties.setProperty(prefix + "endpointUrl", endpoint.getEndpointUrl());
+        properties.setProperty(prefix + "serverCertificate", Base64.getEncoder().encodeToString(bytes(endpoint.getServerCertificate())));
+        properties.setProperty(prefix + "securityMode", String.valueOf(endpoint.getSecurityMode().getValue()));
+        properties.setProperty(prefix + "securityPolicyUri", endpoint.getSecurityPolicyUri());
+        properties.setProperty(prefix + "transportProfileUri", nonNull(endpoint.getTransportProfileUri()));
+        properties.setProperty(prefix + "securityLevel", String.valueOf(endpoint.getSecurityLevel().intValue()));
+
+        properties.setProperty(prefix + "server.applicationUri", nonNull(server.getApplicationUri()));
+        properties.setProperty(prefix + "server.productUri", nonNull(server.getProductUri()));
+        properties.setProperty(prefix + "server.applicationName",
+                server.getApplicationName() != null ? nonNull(server.getApplicationName().getText()) : "");
+        properties.setProperty(prefix + "server.applicationType", String.valueOf(server.getApplicationType().getValue()));
+
+        UserTokenPolicy[] tokens = endpoint.getUserIdentityTokens() != null
+                ? endpoint.getUserIdentityTokens() : new UserTokenPolicy[0];
+        properties.setProperty(prefix + "userTokens", String.valueOf(tokens.length));
+        for (int i = 0; i < tokens.length; i++) {
+            String p = prefix + "userToken." + i + ".";
+            properties.setProperty(p + "policyId", nonNull(tokens[i].getPolicyId()));
+            properties.setProperty(p + "tokenType", String.valueOf(tokens[i].getTokenType().getValue()));
+            properties.setProperty(p + "securityPolicyUri", nonNull(tokens[i].getSecurityPolicyUri()));
+        }
+    }
+
+    private static EndpointDescription read(Properties properties, String prefix) {
+        ApplicationDescription server = new ApplicationDescription(
+                properties.getProperty(prefix + "server.applicationUri"),
+                properties.getProperty(prefix + "server.productUri"),
+                LocalizedText.english(properties.getProperty(prefix + "server.applicationName")),
+                ApplicationType.from(Integer.parseInt(properties.getProperty(prefix + "server.applicationType"))),
+                null, null, new String[0]);
+
+        UserTokenPolicy[] tokens = new UserTokenPolicy[Integer.parseInt(properties.getProperty(prefix + "userTokens"))];
+        for (int i = 0; i < tokens.length; i++) {
+            String p = prefix + "userToken." + i + ".";
+            tokens[i] = new UserTokenPolicy(
+                    properties.getProperty(p + "policyId"),
+                    UserTokenType.from(Integer.parseInt(properties.getProperty(p + "tokenType"))),
+                    null, null,
+                    emptyToNull(properties.getProperty(p + "securityPolicyUri")));
+        }
+
+        byte[] certificate = Base64.getDecoder().decode(properties.getProperty(prefix + "serverCertificate"));
+
+        return new EndpointDescription(
+                properties.getProperty(prefix + "endpointUrl"),
+                server,
+                certificate.length > 0 ? ByteString.of(certificate) : ByteString.NULL_VALUE,
+                MessageSecurityMode.from(Integer.parseInt(properties.getProperty(prefix + "securityMode"))),
+                properties.getProperty(prefix + "securityPolicyUri"),
+                tokens,
+                properties.getProperty(prefix + "transportProfileUri"),
+                ubyte(Integer.parseInt(properties.getProperty(prefix + "securityLevel"))));
+    }
+
+    private static byte[] bytes(ByteString bs) {
+        return bs == null || bs.isNull() ? new byte[0] : bs.bytes();
+    }
+
+    private static String nonNull(String s) {
+        return s != null ? s : "";
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+}
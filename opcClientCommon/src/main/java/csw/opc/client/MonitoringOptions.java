@@ -0,0 +1,143 @@
+package csw.opc.client;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DataChangeTrigger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.eclipse.milo.opcua.stack.core.types.structured.DataChangeFilter;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * The monitoring parameters of monitored items: sampling interval, queue, and the data change filter
+ * (trigger and deadband). Use builder() to create one.
+ * <p>
+ * With an absolute deadband, a new value is only reported if it differs from the last reported value by more
+ * than the deadband; with a percent deadband, by more than that percentage of the variable's EURange.
+ * Status changes are always reported. The deadband applies to numeric variables (and each element of arrays).
+ */
+public class MonitoringOptions {
+
+    // Defaults of the items
+    public static final double DEFAULT_SAMPLING_INTERVAL = 1000.0;
+    public static final int DEFAULT_QUEUE_SIZE = 10;
+
+    private final double samplingInterval;
+    private final int queueSize;
+    private final boolean discardOldest;
+    private final DataChangeTrigger trigger;
+    private final DeadbandType deadbandType;
+    private final double deadbandValue;
+
+    private MonitoringOptions(Builder builder) {
+        this.samplingInterval = builder.samplingInterval;
+        this.queueSize = builder.queueSize;
+        this.discardOldest = builder.discardOldest;
+        this.trigger = builder.trigger;
+        this.deadbandType = builder.deadbandType;
+        this.deadbandValue = builder.deadbandValue;
+    }
+
+    /**
+     * The requested sampling interval (ms); the server may revise it
+     */
+    public double getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    /**
+     * The number of values the server keeps for an item between publishing intervals
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Whether the oldest (or else the newest) value is dropped when the queue is full
+     */
+    public boolean isDiscardOldest() {
+        return discardOldest;
+    }
+
+    /**
+     * Which changes are reported: Status, StatusValue (the default) or StatusValueTimestamp
+     */
+    public DataChangeTrigger getTrigger() {
+        return trigger;
+    }
+
+    public DeadbandType getDeadbandType() {
+        return deadbandType;
+    }
+
+    /**
+     * The absolute deadband, or the percentage of the EURange for a percent deadband
+     */
+    public double getDeadbandValue() {
+        return deadbandValue;
+    }
+
+    /**
+     * The data change filter to send with the monitoring parameters, or null for the server's default
+     * (trigger StatusValue, no deadband)
+     */
+    public ExtensionObject filter() {
+        if (trigger == DataChangeTrigger.StatusValue && deadbandType == DeadbandType.None) return null;
+        return ExtensionObject.encode(new DataChangeFilter(trigger, uint(deadbandType.getValue()), deadbandValue));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private double samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+        private int queueSize = DEFAULT_QUEUE_SIZE;
+        private boolean discardOldest = true;
+        private DataChangeTrigger trigger = DataChangeTrigger.StatusValue;
+        private DeadbandType deadbandType = DeadbandType.None;
+        private double deadbandValue = 0.0;
+
+        public Builder setSamplingInterval(double samplingInterval) {
+            this.samplingInterval = samplingInterval;
+            return this;
+        }
+
+        public Builder setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        public Builder setDiscardOldest(boolean discardOldest) {
+            this.discardOldest = discardOldest;
+            return this;
+        }
+
+        public Builder setTrigger(DataChangeTrigger trigger) {
+            this.trigger = trigger;
+            return this;
+        }
+
+        /**
+         * Reports only changes by more than the given amount
+         */
+        public Builder setAbsoluteDeadband(double deadband) {
+            this.deadbandType = DeadbandType.Absolute;
+            this.deadbandValue = deadband;
+            return this;
+        }
+
+        /**
+         * Reports only changes by more than the given percentage (0 - 100) of the variable's EURange
+         */
+        public Builder setPercentDeadband(double percent) {
+            if (percent < 0 || percent > 100) throw new IllegalArgumentException("Percent deadband must be 0 - 100");
+            this.deadbandType = DeadbandType.Percent;
+            this.deadbandValue = percent;
+            return this;
+        }
+
+        public MonitoringOptions build() {
+            return new MonitoringOptions(this);
+        }
+    }
+}
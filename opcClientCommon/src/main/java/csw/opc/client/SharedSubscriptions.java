@@ -0,0 +1,260 @@
+package csw.opc.client;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscriptionManager;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import com.google.common.collect.ImmutableList;
+import org.jooq.lambda.tuple.Tuple2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * Shares OPC UA subscriptions between monitored items: all items with the same publishing interval
+ * go into a single subscription, and notifications are dispatched to the item's consumer by client handle.
+ * <p>
+ * When the client reconnects, the stack transfers the subscriptions to the new session. If the server
+ * no longer has them (for example after a restart), they are created again with the same items.
+ */
+public class SharedSubscriptions {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicLong clientHandles = new AtomicLong(1L);
+    private final OpcUaClient client;
+    private final BiConsumer<NodeId, DataValue> notificationListener;
+
+    // One subscription per publishing interval
+    private final Map<Double, CompletableFuture<UaSubscription>> subscriptions = new ConcurrentHashMap<>();
+
+    // Value consumers, by monitored item client handle
+    private final Map<UInteger, Consumer<DataValue>> consumers = new ConcurrentHashMap<>();
+
+    // The requests of the items created in each subscription, to create them again if the subscription is lost
+    private final Map<Double, List<MonitoredItemCreateRequest>> createdItems = new ConcurrentHashMap<>();
+
+    private final UaSubscription.NotificationListener dispatcher = new UaSubscription.NotificationListener() {
+        @Override
+        public void onDataChangeNotification(UaSubscription subscription,
+                                             ImmutableList<Tuple2<UaMonitoredItem, DataValue>> itemValues,
+                                             DateTime publishTime) {
+            for (Tuple2<UaMonitoredItem, DataValue> itemValue : itemValues) {
+                notificationListener.accept(itemValue.v1().getReadValueId().getNodeId(), itemValue.v2());
+                Consumer<DataValue> consumer = consumers.get(itemValue.v1().getClientHandle());
+                if (consumer != null) consumer.accept(itemValue.v2());
+            }
+        }
+    };
+
+    public SharedSubscriptions(OpcUaClient client) {
+        this(client, (nodeId, value) -> {
+        });
+    }
+
+    /**
+     * @param notificationListener called with the node and value of every notification received (like for metrics)
+     */
+    public SharedSubscriptions(OpcUaClient client, BiConsumer<NodeId, DataValue> notificationListener) {
+        this.client = client;
+        this.notificationListener = notificationListener;
+        client.getSubscriptionManager().addSubscriptionListener(new UaSubscriptionManager.SubscriptionListener() {
+            @Override
+            public void onSubscriptionTransferFailed(UaSubscription subscription, StatusCode statusCode) {
+                restore(subscription, statusCode);
+            }
+        });
+    }
+
+    /**
+     * Creates monitored items for the given nodes with a single CreateMonitoredItems request,
+     * in the shared subscription for the given publishing interval, with default queue and filter.
+     *
+     * @param items              maps the nodes to monitor to the consumers of their value changes
+     * @param publishingInterval the publishing interval of the subscription to use (ms)
+     * @param samplingInterval   the sampling interval of the new items (ms)
+     * @return a future holding the created items, in the iteration order of items
+     */
+    public CompletableFuture<List<UaMonitoredItem>> subscribe(Map<NodeId, Consumer<DataValue>> items,
+                                                              double publishingInterval,
+                                                              double samplingInterval) {
+        return subscribe(items, publishingInterval,
+                MonitoringOptions.builder().setSamplingInterval(samplingInterval).build());
+    }
+
+    /**
+     * Creates monitored items for the given nodes with a single CreateMonitoredItems request,
+     * in the shared subscription for the given publishing interval.
+     *
+     * @param items              maps the nodes to monitor to the consumers of their value changes
+     * @param publishingInterval the publishing interval of the subscription to use (ms)
+     * @param options            the sampling interval, queue and data change filter of the new items
+     * @return a future holding the created items, in the iteration order of items
+     */
+    public CompletableFuture<List<UaMonitoredItem>> subscribe(Map<NodeId, Consumer<DataValue>> items,
+                                                              double publishingInterval,
+                                                              MonitoringOptions options) {
+        List<MonitoredItemCreateRequest> requests = new ArrayList<>(items.size());
+
+        for (Map.Entry<NodeId, Consumer<DataValue>> entry : items.entrySet()) {
+            ReadValueId readValueId = new ReadValueId(entry.getKey(),
+                    AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+
+            // client handle must be unique per item
+            UInteger clientHandle = uint(clientHandles.getAndIncrement());
+            consumers.put(clientHandle, entry.getValue());
+
+            MonitoringParameters parameters = new MonitoringParameters(
+                    clientHandle,
+                    options.getSamplingInterval(),
+                    options.filter(),   // null means use default
+                    uint(options.getQueueSize()),
+                    options.isDiscardOldest());
+
+            requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+        }
+
+        return subscription(publishingInterval)
+                .thenCompose(s -> s.createMonitoredItems(TimestampsToReturn.Both, requests))
+                .thenApply(created -> {
+                    List<MonitoredItemCreateRequest> restorable = createdItems.computeIfAbsent(
+                            publishingInterval, k -> new CopyOnWriteArrayList<>());
+                    for (int i = 0; i < created.size(); i++) {
+                        UaMonitoredItem item = created.get(i);
+                        if (item.getStatusCode().isGood()) {
+                            restorable.add(requests.get(i));
+                            logger.info("item created for nodeId={}", item.getReadValueId().getNodeId());
+                        } else {
+                            consumers.remove(item.getClientHandle());
+                            logger.warn(
+                                    "failed to create item for nodeId={} (status={})",
+                                    item.getReadValueId().getNodeId(), item.getStatusCode());
+                        }
+                    }
+                    return created;
+                })
+                .whenComplete((created, ex) -> {
+                    // no items were created: forget their consumers
+                    if (ex != null) {
+                        for (MonitoredItemCreateRequest request : requests) {
+                            consumers.remove(request.getRequestedParameters().getClientHandle());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Deletes monitored items created by subscribe(), so that their consumers are no longer called
+     * and they are not created again when a subscription is restored.
+     *
+     * @param items the items returned by subscribe() (items that could not be created are ignored)
+     * @return a future that completes when the server deleted the items
+     */
+    public CompletableFuture<Void> unsubscribe(List<UaMonitoredItem> items) {
+        Set<UInteger> clientHandles = new HashSet<>();
+        for (UaMonitoredItem item : items) {
+            clientHandles.add(item.getClientHandle());
+            consumers.remove(item.getClientHandle());
+        }
+        for (List<MonitoredItemCreateRequest> requests : createdItems.values()) {
+            requests.removeIf(r -> clientHandles.contains(r.getRequestedParameters().getClientHandle()));
+        }
+
+        // Look the items up by client handle: a restored subscription has new item objects with the same handles
+        List<CompletableFuture<List<StatusCode>>> deleted = new ArrayList<>();
+        for (CompletableFuture<UaSubscription> f : subscriptions.values()) {
+            UaSubscription subscription = f.getNow(null);
+            if (subscription == null) continue;
+
+            List<UaMonitoredItem> toDelete = new ArrayList<>();
+            for (UaMonitoredItem item : subscription.getMonitoredItems()) {
+                if (clientHandles.contains(item.getClientHandle())) toDelete.add(item);
+            }
+            if (!toDelete.isEmpty()) deleted.add(subscription.deleteMonitoredItems(toDelete));
+        }
+        return CompletableFuture.allOf(deleted.toArray(new CompletableFuture<?>[deleted.size()]));
+    }
+
+    // Creates a subscription that could not be transferred to a new session again, with the same items
+    // (and client handles, so the consumers stay the same)
+    private void restore(UaSubscription lost, StatusCode statusCode) {
+        for (Map.Entry<Double, CompletableFuture<UaSubscription>> entry : subscriptions.entrySet()) {
+            if (entry.getValue().getNow(null) != lost) continue;
+
+            double publishingInterval = entry.getKey();
+            subscriptions.remove(publishingInterval, entry.getValue());
+            List<MonitoredItemCreateRequest> requests =
+                    new ArrayList<>(createdItems.getOrDefault(publishingInterval, Collections.emptyList()));
+            logger.warn("Subscription {} was not transferred to the new session ({}), creating it again with {} items",
+                    lost.getSubscriptionId(), statusCode, requests.size());
+            if (requests.isEmpty()) return;
+
+            subscription(publishingInterval)
+                    .thenCompose(s -> s.createMonitoredItems(TimestampsToReturn.Both, requests))
+                    .whenComplete((created, ex) -> {
+                        if (ex != null) {
+                            logger.error("Failed to restore the items of the subscription with publishing interval {} ms",
+                                    publishingInterval, ex);
+                            return;
+                        }
+                        for (UaMonitoredItem item : created) {
+                            if (!item.getStatusCode().isGood()) {
+                                logger.warn("failed to restore item for nodeId={} (status={})",
+                                        item.getReadValueId().getNodeId(), item.getStatusCode());
+                            }
+                        }
+                    });
+            return;
+        }
+    }
+
+    // Returns the subscription for the given publishing interval, creating it on first use
+    private CompletableFuture<UaSubscription> subscription(double publishingInterval) {
+        CompletableFuture<UaSubscription> f = subscriptions.get(publishingInterval);
+        if (f != null) return f;
+
+        CompletableFuture<UaSubscription> created = new CompletableFuture<>();
+        f = subscriptions.putIfAbsent(publishingInterval, created);
+        if (f != null) return f;
+
+        client.getSubscriptionManager().createSubscription(publishingInterval).whenComplete((subscription, ex) -> {
+            if (subscription != null) {
+                // add the listener before any items are created
+                subscription.addNotificationListener(dispatcher);
+                logger.info("Created subscription with publishing interval {} ms", publishingInterval);
+                created.complete(subscription);
+            } else {
+                // forget the failed attempt so that the next call tries again
+                subscriptions.remove(publishingInterval, created);
+                created.completeExceptionally(ex);
+            }
+        });
+
+        return created;
+    }
+}
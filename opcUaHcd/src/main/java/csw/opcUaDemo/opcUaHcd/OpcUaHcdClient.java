@@ -3,71 +3,154 @@ package csw.opcUaDemo.opcUaHcd;
 import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
 import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
 import org.eclipse.milo.opcua.sdk.client.api.identity.AnonymousProvider;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
-import org.eclipse.milo.opcua.stack.client.UaTcpStackClient;
-import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
 import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
 import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
-import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
 import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
 import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
-import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
 import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
 import com.google.common.collect.ImmutableList;
+import csw.opc.client.EndpointCache;
+import csw.opc.client.MonitoringOptions;
+import csw.opc.client.SharedSubscriptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.BiConsumer;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
-import static com.google.common.collect.Lists.newArrayList;
 
 /**
  * Provides client access to HCD's OPC UA server
  */
 public class OpcUaHcdClient {
-//    private static final int NAMESPACE = 2;
-    private static final int NAMESPACE = 4;
+    // The namespace of the TwinCAT PLC's variables (its index is looked up on connect)
+    private static final String NAMESPACE_URI = "urn:BeckhoffAutomation:Ua:PLC1";
     private static final String NAMESPACE_PREFIX = "MAIN.";
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final KeyStoreLoader loader = new KeyStoreLoader();
-    private final AtomicLong clientHandles = new AtomicLong(1L);
+    // The TwinCAT PLC's OPC UA server
+    private static final String ENDPOINT_URL = "opc.tcp://131.215.210.228:4840";
+    private static final SecurityPolicy SECURITY_POLICY = SecurityPolicy.None;
+
+    // Publishing interval of the subscription and sampling interval of the monitored items (ms)
+    private static final double PUBLISHING_INTERVAL = 1.0;
+    private static final double SAMPLING_INTERVAL = 1.0;
+    private static final MonitoringOptions DEFAULT_MONITORING_OPTIONS =
+            MonitoringOptions.builder().setSamplingInterval(SAMPLING_INTERVAL).build();
+
+    private static final Logger logger = LoggerFactory.getLogger(OpcUaHcdClient.class);
+
     private final OpcUaClient client;
+    private final SharedSubscriptions subscriptions;
+    private final int namespaceIndex;
 
+    /**
+     * Connects to the PLC, blocking the caller (see connect())
+     */
     public OpcUaHcdClient() throws Exception {
-        client = createClient();
-        // synchronous connect
-        client.connect().get();
+        this(await(connectClient()));
+    }
+
+    // Sets up a connected client (disconnects it if that fails)
+    private OpcUaHcdClient(OpcUaClient client) throws Exception {
+        this.client = client;
+        subscriptions = new SharedSubscriptions(client);
+        try {
+            namespaceIndex = readNamespaceIndex(NAMESPACE_URI);
+        } catch (Exception ex) {
+            client.disconnect();
+            throw ex;
+        }
+    }
+
+    /**
+     * Connects to the PLC without blocking the caller. If that fails, the returned future fails
+     * and the client is disconnected, so nothing needs to be cleaned up.
+     */
+    public static CompletableFuture<OpcUaHcdClient> connect() {
+        return connectClient().thenApplyAsync(client -> {
+            try {
+                return new OpcUaHcdClient(client);
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Closes the session with the PLC
+     */
+    public CompletableFuture<Void> disconnect() {
+        return client.disconnect().thenAccept(c -> logger.info("Disconnected from the PLC"));
+    }
+
+    // Opens a session with the cached endpoint, if there is one (see EndpointCache). If that fails, the PLC
+    // is asked for its endpoints again, and the connection is retried only if the endpoint has changed.
+    private static CompletableFuture<OpcUaClient> connectClient() {
+        Optional<EndpointDescription> cached = EndpointCache.get(ENDPOINT_URL, SECURITY_POLICY, Optional.empty());
+        if (!cached.isPresent()) {
+            return EndpointCache.discover(ENDPOINT_URL, SECURITY_POLICY, Optional.empty())
+                    .thenCompose(endpoint -> connectClient(endpoint));
+        }
+
+        return connectClient(cached.get()).handle((client, ex) -> {
+            if (ex == null) return CompletableFuture.completedFuture(client);
+
+            return EndpointCache.discover(ENDPOINT_URL, SECURITY_POLICY, Optional.empty()).handle((endpoint, ex2) -> {
+                if (endpoint == null || EndpointCache.sameEndpoint(endpoint, cached.get())) {
+                    // the PLC is down, or the endpoint was not the problem
+                    throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                }
+                logger.info("Endpoint of the PLC has changed, connecting again");
+                return connectClient(endpoint);
+            }).thenCompose(f -> f);
+        }).thenCompose(f -> f);
     }
 
-    private OpcUaClient createClient() throws Exception {
-        SecurityPolicy securityPolicy = SecurityPolicy.None;
+    // Opens a session with the given endpoint, disconnecting the client if the session can't be opened
+    private static CompletableFuture<OpcUaClient> connectClient(EndpointDescription endpoint) {
+        OpcUaClient client;
+        try {
+            client = createClient(endpoint);
+        } catch (Exception ex) {
+            CompletableFuture<OpcUaClient> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return client.connect().handle((c, ex) -> {
+            if (ex != null) {
+                // otherwise the stack keeps its channel and threads (and keeps trying to reconnect)
+                client.disconnect();
+                throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+            }
+            return client;
+        });
+    }
 
-        EndpointDescription[] endpoints = UaTcpStackClient.getEndpoints("opc.tcp://131.215.210.228:4840").get();
-        for (EndpointDescription e: endpoints)
-        {
-            logger.info("Endpoint URL: {}", e.getEndpointUrl());
+    // Waits for a future, throwing the cause of a failure
+    private static <T> T await(CompletableFuture<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
         }
-        EndpointDescription endpoint = Arrays.stream(endpoints)
-          .filter(e -> e.getSecurityPolicyUri().equals(securityPolicy.getSecurityPolicyUri()))
-          .findFirst().orElseThrow(() -> new Exception("no desired endpoints returned"));
+    }
 
-        logger.info("Using endpoint: {} [{}]", endpoint.getEndpointUrl(), securityPolicy);
+    private static OpcUaClient createClient(EndpointDescription endpoint) throws Exception {
+        logger.info("Using endpoint: {} [{}]", endpoint.getEndpointUrl(), SECURITY_POLICY);
 
+        KeyStoreLoader loader = new KeyStoreLoader();
         loader.load();
 
         OpcUaClientConfig config = OpcUaClientConfig.builder()
@@ -84,51 +167,54 @@ public class OpcUaHcdClient {
 
     }
 
+    // Returns the index of the given namespace URI in the server's NamespaceArray
+    private int readNamespaceIndex(String namespaceUri) throws Exception {
+        DataValue value = client.readValue(0.0, TimestampsToReturn.Neither, Identifiers.Server_NamespaceArray).get();
+        String[] namespaces = (String[]) value.getValue().getValue();
+
+        int index = namespaces == null ? -1 : Arrays.asList(namespaces).indexOf(namespaceUri);
+        if (index < 0) {
+            throw new Exception("Namespace " + namespaceUri + " not found on server (has "
+                    + Arrays.toString(namespaces) + ")");
+        }
+        logger.info("Namespace {} has index {}", namespaceUri, index);
+        return index;
+    }
+
     public void subscribe(String name, Consumer<DataValue> valueConsumer) throws Exception {
+        subscribe(name, DEFAULT_MONITORING_OPTIONS, valueConsumer);
+    }
 
-        // create a subscription and a monitored item
-        UaSubscription subscription = client.getSubscriptionManager().createSubscription(1.0).get();
+    /**
+     * Subscribes to a variable with the given sampling interval, queue and data change filter,
+     * for example a deadband, so that noise on an analog value is not reported
+     */
+    public void subscribe(String name, MonitoringOptions options, Consumer<DataValue> valueConsumer) throws Exception {
+        await(subscribeAsync(name, options, valueConsumer));
+    }
 
-//        NodeId nodeId = new NodeId(NAMESPACE, Hcd2Namespace.NAMESPACE_PREFIX + name);
-        NodeId nodeId = new NodeId(NAMESPACE, NAMESPACE_PREFIX + name);
-        logger.info("Subscribing to {}", nodeId.toString());
+    /**
+     * Subscribes to a variable with the default monitoring options, without blocking the caller
+     *
+     * @return a future that completes when the monitored item was created
+     */
+    public CompletableFuture<Void> subscribeAsync(String name, Consumer<DataValue> valueConsumer) {
+        return subscribeAsync(name, DEFAULT_MONITORING_OPTIONS, valueConsumer);
+    }
 
-        ReadValueId readValueId = new ReadValueId(nodeId,
-                AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
-
-        // client handle must be unique per item
-        UInteger clientHandle = uint(clientHandles.getAndIncrement());
-
-        MonitoringParameters parameters = new MonitoringParameters(
-                clientHandle,
-                1.0,     // sampling interval
-                null,       // filter, null means use default
-                uint(10),   // queue size
-                true);      // discard oldest
-
-        MonitoredItemCreateRequest request = new MonitoredItemCreateRequest(
-                readValueId, MonitoringMode.Reporting, parameters);
-
-        //. added this from example
-        //. https://github.com/eclipse/milo/blob/master/milo-examples/client-examples/src/main/java/org/eclipse/milo/examples/client/SubscriptionExample.java
-        BiConsumer<UaMonitoredItem, Integer> onItemCreated = (item, id) -> item.setValueConsumer(valueConsumer);
-        List<UaMonitoredItem> items = subscription
-                .createMonitoredItems(TimestampsToReturn.Both, newArrayList(request), onItemCreated).get();
-
-        // do something with the value updates
-     //   UaMonitoredItem item = items.get(0);
-     //   item.setValueConsumer(valueConsumer);
-
-        for (UaMonitoredItem item : items) {
-            if (item.getStatusCode().isGood()) {
-                logger.info("item created for nodeId={}", item.getReadValueId().getNodeId());
-            } else {
-                logger.warn(
-                        "failed to create item for nodeId={} (status={})",
-                        item.getReadValueId().getNodeId(), item.getStatusCode());
-            }
-        }
+    /**
+     * Subscribes to a variable with the given monitoring options, without blocking the caller
+     *
+     * @return a future that completes when the monitored item was created
+     */
+    public CompletableFuture<Void> subscribeAsync(String name, MonitoringOptions options, Consumer<DataValue> valueConsumer) {
+        NodeId nodeId = new NodeId(namespaceIndex, NAMESPACE_PREFIX + name);
+        logger.info("Subscribing to {}", nodeId.toString());
 
+        // the item goes into the shared subscription for this publishing interval
+        return subscriptions.subscribe(Collections.singletonMap(nodeId, valueConsumer), PUBLISHING_INTERVAL, options)
+                .thenAccept(created -> {
+                });
     }
 
     // XXX just set the value
@@ -138,7 +224,7 @@ public class OpcUaHcdClient {
         // don't write status or timestamps
         DataValue dv = new DataValue(v, null, null);
 
-        List<NodeId> nodeIds = ImmutableList.of(new NodeId(NAMESPACE, NAMESPACE_PREFIX + name));
+        List<NodeId> nodeIds = ImmutableList.of(new NodeId(namespaceIndex, NAMESPACE_PREFIX + name));
 
         // write asynchronously....
         CompletableFuture<List<StatusCode>> f = client.writeValues(nodeIds, ImmutableList.of(dv));
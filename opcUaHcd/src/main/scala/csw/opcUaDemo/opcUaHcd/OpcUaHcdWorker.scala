@@ -1,8 +1,11 @@
 package csw.opcUaDemo.opcUaHcd
 
+import java.util.concurrent.{CompletableFuture, TimeUnit}
 import java.util.function.Consumer
 
 import akka.actor._
+import com.typesafe.config.Config
+import csw.opc.client.Backoff
 import csw.services.log.PrefixedActorLogging
 import csw.util.config.Configurations._
 
@@ -12,6 +15,7 @@ import csw.util.config.StringKey
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue
 
 import scala.language.postfixOps
+import scala.util.control.NonFatal
 
 object OpcUaHcdWorker {
   def props(prefix: String): Props = Props(classOf[OpcUaHcdWorker], prefix)
@@ -21,6 +25,22 @@ object OpcUaHcdWorker {
 
   // Message requesting current state of HCD values
   case object RequestCurrentState
+
+  // The results of a connection attempt, sent to the worker itself by the attempt's future
+  private case class OpcConnected(client: OpcUaHcdClient)
+  private case class OpcConnectionFailed(client: Option[OpcUaHcdClient], ex: Throwable)
+
+  /**
+   * Returns the delays between attempts to connect to the OPC UA server (from the csw.opcUaDemo.opcUaHcd config section)
+   */
+  def connectBackoff(config: Config): Backoff = {
+    val c = config.getConfig("csw.opcUaDemo.opcUaHcd")
+    new Backoff(
+      c.getDuration("connect-backoff-min", TimeUnit.MILLISECONDS),
+      c.getDuration("connect-backoff-max", TimeUnit.MILLISECONDS),
+      c.getDouble("connect-backoff-jitter")
+    )
+  }
 }
 
 /**
@@ -35,6 +55,11 @@ class OpcUaHcdWorker(override val prefix: String) extends Actor with PrefixedAct
 
   private val name = prefix.split('.').last
   private val key = StringKey("CylceCounter")
+  private val backoff = connectBackoff(context.system.settings.config)
+
+  // The connected client, and the connection attempt whose result the worker has not received yet, if any
+  private var opcClientOpt: Option[OpcUaHcdClient] = None
+  private var pendingConnection: Option[CompletableFuture[OpcUaHcdClient]] = None
 
   // We can't do anything until the OPC UA server is available
   context.become(waitingForOpcUaServer)
@@ -42,11 +67,32 @@ class OpcUaHcdWorker(override val prefix: String) extends Actor with PrefixedAct
 
   override def receive: Receive = Actor.emptyBehavior
 
+  override def postStop(): Unit = {
+    // a client connected after the worker stopped is disconnected when the attempt completes
+    pendingConnection.foreach(_.thenAccept((c: OpcUaHcdClient) => c.disconnect()))
+    opcClientOpt.foreach(_.disconnect())
+  }
+
   // State while waiting for a connection to the OPC UA server
   private def waitingForOpcUaServer: Receive = {
     case TryOpcConnection => tryOpcConnection()
-    case _: SetupConfig   => log.error("Not connected to OPC UA server")
-    case x                => log.error(s"Unexpected message $x")
+
+    case OpcConnected(client) =>
+      pendingConnection = None
+      opcClientOpt = Some(client)
+      backoff.reset()
+      log.info(s"$name: Connected to OPC UA server")
+      context.become(connected(client, "0"))
+
+    case OpcConnectionFailed(client, ex) =>
+      pendingConnection = None
+      client.foreach(_.disconnect())
+      val delay = backoff.nextDelayMillis()
+      log.warning(s"$name: Failed to connect to OPC server (${ex.getMessage}). Will retry in $delay ms.")
+      context.system.scheduler.scheduleOnce(delay.millis, self, TryOpcConnection)
+
+    case _: SetupConfig => log.error("Not connected to OPC UA server")
+    case x              => log.error(s"Unexpected message $x")
   }
 
   // State while connected to the OPC UA server
@@ -60,26 +106,32 @@ class OpcUaHcdWorker(override val prefix: String) extends Actor with PrefixedAct
     case x => log.error(s"Unexpected message $x")
   }
 
+  // Starts connecting without blocking the worker: the result is sent back as OpcConnected or OpcConnectionFailed
+  // (a failed attempt disposes of its client, so retries don't leak connections)
   private def tryOpcConnection(): Unit = {
-    try {
-      val opcUaClient = new OpcUaHcdClient()
+    val attempt = OpcUaHcdClient.connect()
+    pendingConnection = Some(attempt)
+    attempt.whenComplete { (opcUaClient: OpcUaHcdClient, ex: Throwable) =>
+      if (ex != null) self ! OpcConnectionFailed(None, ex)
+      else setUp(opcUaClient)
+    }
+  }
 
+  // Called (on one of the client's threads) with the connected client to subscribe
+  private def setUp(opcUaClient: OpcUaHcdClient): Unit = {
+    try {
       // Subscribe to changes in the filter or disperser opcua variable and then update the state variable
-      opcUaClient.subscribe(name, new Consumer[DataValue] {
+      opcUaClient.subscribeAsync(name, new Consumer[DataValue] {
         override def accept(v: DataValue): Unit = {
 
           val s = v.getValue.getValue.toString
           log.info(s"HCD subscriber: value for $name received: $s")
         }
-      })
-
-      log.info(s"$name: Connected to OPC UA server")
-      context.become(connected(opcUaClient, "0"))
+      }).whenComplete { (_: Void, ex: Throwable) =>
+        self ! (if (ex == null) OpcConnected(opcUaClient) else OpcConnectionFailed(Some(opcUaClient), ex))
+      }
     } catch {
-      case ex: Exception =>
-        // Retry the connection in a second
-        log.warning(s"$name: Failed to connect to OPC server (${ex.getMessage}). Will retry in 1 sec.")
-        context.system.scheduler.scheduleOnce(1.second, self, TryOpcConnection)
+      case NonFatal(e) => self ! OpcConnectionFailed(Some(opcUaClient), e)
     }
   }
 
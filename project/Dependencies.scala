@@ -13,5 +13,8 @@ object Dependencies {
 
   val uaServer = "org.eclipse.milo" % "sdk-server" % OpcVersion
   val uaClient = "org.eclipse.milo" % "sdk-client" % OpcVersion
+
+  val typesafeConfig = "com.typesafe" % "config" % "1.3.1"
+  val hdrHistogram = "org.hdrhistogram" % "HdrHistogram" % "2.1.9"
 }
 